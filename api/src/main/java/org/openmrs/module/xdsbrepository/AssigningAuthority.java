@@ -14,6 +14,8 @@ public class AssigningAuthority {
     private String assigningAuthority;
     private String assigningAuthorityId;
     private String assigningAuthorityIdType;
+    // cached hash code, 0 means not computed yet
+    private int hash;
 
     public AssigningAuthority() {
     }
@@ -39,6 +41,7 @@ public class AssigningAuthority {
 
     public void setAssigningAuthority(String assigningAuthority) {
         this.assigningAuthority = assigningAuthority;
+        this.hash = 0;
     }
 
     public String getAssigningAuthorityId() {
@@ -47,6 +50,7 @@ public class AssigningAuthority {
 
     public void setAssigningAuthorityId(String assigningAuthorityId) {
         this.assigningAuthorityId = assigningAuthorityId;
+        this.hash = 0;
     }
 
     public String getAssigningAuthorityIdType() {
@@ -55,22 +59,33 @@ public class AssigningAuthority {
 
     public void setAssigningAuthorityIdType(String assigningAuthorityIdType) {
         this.assigningAuthorityIdType = assigningAuthorityIdType;
+        this.hash = 0;
     }
 
+    /**
+     * Two assigning authorities are equal when they have the same HL7 representation. The fields are
+     * compared directly, treating null and blank values as the same, as {@link #toHL7()} does.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
 
         AssigningAuthority authority = (AssigningAuthority) o;
-        return toHL7().equals(authority.toHL7());
+        return HL7Parser.sameValue(assigningAuthority, authority.assigningAuthority)
+                && HL7Parser.sameValue(assigningAuthorityId, authority.assigningAuthorityId)
+                && HL7Parser.sameValue(assigningAuthorityIdType, authority.assigningAuthorityIdType);
     }
 
     @Override
     public int hashCode() {
-        int result = assigningAuthority != null ? assigningAuthority.hashCode() : 0;
-        result = 31 * result + (assigningAuthorityId != null ? assigningAuthorityId.hashCode() : 0);
-        result = 31 * result + (assigningAuthorityIdType != null ? assigningAuthorityIdType.hashCode() : 0);
+        int result = hash;
+        if (result == 0) {
+            result = HL7Parser.valueHash(assigningAuthority);
+            result = 31 * result + HL7Parser.valueHash(assigningAuthorityId);
+            result = 31 * result + HL7Parser.valueHash(assigningAuthorityIdType);
+            hash = result;
+        }
         return result;
     }
 
@@ -0,0 +1,86 @@
+package org.openmrs.module.xdsbrepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The SHA-1 hash and size of a document payload, computed in a single pass over the data.
+ * The same digest is used to validate the submitted hash and size slots and to fill them in
+ * when they are missing, so a payload is never read more than once.
+ */
+public class ContentDigest {
+
+	private static final String ALGORITHM = "SHA-1";
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private static final char[] HEX_ARRAY = "0123456789ABCDEF".toCharArray();
+
+	private final String hash;
+
+	private final long size;
+
+	private ContentDigest(String hash, long size) {
+		this.hash = hash;
+		this.size = size;
+	}
+
+	/**
+	 * Digest an in-memory payload
+	 */
+	public static ContentDigest of(byte[] payload) {
+		MessageDigest digest = newDigest();
+		digest.update(payload);
+		return new ContentDigest(toHex(digest.digest()), payload.length);
+	}
+
+	/**
+	 * Digest a payload as it is read from a stream. The stream is consumed but not closed.
+	 */
+	public static ContentDigest of(InputStream in) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		long size = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			digest.update(buffer, 0, read);
+			size += read;
+		}
+		return new ContentDigest(toHex(digest.digest()), size);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		char[] hexChars = new char[bytes.length * 2];
+		for (int j = 0; j < bytes.length; j++) {
+			int v = bytes[j] & 0xFF;
+			hexChars[j * 2] = HEX_ARRAY[v >>> 4];
+			hexChars[j * 2 + 1] = HEX_ARRAY[v & 0x0F];
+		}
+		return new String(hexChars);
+	}
+
+	/**
+	 * @return the upper case hex encoded SHA-1 hash of the payload
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * @return the size of the payload in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+}
@@ -0,0 +1,267 @@
+package org.openmrs.module.xdsbrepository;
+
+import org.dcm4chee.xds2.common.XDSConstants;
+import org.dcm4chee.xds2.infoset.ihe.ProvideAndRegisterDocumentSetRequestType;
+import org.dcm4chee.xds2.infoset.rim.ClassificationType;
+import org.dcm4chee.xds2.infoset.rim.ExtrinsicObjectType;
+import org.dcm4chee.xds2.infoset.rim.SlotType1;
+import org.dcm4chee.xds2.infoset.util.InfosetUtil;
+import org.openmrs.module.shr.contenthandler.api.CodedValue;
+import org.openmrs.module.xdsbrepository.exceptions.CXParseException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pre-indexed, read-only view of the metadata of a single document in a provide and register
+ * request. It is built once per ExtrinsicObject so that the processing pipeline does not have to
+ * rescan the classification and slot lists, or re-parse the patient identifiers, at every step.
+ * <p/>
+ * Construction never fails; missing or invalid values are exposed as null and it is up to the
+ * caller to validate them.
+ */
+public class DocumentMetadata {
+
+	private static final String SLOT_NAME_CODING_SCHEME = "codingScheme";
+
+	private static final String ESCAPED_SUBCOMPONENT_SEPARATOR = "&amp;";
+
+	private final ExtrinsicObjectType extrinsicObject;
+
+	private final ProvideAndRegisterDocumentSetRequestType.Document document;
+
+	private final Map<String, List<ClassificationType>> classificationsByScheme;
+
+	private final Map<String, List<Map<String, SlotType1>>> classificationSlotsByScheme;
+
+	private final Map<String, SlotType1> slotsByName;
+
+	private final String documentUniqueId;
+
+	private final String patientId;
+
+	private final Identifier patientIdentifier;
+
+	private final String sourcePatientId;
+
+	private final Identifier sourcePatientIdentifier;
+
+	private final CodedValue typeCode;
+
+	private final CodedValue formatCode;
+
+	/**
+	 * @param eot      the ExtrinsicObject that describes the document
+	 * @param document the document that belongs to the ExtrinsicObject, may be null if only the metadata is of interest
+	 */
+	public DocumentMetadata(ExtrinsicObjectType eot, ProvideAndRegisterDocumentSetRequestType.Document document) {
+		this.extrinsicObject = eot;
+		this.document = document;
+
+		Map<String, SlotType1> slots = new HashMap<String, SlotType1>();
+		for (SlotType1 slot : eot.getSlot()) {
+			// the first slot with a given name wins, as with InfosetUtil.getSlotValue()
+			if (!slots.containsKey(slot.getName())) {
+				slots.put(slot.getName(), slot);
+			}
+		}
+		this.slotsByName = Collections.unmodifiableMap(slots);
+
+		Map<String, List<ClassificationType>> classifications = new HashMap<String, List<ClassificationType>>();
+		Map<String, List<Map<String, SlotType1>>> classificationSlots = new HashMap<String, List<Map<String, SlotType1>>>();
+		for (ClassificationType ct : eot.getClassification()) {
+			String scheme = ct.getClassificationScheme();
+			if (!classifications.containsKey(scheme)) {
+				classifications.put(scheme, new ArrayList<ClassificationType>());
+				classificationSlots.put(scheme, new ArrayList<Map<String, SlotType1>>());
+			}
+			classifications.get(scheme).add(ct);
+
+			Map<String, SlotType1> ctSlots = new HashMap<String, SlotType1>();
+			for (SlotType1 slot : ct.getSlot()) {
+				ctSlots.put(slot.getName(), slot);
+			}
+			classificationSlots.get(scheme).add(Collections.unmodifiableMap(ctSlots));
+		}
+		for (Map.Entry<String, List<ClassificationType>> entry : classifications.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		for (Map.Entry<String, List<Map<String, SlotType1>>> entry : classificationSlots.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		this.classificationsByScheme = Collections.unmodifiableMap(classifications);
+		this.classificationSlotsByScheme = Collections.unmodifiableMap(classificationSlots);
+
+		this.documentUniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, eot);
+
+		this.patientId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, eot);
+		this.patientIdentifier = parseOrNull(patientId);
+
+		this.sourcePatientId = getSlotValue(XDSConstants.SLOT_NAME_SOURCE_PATIENT_ID);
+		this.sourcePatientIdentifier = parseOrNull(sourcePatientId);
+
+		this.typeCode = getCodedValue(XDSConstants.UUID_XDSDocumentEntry_typeCode);
+		this.formatCode = getCodedValue(XDSConstants.UUID_XDSDocumentEntry_formatCode);
+	}
+
+	/**
+	 * Parse a patient identifier in CX format
+	 *
+	 * @throws CXParseException if the CX is invalid or is missing the identifier or the assigning authority id
+	 */
+	public static Identifier parsePatientIdentifier(String cx) throws CXParseException {
+		// escaped subcomponent separators are rare, only pay for the replace when there are some
+		if (cx.indexOf(ESCAPED_SUBCOMPONENT_SEPARATOR) >= 0) {
+			cx = cx.replace(ESCAPED_SUBCOMPONENT_SEPARATOR, "&");
+		}
+		Identifier result = new Identifier(cx);
+
+		if (result.getIdentifier() == null) {
+			throw new CXParseException("Empty identifier");
+		}
+
+		if (result.getAssigningAuthority() == null || result.getAssigningAuthority().getAssigningAuthorityId() == null) {
+			throw new CXParseException("Assigning authority id not specified");
+		}
+
+		return result;
+	}
+
+	private static Identifier parseOrNull(String cx) {
+		if (cx == null) {
+			return null;
+		}
+		try {
+			return parsePatientIdentifier(cx);
+		} catch (CXParseException e) {
+			return null;
+		}
+	}
+
+	private CodedValue getCodedValue(String classificationScheme) {
+		// as before, the last classification of the scheme is used
+		List<ClassificationType> cts = getClassifications(classificationScheme);
+		if (cts.isEmpty()) {
+			return null;
+		}
+		ClassificationType ct = cts.get(cts.size() - 1);
+		String codingScheme = InfosetUtil.getSlotValue(ct.getSlot(), SLOT_NAME_CODING_SCHEME, null);
+		return new CodedValue(ct.getNodeRepresentation(), codingScheme);
+	}
+
+	public ExtrinsicObjectType getExtrinsicObject() {
+		return extrinsicObject;
+	}
+
+	/**
+	 * @return the document that this metadata describes, or null if it was not supplied
+	 */
+	public ProvideAndRegisterDocumentSetRequestType.Document getDocument() {
+		return document;
+	}
+
+	public String getMimeType() {
+		return extrinsicObject.getMimeType();
+	}
+
+	/**
+	 * @return all the classifications of the given scheme, in document order
+	 */
+	public List<ClassificationType> getClassifications(String classificationScheme) {
+		List<ClassificationType> cts = classificationsByScheme.get(classificationScheme);
+		if (cts == null) {
+			return Collections.emptyList();
+		}
+		return cts;
+	}
+
+	/**
+	 * @return the first classification of the given scheme, or null if there is none
+	 */
+	public ClassificationType getClassification(String classificationScheme) {
+		List<ClassificationType> cts = getClassifications(classificationScheme);
+		return cts.isEmpty() ? null : cts.get(0);
+	}
+
+	/**
+	 * @return a list with an entry for each classification of this scheme. Each entry is a map of
+	 * the classification's slots keyed by slot name.
+	 */
+	public List<Map<String, SlotType1>> getClassificationSlots(String classificationScheme) {
+		List<Map<String, SlotType1>> slots = classificationSlotsByScheme.get(classificationScheme);
+		if (slots == null) {
+			return Collections.emptyList();
+		}
+		return slots;
+	}
+
+	/**
+	 * @return the ExtrinsicObject slot with this name, or null if there is none
+	 */
+	public SlotType1 getSlot(String name) {
+		return slotsByName.get(name);
+	}
+
+	/**
+	 * @return the first value of the ExtrinsicObject slot with this name, or null if there is none
+	 */
+	public String getSlotValue(String name) {
+		SlotType1 slot = slotsByName.get(name);
+		if (slot == null || slot.getValueList() == null || slot.getValueList().getValue().isEmpty()) {
+			return null;
+		}
+		return slot.getValueList().getValue().get(0);
+	}
+
+	public String getDocumentUniqueId() {
+		return documentUniqueId;
+	}
+
+	/**
+	 * @return the class code of the document, or null if it was not specified
+	 */
+	public String getClassCode() {
+		ClassificationType ct = getClassification(XDSConstants.UUID_XDSDocumentEntry_classCode);
+		return ct != null ? ct.getNodeRepresentation() : null;
+	}
+
+	public CodedValue getTypeCode() {
+		return typeCode;
+	}
+
+	public CodedValue getFormatCode() {
+		return formatCode;
+	}
+
+	/**
+	 * @return the raw DocumentEntry.patientId CX string
+	 */
+	public String getPatientId() {
+		return patientId;
+	}
+
+	/**
+	 * @return the parsed DocumentEntry.patientId, or null if it is missing or invalid
+	 */
+	public Identifier getPatientIdentifier() {
+		return patientIdentifier;
+	}
+
+	/**
+	 * @return the raw sourcePatientId CX string
+	 */
+	public String getSourcePatientId() {
+		return sourcePatientId;
+	}
+
+	/**
+	 * @return the parsed sourcePatientId, or null if it is missing or invalid
+	 */
+	public Identifier getSourcePatientIdentifier() {
+		return sourcePatientIdentifier;
+	}
+
+}
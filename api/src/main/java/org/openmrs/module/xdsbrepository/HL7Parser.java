@@ -0,0 +1,149 @@
+package org.openmrs.module.xdsbrepository;
+
+/**
+ * Index based access to the components of HL7 v2 datatypes such as CX, XCN, XON and the PID-n values of
+ * the sourcePatientInfo slot. Components are located by scanning for the separator characters directly,
+ * so no regular expressions or intermediate arrays are involved and the only allocation is the
+ * substring that is returned.
+ * <p/>
+ * Component indexes are zero based: the first component of a CX (the id number) has index 0.
+ */
+public final class HL7Parser {
+
+	public static final char COMPONENT_SEPARATOR = '^';
+
+	public static final char SUBCOMPONENT_SEPARATOR = '&';
+
+	private static final char FIELD_SEPARATOR = '|';
+
+	private static final String PID_PREFIX = "PID-";
+
+	private HL7Parser() {
+	}
+
+	/**
+	 * @return the offset at which the component with the given index starts within value[begin, end), or -1
+	 * if there are not that many components
+	 */
+	public static int componentStart(String value, int begin, int end, char separator, int index) {
+		int pos = begin;
+		for (int i = 0; i < index; i++) {
+			int next = value.indexOf(separator, pos);
+			if (next < 0 || next >= end) {
+				return -1;
+			}
+			pos = next + 1;
+		}
+		return pos;
+	}
+
+	/**
+	 * @return the offset at which the component starting at start ends, exclusive
+	 */
+	public static int componentEnd(String value, int start, int end, char separator) {
+		int next = value.indexOf(separator, start);
+		return next < 0 || next > end ? end : next;
+	}
+
+	/**
+	 * @return the component with the given index, an empty string if the component is present but empty, or null
+	 * if there are not that many components
+	 */
+	public static String component(String value, char separator, int index) {
+		return component(value, 0, value.length(), separator, index);
+	}
+
+	/**
+	 * @return the component with the given index within value[begin, end), an empty string if the component is
+	 * present but empty, or null if there are not that many components
+	 */
+	public static String component(String value, int begin, int end, char separator, int index) {
+		int start = componentStart(value, begin, end, separator, index);
+		if (start < 0) {
+			return null;
+		}
+		return value.substring(start, componentEnd(value, start, end, separator));
+	}
+
+	/**
+	 * @return the component with the given index, or null if it is missing or empty
+	 */
+	public static String nonEmptyComponent(String value, char separator, int index) {
+		return nonEmptyComponent(value, 0, value.length(), separator, index);
+	}
+
+	/**
+	 * @return the component with the given index within value[begin, end), or null if it is missing or empty
+	 */
+	public static String nonEmptyComponent(String value, int begin, int end, char separator, int index) {
+		int start = componentStart(value, begin, end, separator, index);
+		if (start < 0) {
+			return null;
+		}
+		int stop = componentEnd(value, start, end, separator);
+		return stop > start ? value.substring(start, stop) : null;
+	}
+
+	/**
+	 * @return the field number of a sourcePatientInfo value such as "PID-5|Doe^John", or -1 if the value is not
+	 * in that format
+	 */
+	public static int pidFieldNumber(String value) {
+		if (!value.startsWith(PID_PREFIX)) {
+			return -1;
+		}
+		int bar = value.indexOf(FIELD_SEPARATOR, PID_PREFIX.length());
+		if (bar <= PID_PREFIX.length()) {
+			return -1;
+		}
+		int field = 0;
+		for (int i = PID_PREFIX.length(); i < bar; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			field = field * 10 + (c - '0');
+		}
+		return field;
+	}
+
+	/**
+	 * @return the offset of the value of a sourcePatientInfo PID-n entry, i.e. the first character after the '|'
+	 */
+	public static int pidValueStart(String value) {
+		return value.indexOf(FIELD_SEPARATOR) + 1;
+	}
+
+	/**
+	 * @return true if the string is null or contains only whitespace, without trimming it
+	 */
+	public static boolean isBlank(String value) {
+		if (value == null) {
+			return true;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Compare two values treating null and blank as the same, which is how they are serialised to HL7
+	 */
+	static boolean sameValue(String a, String b) {
+		if (isBlank(a)) {
+			return isBlank(b);
+		}
+		return !isBlank(b) && a.equals(b);
+	}
+
+	/**
+	 * Hash a value consistently with {@link #sameValue(String, String)}
+	 */
+	static int valueHash(String value) {
+		return isBlank(value) ? 0 : value.hashCode();
+	}
+
+}
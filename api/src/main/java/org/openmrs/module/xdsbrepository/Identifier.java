@@ -17,6 +17,8 @@ public class Identifier {
     private String identifier;
     private AssigningAuthority assigningAuthority;
     private String typeCode;
+    // cached hash code, 0 means not computed yet
+    private int hash;
 
     public Identifier(String identifier, AssigningAuthority assigningAuthority) {
         this.assigningAuthority = assigningAuthority;
@@ -30,36 +32,25 @@ public class Identifier {
     }
 
     public Identifier(String CX) throws CXParseException {
-        if (CX.trim().isEmpty()) {
+        if (HL7Parser.isBlank(CX)) {
             throw new CXParseException("Empty CX string");
         }
 
-        String[] tokens = CX.split("\\^");
-
-        if (tokens.length>0 && !tokens[0].isEmpty()) {
-            identifier = tokens[0];
-        }
-
-        if (tokens.length>3 && !tokens[3].isEmpty()) {
-            String[] authTokens = tokens[3].split("&");
-            AssigningAuthority auth = new AssigningAuthority();
-
-            if (authTokens.length>0 && !authTokens[0].isEmpty()) {
-                auth.setAssigningAuthority(authTokens[0]);
-            }
-            if (authTokens.length>1 && !authTokens[1].isEmpty()) {
-                auth.setAssigningAuthorityId(authTokens[1]);
-            }
-            if (authTokens.length>2 && !authTokens[2].isEmpty()) {
-                auth.setAssigningAuthorityIdType(authTokens[2]);
+        int length = CX.length();
+        identifier = HL7Parser.nonEmptyComponent(CX, 0, length, HL7Parser.COMPONENT_SEPARATOR, 0);
+
+        int authStart = HL7Parser.componentStart(CX, 0, length, HL7Parser.COMPONENT_SEPARATOR, 3);
+        if (authStart >= 0) {
+            int authEnd = HL7Parser.componentEnd(CX, authStart, length, HL7Parser.COMPONENT_SEPARATOR);
+            if (authEnd > authStart) {
+                assigningAuthority = new AssigningAuthority(
+                        HL7Parser.nonEmptyComponent(CX, authStart, authEnd, HL7Parser.SUBCOMPONENT_SEPARATOR, 0),
+                        HL7Parser.nonEmptyComponent(CX, authStart, authEnd, HL7Parser.SUBCOMPONENT_SEPARATOR, 1),
+                        HL7Parser.nonEmptyComponent(CX, authStart, authEnd, HL7Parser.SUBCOMPONENT_SEPARATOR, 2));
             }
-
-            assigningAuthority = auth;
         }
 
-        if (tokens.length>4 && !tokens[4].isEmpty()) {
-            typeCode = tokens[4];
-        }
+        typeCode = HL7Parser.nonEmptyComponent(CX, 0, length, HL7Parser.COMPONENT_SEPARATOR, 4);
     }
 
     public AssigningAuthority getAssigningAuthority() {
@@ -68,6 +59,7 @@ public class Identifier {
 
     public void setAssigningAuthority(AssigningAuthority assigningAuthority) {
         this.assigningAuthority = assigningAuthority;
+        this.hash = 0;
     }
 
     public String getIdentifier() {
@@ -76,6 +68,7 @@ public class Identifier {
 
     public void setIdentifier(String identifier) {
         this.identifier = identifier;
+        this.hash = 0;
     }
 
     public String getTypeCode() {
@@ -84,6 +77,7 @@ public class Identifier {
 
     public void setTypeCode(String typeCode) {
         this.typeCode = typeCode;
+        this.hash = 0;
     }
 
     public String toString() {
@@ -119,20 +113,37 @@ public class Identifier {
         return organisationName + "^^^^^" + assigningAuthority.toHL7() + "^^^^" + identifier;
     }
 
+    /**
+     * Two identifiers are equal when they have the same CX representation. The fields are compared
+     * directly rather than by building the CX strings, so null and blank values are treated as the same.
+     * <p/>
+     * The hash code is cached, so an assigning authority should not be modified once the identifier
+     * is used as a key.
+     */
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
 
         Identifier that = (Identifier) o;
-        return toCX().equals(that.toCX());
+        if (!HL7Parser.sameValue(identifier, that.identifier) || !HL7Parser.sameValue(typeCode, that.typeCode)) {
+            return false;
+        }
+        if (assigningAuthority == null) {
+            return that.assigningAuthority == null;
+        }
+        return assigningAuthority.equals(that.assigningAuthority);
     }
 
     @Override
     public int hashCode() {
-        int result = identifier != null ? identifier.hashCode() : 0;
-        result = 31 * result + (assigningAuthority != null ? assigningAuthority.hashCode() : 0);
-        result = 31 * result + (typeCode != null ? typeCode.hashCode() : 0);
+        int result = hash;
+        if (result == 0) {
+            result = HL7Parser.valueHash(identifier);
+            result = 31 * result + (assigningAuthority != null ? assigningAuthority.hashCode() : 0);
+            result = 31 * result + HL7Parser.valueHash(typeCode);
+            hash = result;
+        }
         return result;
     }
 }
@@ -1,7 +1,9 @@
 package org.openmrs.module.xdsbrepository;
 
-import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 public class Utils {
 
@@ -9,14 +11,50 @@ public class Utils {
      * Start an OpenMRS Session
      */
     public static void startSession() {
-        AdministrationService as = Context.getAdministrationService();
         Context.openSession();
 
         if (!Context.isAuthenticated()) {
-            String username = as.getGlobalProperty(XDSbServiceConstants.WS_USERNAME_GP);
-            String password = as.getGlobalProperty(XDSbServiceConstants.WS_PASSWORD_GP);
-            Context.authenticate(username, password);
+            XDSbConfiguration configuration = XDSbConfiguration.getInstance();
+            Context.authenticate(configuration.getWsUsername(), configuration.getWsPassword());
         }
     }
 
+    /**
+     * Run an action once the current transaction has completed, or straight away when there is no
+     * transaction. This is used to publish database state to in-memory caches, so that they never
+     * hold data that was rolled back.
+     *
+     * @param onCommit run only if the transaction commits, may be null
+     * @param always run however the transaction completes, after onCommit, may be null
+     */
+    public static void afterCompletion(final Runnable onCommit, final Runnable always) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            try {
+                if (onCommit != null) {
+                    onCommit.run();
+                }
+            } finally {
+                if (always != null) {
+                    always.run();
+                }
+            }
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+            @Override
+            public void afterCompletion(int status) {
+                try {
+                    if (status == TransactionSynchronization.STATUS_COMMITTED && onCommit != null) {
+                        onCommit.run();
+                    }
+                } finally {
+                    if (always != null) {
+                        always.run();
+                    }
+                }
+            }
+        });
+    }
+
 }
@@ -0,0 +1,425 @@
+package org.openmrs.module.xdsbrepository;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.context.Context;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, parsed snapshot of the module global properties (see {@link XDSbServiceConstants}), so that
+ * the ingestion and retrieval paths don't look up and parse a global property for every request or document.
+ * <p/>
+ * The snapshot is loaded on first use and replaced whenever one of the properties is saved or deleted, see
+ * {@link XDSbConfigurationListener}. Reading it is a single volatile read.
+ */
+public class XDSbConfiguration {
+
+	private static final Log log = LogFactory.getLog(XDSbConfiguration.class);
+
+	public static final String PROPERTY_PREFIX = "xds-b-repository.";
+
+	private static final String[] PROPERTY_NAMES = {
+			XDSbServiceConstants.XDS_REGISTRY_URL_GP,
+			XDSbServiceConstants.XDS_REGISTRY_POOL_SIZE_GP,
+			XDSbServiceConstants.XDS_REGISTRY_KEYSTORE_PATH_GP,
+			XDSbServiceConstants.XDS_REGISTRY_KEYSTORE_PASSWORD_GP,
+			XDSbServiceConstants.XDS_REGISTRY_TRUSTSTORE_PATH_GP,
+			XDSbServiceConstants.XDS_REGISTRY_TRUSTSTORE_PASSWORD_GP,
+			XDSbServiceConstants.XDS_REGISTRY_HEDGE_GP,
+			XDSbServiceConstants.XDS_REGISTRY_CONNECT_TIMEOUT_GP,
+			XDSbServiceConstants.XDS_REGISTRY_READ_TIMEOUT_GP,
+			XDSbServiceConstants.XDS_REGISTRY_BREAKER_FAILURE_RATE_GP,
+			XDSbServiceConstants.XDS_REGISTRY_BREAKER_MINIMUM_CALLS_GP,
+			XDSbServiceConstants.XDS_REGISTRY_BREAKER_WINDOW_SIZE_GP,
+			XDSbServiceConstants.XDS_REGISTRY_BREAKER_OPEN_DURATION_GP,
+			XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP,
+			XDSbServiceConstants.WS_USERNAME_GP,
+			XDSbServiceConstants.WS_PASSWORD_GP,
+			XDSbServiceConstants.XDS_REPOSITORY_AUTOCREATE_PATIENTS,
+			XDSbServiceConstants.XDS_REPOSITORY_AUTOCREATE_PROVIDERS,
+			XDSbServiceConstants.XDS_REPOSITORY_AUTOCREATE_LOCATIONS,
+			XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC,
+			XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_POLL_PERIOD,
+			XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_MAX_TASKS,
+			XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_SKIP_LOCKED,
+			XDSbServiceConstants.XDS_REPOSITORY_MAX_PARALLELISM,
+			XDSbServiceConstants.XDS_REPOSITORY_PIPELINE_REGISTRY,
+			XDSbServiceConstants.XDS_REPOSITORY_OUTBOX_ENABLED,
+			XDSbServiceConstants.XDS_REPOSITORY_OUTBOX_POLL_PERIOD,
+			XDSbServiceConstants.XDS_REPOSITORY_OUTBOX_BATCH_SIZE,
+			XDSbServiceConstants.XDS_REPOSITORY_OUTBOX_MAX_ATTEMPTS,
+			XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_PIPELINED,
+			XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_MAX_IN_FLIGHT_BYTES,
+			XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_MAX_PARALLELISM,
+			XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_POOL_SIZE,
+			XDSbServiceConstants.XDS_REPOSITORY_DOCUMENT_INDEX_AUTHORITATIVE,
+			XDSbServiceConstants.XDS_HOME_COMMUNITY_ID
+	};
+
+	private static volatile XDSbConfiguration current;
+
+	// the raw values, from which a snapshot with one property changed is built
+	private final Map<String, String> values;
+
+	private final List<URL> registryUrls;
+
+	private final MalformedURLException registryUrlError;
+
+	private final int registryPoolSize;
+
+	private final String keystorePath;
+
+	private final String keystorePassword;
+
+	private final String truststorePath;
+
+	private final String truststorePassword;
+
+	private final boolean registryHedge;
+
+	private final int registryConnectTimeout;
+
+	private final int registryReadTimeout;
+
+	private final int breakerFailureRateThreshold;
+
+	private final int breakerMinimumCalls;
+
+	private final int breakerWindowSize;
+
+	private final int breakerOpenDuration;
+
+	private final String repositoryUniqueId;
+
+	private final String wsUsername;
+
+	private final String wsPassword;
+
+	private final boolean autoCreatePatients;
+
+	private final boolean autoCreateProviders;
+
+	private final boolean autoCreateLocations;
+
+	private final boolean discreteHandlerAsync;
+
+	private final int discreteHandlerPollingPeriod;
+
+	private final int discreteHandlerMaxTasks;
+
+	private final boolean discreteHandlerSkipLocked;
+
+	private final int maxParallelism;
+
+	private final boolean pipelineRegistry;
+
+	private final boolean outboxEnabled;
+
+	private final int outboxPollingPeriod;
+
+	private final int outboxBatchSize;
+
+	private final int outboxMaxAttempts;
+
+	private final boolean retrievePipelined;
+
+	private final int retrieveMaxInFlightBytes;
+
+	private final int retrieveMaxParallelism;
+
+	private final int retrievePoolSize;
+
+	private final boolean documentIndexAuthoritative;
+
+	private final String homeCommunityId;
+
+	private XDSbConfiguration(Map<String, String> values) {
+		this.values = values;
+
+		List<URL> urls = new ArrayList<URL>();
+		MalformedURLException urlError = null;
+		for (String url : StringUtils.split(StringUtils.defaultString(values.get(XDSbServiceConstants.XDS_REGISTRY_URL_GP)), ',')) {
+			if (StringUtils.isBlank(url)) {
+				continue;
+			}
+			try {
+				urls.add(new URL(url.trim()));
+			} catch (MalformedURLException e) {
+				urlError = e;
+			}
+		}
+		registryUrls = Collections.unmodifiableList(urls);
+		registryUrlError = urlError;
+
+		registryPoolSize = getInt(XDSbServiceConstants.XDS_REGISTRY_POOL_SIZE_GP, 10);
+		keystorePath = values.get(XDSbServiceConstants.XDS_REGISTRY_KEYSTORE_PATH_GP);
+		keystorePassword = values.get(XDSbServiceConstants.XDS_REGISTRY_KEYSTORE_PASSWORD_GP);
+		truststorePath = values.get(XDSbServiceConstants.XDS_REGISTRY_TRUSTSTORE_PATH_GP);
+		truststorePassword = values.get(XDSbServiceConstants.XDS_REGISTRY_TRUSTSTORE_PASSWORD_GP);
+		registryHedge = getBoolean(XDSbServiceConstants.XDS_REGISTRY_HEDGE_GP);
+		registryConnectTimeout = getInt(XDSbServiceConstants.XDS_REGISTRY_CONNECT_TIMEOUT_GP, 5000);
+		registryReadTimeout = getInt(XDSbServiceConstants.XDS_REGISTRY_READ_TIMEOUT_GP, 30000);
+		breakerFailureRateThreshold = getInt(XDSbServiceConstants.XDS_REGISTRY_BREAKER_FAILURE_RATE_GP, 50);
+		breakerMinimumCalls = getInt(XDSbServiceConstants.XDS_REGISTRY_BREAKER_MINIMUM_CALLS_GP, 10);
+		breakerWindowSize = getInt(XDSbServiceConstants.XDS_REGISTRY_BREAKER_WINDOW_SIZE_GP, 20);
+		breakerOpenDuration = getInt(XDSbServiceConstants.XDS_REGISTRY_BREAKER_OPEN_DURATION_GP, 30000);
+		repositoryUniqueId = values.get(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP);
+		wsUsername = values.get(XDSbServiceConstants.WS_USERNAME_GP);
+		wsPassword = values.get(XDSbServiceConstants.WS_PASSWORD_GP);
+		autoCreatePatients = getBoolean(XDSbServiceConstants.XDS_REPOSITORY_AUTOCREATE_PATIENTS);
+		autoCreateProviders = getBoolean(XDSbServiceConstants.XDS_REPOSITORY_AUTOCREATE_PROVIDERS);
+		autoCreateLocations = getBoolean(XDSbServiceConstants.XDS_REPOSITORY_AUTOCREATE_LOCATIONS);
+		discreteHandlerAsync = getBoolean(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC);
+		discreteHandlerPollingPeriod = getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_POLL_PERIOD, 100);
+		discreteHandlerMaxTasks = getInt(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_MAX_TASKS, 1);
+		discreteHandlerSkipLocked = getBoolean(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_SKIP_LOCKED);
+		maxParallelism = getInt(XDSbServiceConstants.XDS_REPOSITORY_MAX_PARALLELISM, 1);
+		pipelineRegistry = getBoolean(XDSbServiceConstants.XDS_REPOSITORY_PIPELINE_REGISTRY);
+		outboxEnabled = getBoolean(XDSbServiceConstants.XDS_REPOSITORY_OUTBOX_ENABLED);
+		outboxPollingPeriod = getInt(XDSbServiceConstants.XDS_REPOSITORY_OUTBOX_POLL_PERIOD, 1000);
+		outboxBatchSize = getInt(XDSbServiceConstants.XDS_REPOSITORY_OUTBOX_BATCH_SIZE, 50);
+		outboxMaxAttempts = getInt(XDSbServiceConstants.XDS_REPOSITORY_OUTBOX_MAX_ATTEMPTS, 50);
+		retrievePipelined = getBoolean(XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_PIPELINED);
+		retrieveMaxInFlightBytes = getInt(XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_MAX_IN_FLIGHT_BYTES, 64 * 1024 * 1024);
+		retrieveMaxParallelism = getInt(XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_MAX_PARALLELISM, 1);
+		retrievePoolSize = getInt(XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_POOL_SIZE, 20);
+		documentIndexAuthoritative = getBoolean(XDSbServiceConstants.XDS_REPOSITORY_DOCUMENT_INDEX_AUTHORITATIVE);
+		homeCommunityId = values.get(XDSbServiceConstants.XDS_HOME_COMMUNITY_ID);
+	}
+
+	/**
+	 * @return the current configuration, loaded from the global properties if it hasn't been yet
+	 */
+	public static XDSbConfiguration getInstance() {
+		XDSbConfiguration configuration = current;
+		if (configuration == null) {
+			configuration = load();
+		}
+		return configuration;
+	}
+
+	private static synchronized XDSbConfiguration load() {
+		if (current == null) {
+			AdministrationService as = Context.getAdministrationService();
+			Map<String, String> values = new HashMap<String, String>();
+			for (String name : PROPERTY_NAMES) {
+				values.put(name, as.getGlobalProperty(name));
+			}
+			current = new XDSbConfiguration(values);
+		}
+		return current;
+	}
+
+	/**
+	 * Replace the snapshot with one in which a global property has the given value. The new value is applied
+	 * rather than read back, as the change may not have been committed yet.
+	 *
+	 * @param value the new value, or null if the property was deleted
+	 */
+	public static synchronized void update(String name, String value) {
+		if (current == null) {
+			// not loaded yet, it will be read from the database on first use
+			return;
+		}
+		Map<String, String> values = new HashMap<String, String>(current.values);
+		values.put(name, value);
+		current = new XDSbConfiguration(values);
+	}
+
+	/**
+	 * Discard the snapshot, it is loaded again on next use
+	 */
+	public static synchronized void clear() {
+		current = null;
+	}
+
+	/**
+	 * @return the registry endpoints, empty if none is configured
+	 * @throws MalformedURLException if one of the configured URLs is not valid
+	 */
+	public List<URL> getRegistryUrls() throws MalformedURLException {
+		if (registryUrlError != null) {
+			throw registryUrlError;
+		}
+		return registryUrls;
+	}
+
+	public int getRegistryPoolSize() {
+		return registryPoolSize;
+	}
+
+	public String getKeystorePath() {
+		return keystorePath;
+	}
+
+	public String getKeystorePassword() {
+		return keystorePassword;
+	}
+
+	public String getTruststorePath() {
+		return truststorePath;
+	}
+
+	public String getTruststorePassword() {
+		return truststorePassword;
+	}
+
+	public boolean isRegistryHedge() {
+		return registryHedge;
+	}
+
+	public int getRegistryConnectTimeout() {
+		return registryConnectTimeout;
+	}
+
+	public int getRegistryReadTimeout() {
+		return registryReadTimeout;
+	}
+
+	public int getBreakerFailureRateThreshold() {
+		return breakerFailureRateThreshold;
+	}
+
+	public int getBreakerMinimumCalls() {
+		return breakerMinimumCalls;
+	}
+
+	public int getBreakerWindowSize() {
+		return breakerWindowSize;
+	}
+
+	public int getBreakerOpenDuration() {
+		return breakerOpenDuration;
+	}
+
+	public String getRepositoryUniqueId() {
+		return repositoryUniqueId;
+	}
+
+	public String getWsUsername() {
+		return wsUsername;
+	}
+
+	public String getWsPassword() {
+		return wsPassword;
+	}
+
+	public boolean isAutoCreatePatients() {
+		return autoCreatePatients;
+	}
+
+	public boolean isAutoCreateProviders() {
+		return autoCreateProviders;
+	}
+
+	public boolean isAutoCreateLocations() {
+		return autoCreateLocations;
+	}
+
+	public boolean isDiscreteHandlerAsync() {
+		return discreteHandlerAsync;
+	}
+
+	public int getDiscreteHandlerPollingPeriod() {
+		return discreteHandlerPollingPeriod;
+	}
+
+	public int getDiscreteHandlerMaxTasks() {
+		return discreteHandlerMaxTasks;
+	}
+
+	/**
+	 * @return true if queue items are claimed with select ... for update skip locked, which the database must
+	 * support (e.g. MySQL 8 or PostgreSQL 9.5), rather than with a conditional update
+	 */
+	public boolean isDiscreteHandlerSkipLocked() {
+		return discreteHandlerSkipLocked;
+	}
+
+	public int getMaxParallelism() {
+		return maxParallelism;
+	}
+
+	public boolean isPipelineRegistry() {
+		return pipelineRegistry;
+	}
+
+	public boolean isOutboxEnabled() {
+		return outboxEnabled;
+	}
+
+	public int getOutboxPollingPeriod() {
+		return outboxPollingPeriod;
+	}
+
+	public int getOutboxBatchSize() {
+		return outboxBatchSize;
+	}
+
+	public int getOutboxMaxAttempts() {
+		return outboxMaxAttempts;
+	}
+
+	public boolean isRetrievePipelined() {
+		return retrievePipelined;
+	}
+
+	public int getRetrieveMaxInFlightBytes() {
+		return retrieveMaxInFlightBytes;
+	}
+
+	public int getRetrieveMaxParallelism() {
+		return retrieveMaxParallelism;
+	}
+
+	public int getRetrievePoolSize() {
+		return retrievePoolSize;
+	}
+
+	/**
+	 * @return true if, once the document handler index is loaded, a document that is not in it is taken not to
+	 * exist without querying the database. Only safe when no other node registers documents.
+	 */
+	public boolean isDocumentIndexAuthoritative() {
+		return documentIndexAuthoritative;
+	}
+
+	public String getHomeCommunityId() {
+		return homeCommunityId;
+	}
+
+	private boolean getBoolean(String name) {
+		String value = values.get(name);
+		return value != null && "true".equalsIgnoreCase(value.trim());
+	}
+
+	/**
+	 * @return the positive integer value of a property, or the default if it is not set or not valid
+	 */
+	private int getInt(String name, int defaultValue) {
+		String value = values.get(name);
+		if (StringUtils.isBlank(value)) {
+			return defaultValue;
+		}
+		try {
+			int result = Integer.parseInt(value.trim());
+			if (result > 0) {
+				return result;
+			}
+		} catch (NumberFormatException e) {
+			// fall through
+		}
+		log.warn("Invalid value '" + value + "' for " + name + ", using " + defaultValue);
+		return defaultValue;
+	}
+
+}
@@ -0,0 +1,26 @@
+package org.openmrs.module.xdsbrepository;
+
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+
+/**
+ * Keeps the {@link XDSbConfiguration} snapshot in step with the module global properties
+ */
+public class XDSbConfigurationListener implements GlobalPropertyListener {
+
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return propertyName != null && propertyName.startsWith(XDSbConfiguration.PROPERTY_PREFIX);
+	}
+
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		XDSbConfiguration.update(newValue.getProperty(), newValue.getPropertyValue());
+	}
+
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		XDSbConfiguration.update(propertyName, null);
+	}
+
+}
@@ -23,7 +23,17 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.ModuleActivator;
 import org.openmrs.module.shr.atna.api.AtnaAuditService;
 import org.openmrs.module.shr.atna.configuration.AtnaConfiguration;
+import org.openmrs.module.xdsbrepository.audit.AuditDispatcher;
+import org.openmrs.module.xdsbrepository.cache.DocumentHandlerIndex;
+import org.openmrs.module.xdsbrepository.cache.MetadataDictionary;
+import org.openmrs.module.xdsbrepository.cache.PatientCache;
+import org.openmrs.module.xdsbrepository.cache.ProviderIndex;
+import org.openmrs.module.xdsbrepository.impl.DocumentProcessingPool;
+import org.openmrs.module.xdsbrepository.registry.RegistryClient;
+import org.openmrs.module.xdsbrepository.registry.RegistryGlobalPropertyListener;
 import org.openmrs.module.xdsbrepository.tasks.DiscreteDataProcessorTask;
+import org.openmrs.module.xdsbrepository.tasks.OutboxDispatcherTask;
+import org.openmrs.module.xdsbrepository.tasks.ProviderIndexRefreshTask;
 import org.openmrs.scheduler.SchedulerException;
 import org.openmrs.scheduler.SchedulerService;
 import org.openmrs.scheduler.TaskDefinition;
@@ -39,6 +49,16 @@ import java.util.concurrent.TimeUnit;
 public class XDSbRepositoryInterfaceActivator implements ModuleActivator {
 
 	private ScheduledExecutorService scheduledExecutorService;
+
+	private ScheduledExecutorService outboxExecutorService;
+
+	private ScheduledExecutorService providerIndexExecutorService;
+
+	private final XDSbConfigurationListener configurationListener = new XDSbConfigurationListener();
+
+	private final RegistryGlobalPropertyListener registryListener = new RegistryGlobalPropertyListener();
+
+	private volatile boolean stopping;
 	
 	protected Log log = LogFactory.getLog(getClass());
 		
@@ -67,20 +87,32 @@ public class XDSbRepositoryInterfaceActivator implements ModuleActivator {
 	 * @see ModuleActivator#started()
 	 */
 	public void started() {
+		stopping = false;
 		XDSAudit.setAuditLogger(Context.getService(AtnaAuditService.class).getLogger());
 		XDSAudit.logApplicationActivity(AtnaConfiguration.getInstance().getDeviceName(), EventTypeCode.ApplicationStart,
 				true);
 		log.info("XDSb Repository Interface Module started");
 
+		AuditDispatcher.getInstance().start();
+
+		MetadataDictionary.getInstance().warm();
+		ProviderIndex.getInstance().ensureBuilt();
+		providerIndexExecutorService = Executors.newSingleThreadScheduledExecutor();
+		providerIndexExecutorService.scheduleWithFixedDelay(new ProviderIndexRefreshTask(),
+				ProviderIndex.REFRESH_INTERVAL_MS, ProviderIndex.REFRESH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		startDocumentHandlerIndexLoad();
+
 		AdministrationService as = Context.getAdministrationService();
-		boolean async = Boolean.parseBoolean(as.getGlobalProperty(
-				XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC));
-		int pollPeriod = Integer.parseInt(Context.getAdministrationService().getGlobalProperty(
-				XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_POLL_PERIOD, "100"));
+		// the configuration listener goes first, so that the registry client is rebuilt with the new values
+		XDSbConfiguration.clear();
+		as.addGlobalPropertyListener(configurationListener);
+		as.addGlobalPropertyListener(registryListener);
+		XDSbConfiguration configuration = XDSbConfiguration.getInstance();
+		boolean async = configuration.isDiscreteHandlerAsync();
+		int pollPeriod = configuration.getDiscreteHandlerPollingPeriod();
 
 		if (async) {
-			Integer maxTasks = Integer.parseInt(as.getGlobalProperty(
-					XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_MAX_TASKS));
+			Integer maxTasks = configuration.getDiscreteHandlerMaxTasks();
 			ScheduledExecutorService scheduledExecutorService = Executors.newScheduledThreadPool(maxTasks);
 			// for each thread schedule a recurring task
 			for (int i = 0; i < maxTasks; i++) {
@@ -88,13 +120,77 @@ public class XDSbRepositoryInterfaceActivator implements ModuleActivator {
 						TimeUnit.MILLISECONDS);
 			}
 		}
+
+		if (configuration.isOutboxEnabled()) {
+			int outboxPollPeriod = configuration.getOutboxPollingPeriod();
+			// a single dispatcher per node keeps delivery in order, other nodes skip the items it has claimed
+			outboxExecutorService = Executors.newSingleThreadScheduledExecutor();
+			outboxExecutorService.scheduleWithFixedDelay(new OutboxDispatcherTask(), outboxPollPeriod, outboxPollPeriod,
+					TimeUnit.MILLISECONDS);
+		}
 	}
 	
+	/**
+	 * Load the document handler index in the background, as a large repository takes a while to load. Lookups
+	 * fall back to the database until it has loaded. Then backfill the document mappings saved before the
+	 * handler dictionary, a batch at a time.
+	 */
+	private void startDocumentHandlerIndexLoad() {
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Context.openSession();
+				try {
+					Context.getService(XDSbService.class).loadDocumentHandlerIndex();
+				} catch (Exception e) {
+					log.error("Could not load the document handler index, handler classes will be looked up in the database", e);
+				} finally {
+					Context.closeSession();
+				}
+				backfillDocumentMappings();
+			}
+		}, "xds-b-repository-index-loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	private void backfillDocumentMappings() {
+		Integer lastId = 0;
+		int batches = 0;
+		while (lastId != null && !stopping) {
+			Context.openSession();
+			try {
+				lastId = Context.getService(XDSbService.class).backfillDocumentMappings(lastId);
+				batches++;
+			} catch (Exception e) {
+				log.error("Could not backfill the document mappings, they will be backfilled when the module is next started", e);
+				return;
+			} finally {
+				Context.closeSession();
+			}
+		}
+		if (batches > 1) {
+			log.info("Backfilled the document mappings in " + (batches - 1) + " batches");
+		}
+	}
+
 	/**
 	 * @see ModuleActivator#willStop()
 	 */
 	public void willStop() {
 		log.info("Stopping XDSb Repository Interface Module");
+		stopping = true;
+
+		if (outboxExecutorService != null) {
+			// undelivered items stay in the outbox until the module is started again
+			outboxExecutorService.shutdown();
+			outboxExecutorService = null;
+		}
+
+		if (providerIndexExecutorService != null) {
+			providerIndexExecutorService.shutdownNow();
+			providerIndexExecutorService = null;
+		}
 
 		if (scheduledExecutorService != null) {
 			try {
@@ -112,6 +208,17 @@ public class XDSbRepositoryInterfaceActivator implements ModuleActivator {
 	 * @see ModuleActivator#stopped()
 	 */
 	public void stopped() {
+		AuditDispatcher.getInstance().stop();
+		DocumentProcessingPool.shutdown();
+		MetadataDictionary.getInstance().clear();
+		PatientCache.getInstance().clear();
+		ProviderIndex.getInstance().clear();
+		DocumentHandlerIndex.getInstance().clear();
+		Context.getService(XDSbService.class).clearDocumentMappingCaches();
+		Context.getAdministrationService().removeGlobalPropertyListener(registryListener);
+		Context.getAdministrationService().removeGlobalPropertyListener(configurationListener);
+		RegistryClient.getInstance().reset();
+		XDSbConfiguration.clear();
 
 		XDSAudit.setAuditLogger(Context.getService(AtnaAuditService.class).getLogger());
 		XDSAudit.logApplicationActivity(AtnaConfiguration.getInstance().getDeviceName(), EventTypeCode.ApplicationStop,
@@ -4,13 +4,21 @@ import org.dcm4chee.xds2.common.exception.XDSException;
 import org.dcm4chee.xds2.infoset.ihe.ProvideAndRegisterDocumentSetRequestType;
 import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
 import org.dcm4chee.xds2.infoset.rim.SubmitObjectsRequest;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Provider;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
+import org.openmrs.module.xdsbrepository.model.DocumentDetails;
+import org.openmrs.module.xdsbrepository.model.OutboxItem;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
 
 import java.net.MalformedURLException;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public interface XDSbService extends OpenmrsService {
 
@@ -46,6 +54,56 @@ public interface XDSbService extends OpenmrsService {
 	 */
 	Class<? extends ContentHandler> getDocumentHandlerClass(String documentUniqueId) throws ClassNotFoundException;
 
+	/**
+	 * Fetches the content handler classes of several documents, with at most one query.
+	 *
+	 * @param documentUniqueIds - the unique ids of the documents in question.
+	 * @return The classes of the content handlers by document unique id, without the documents that are not found.
+	 * @throws ClassNotFoundException if a found class cannot be loaded
+	 */
+	Map<String, Class<? extends ContentHandler>> getDocumentHandlerClasses(Collection<String> documentUniqueIds) throws ClassNotFoundException;
+
+	/**
+	 * Looks the documents up in the database, rather than in the document handler index, e.g. to confirm an
+	 * index hit before a document is rejected as a duplicate.
+	 *
+	 * @param documentUniqueIds - the unique ids of the documents in question.
+	 * @return the ids of the documents that have a content handler mapping
+	 */
+	Set<String> getRegisteredDocumentIds(Collection<String> documentUniqueIds);
+
+	/**
+	 * Fetches the mime types and sizes the documents were stored with, so that they can be described without
+	 * fetching them.
+	 *
+	 * @param documentUniqueIds - the unique ids of the documents in question.
+	 * @return the details by document unique id, without the documents that are not found or were registered
+	 * without their details
+	 */
+	Map<String, DocumentDetails> getDocumentDetails(Collection<String> documentUniqueIds);
+
+	/**
+	 * Loads every document to content handler mapping into the in-memory index, in pages, so that most lookups
+	 * of a handler class and duplicate checks need no query. Mappings saved meanwhile are indexed as usual.
+	 */
+	void loadDocumentHandlerIndex();
+
+	/**
+	 * Moves a batch of the document mappings saved before the handler dictionary to the narrow layout: the
+	 * handler class id and the document id hash are set, and the class name is cleared. Each batch is a
+	 * transaction of its own, so that the backfill can run while documents are being saved.
+	 *
+	 * @param afterId the id of the last mapping of the previous batch, 0 for the first
+	 * @return the id of the last mapping of this batch, or null once every mapping has been backfilled
+	 */
+	Integer backfillDocumentMappings(int afterId);
+
+	/**
+	 * Forgets the handler class ids and whether every document mapping has been backfilled, e.g. when the module
+	 * stops, so that they are read again from the database
+	 */
+	void clearDocumentMappingCaches();
+
 	/**
 	 * Processes an XDS.b Provide and register document request
 	 */
@@ -58,8 +116,9 @@ public interface XDSbService extends OpenmrsService {
 	QueueItem queueDiscreteDataProcessing(QueueItem qi);
 
 	/**
-	 * Returns the oldest queue item for processing.
-	 * @return The QueueItem to be processed.
+	 * Claims the oldest queue item for processing by marking it as processing in the database, so that no
+	 * other thread or node dequeues the same item.
+	 * @return The QueueItem to be processed, or null if there are none or the oldest were all claimed meanwhile.
 	 */
 	QueueItem dequeueNextDiscreteDataForProcessing();
 
@@ -71,4 +130,72 @@ public interface XDSbService extends OpenmrsService {
 	 */
 	QueueItem completeQueueItem(QueueItem qi, boolean successful);
 
+	/**
+	 * Returns the outbox items that are due for delivery to the registry, oldest first. An item is only
+	 * returned once the earlier items of its submission set have been delivered or have failed.
+	 * @param max - the maximum number of items to return
+	 * @return the due outbox items
+	 */
+	List<OutboxItem> getDueOutboxItems(int max);
+
+	/**
+	 * Claims an outbox item for delivery, so that no other node delivers it at the same time.
+	 * @param item - the OutboxItem to claim
+	 * @return true if the item was claimed, false if another node claimed it first
+	 */
+	boolean claimOutboxItem(OutboxItem item);
+
+	/**
+	 * Sends a claimed outbox item to the registry. No transaction is held while waiting for the registry.
+	 * @param item - the OutboxItem to send
+	 * @return the response from the registry
+	 * @throws XDSException if the registry could not be reached
+	 */
+	RegistryResponseType dispatchOutboxItem(OutboxItem item) throws XDSException;
+
+	/**
+	 * Completes this outbox item, marking it as sent or, if it was rejected by the registry, as failed.
+	 * @param item - the OutboxItem to complete
+	 * @param successful - a boolean to indicate if the registry accepted the submission
+	 * @return the updated OutboxItem
+	 */
+	OutboxItem completeOutboxItem(OutboxItem item, boolean successful);
+
+	/**
+	 * Schedules another attempt to deliver this outbox item, with an exponential back off. The item is
+	 * marked as failed once the maximum number of attempts has been made.
+	 * @param item - the OutboxItem that could not be delivered
+	 * @param error - the reason the delivery failed
+	 * @return the updated OutboxItem
+	 */
+	OutboxItem rescheduleOutboxItem(OutboxItem item, String error);
+
+	/**
+	 * Finds the patients that hold an identifier, using a direct query on the identifier and its type.
+	 * Voided patients and identifiers are ignored.
+	 *
+	 * @param identifier - the identifier value
+	 * @param identifierType - the type of the identifier
+	 * @return the ids of the patients that hold the identifier, normally at most one
+	 */
+	List<Integer> getPatientIdsByIdentifier(String identifier, PatientIdentifierType identifierType);
+
+	/**
+	 * Takes an exclusive database lock for a find-or-create key, e.g. a patient or provider identifier. The
+	 * lock is held until the current transaction ends, so concurrent requests for the same key, on any node
+	 * that shares the database, wait for the first creation to commit and then find what it created. Keys
+	 * are hashed onto a fixed set of lock stripes so unrelated keys rarely wait for each other.
+	 * <p/>
+	 * The caller must look the key up again once it holds the lock.
+	 *
+	 * @param key - the kind and value of the thing to create, e.g. "patient:1.2.3^1111"
+	 */
+	void acquireCreationLock(String key);
+
+	/**
+	 * @param since - the earliest creation or change date of interest
+	 * @return the providers that were created or changed since the given date
+	 */
+	List<Provider> getProvidersChangedSince(Date since);
+
 }
@@ -7,6 +7,18 @@ package org.openmrs.module.xdsbrepository;
 public class XDSbServiceConstants {
 	
 	public static final String XDS_REGISTRY_URL_GP = "xds-b-repository.xdsregistry.url";
+	public static final String XDS_REGISTRY_POOL_SIZE_GP = "xds-b-repository.xdsregistry.poolSize";
+	public static final String XDS_REGISTRY_KEYSTORE_PATH_GP = "xds-b-repository.xdsregistry.keystore.path";
+	public static final String XDS_REGISTRY_KEYSTORE_PASSWORD_GP = "xds-b-repository.xdsregistry.keystore.password";
+	public static final String XDS_REGISTRY_TRUSTSTORE_PATH_GP = "xds-b-repository.xdsregistry.truststore.path";
+	public static final String XDS_REGISTRY_TRUSTSTORE_PASSWORD_GP = "xds-b-repository.xdsregistry.truststore.password";
+	public static final String XDS_REGISTRY_HEDGE_GP = "xds-b-repository.xdsregistry.hedge";
+	public static final String XDS_REGISTRY_CONNECT_TIMEOUT_GP = "xds-b-repository.xdsregistry.connectTimeout";
+	public static final String XDS_REGISTRY_READ_TIMEOUT_GP = "xds-b-repository.xdsregistry.readTimeout";
+	public static final String XDS_REGISTRY_BREAKER_FAILURE_RATE_GP = "xds-b-repository.xdsregistry.breaker.failureRateThreshold";
+	public static final String XDS_REGISTRY_BREAKER_MINIMUM_CALLS_GP = "xds-b-repository.xdsregistry.breaker.minimumCalls";
+	public static final String XDS_REGISTRY_BREAKER_WINDOW_SIZE_GP = "xds-b-repository.xdsregistry.breaker.windowSize";
+	public static final String XDS_REGISTRY_BREAKER_OPEN_DURATION_GP = "xds-b-repository.xdsregistry.breaker.openDuration";
 	public static final String REPOSITORY_UNIQUE_ID_GP = "xds-b-repository.xdsrepository.uniqueId";
 	public static final String WS_USERNAME_GP = "xds-b-repository.ws.username";
 	public static final String WS_PASSWORD_GP = "xds-b-repository.ws.password";
@@ -16,6 +28,20 @@ public class XDSbServiceConstants {
 	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC = "xds-b-repository.discreteHandler.async";
 	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_POLL_PERIOD = "xds-b-repository.discreteHandler.asyncPollingPeriod";
 	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC_MAX_TASKS = "xds-b-repository.discreteHandler.asyncMaxTasks";
+	public static final String XDS_REPOSITORY_DISCRETE_HANDLER_SKIP_LOCKED = "xds-b-repository.discreteHandler.skipLocked";
+	public static final String XDS_REPOSITORY_MAX_PARALLELISM = "xds-b-repository.processing.maxParallelism";
+	public static final String XDS_REPOSITORY_PIPELINE_REGISTRY = "xds-b-repository.processing.pipelineRegistry";
+	public static final String XDS_REPOSITORY_OUTBOX_ENABLED = "xds-b-repository.outbox.enabled";
+	public static final String XDS_REPOSITORY_OUTBOX_POLL_PERIOD = "xds-b-repository.outbox.pollingPeriod";
+	public static final String XDS_REPOSITORY_OUTBOX_BATCH_SIZE = "xds-b-repository.outbox.batchSize";
+	public static final String XDS_REPOSITORY_OUTBOX_MAX_ATTEMPTS = "xds-b-repository.outbox.maxAttempts";
+	public static final String XDS_REPOSITORY_RETRIEVE_PIPELINED = "xds-b-repository.retrieve.pipelined";
+	public static final String XDS_REPOSITORY_RETRIEVE_MAX_IN_FLIGHT_BYTES = "xds-b-repository.retrieve.maxInFlightBytes";
+	public static final String XDS_REPOSITORY_RETRIEVE_MAX_PARALLELISM = "xds-b-repository.retrieve.maxParallelism";
+	public static final String XDS_REPOSITORY_RETRIEVE_POOL_SIZE = "xds-b-repository.retrieve.poolSize";
+	public static final String XDS_REPOSITORY_DOCUMENT_INDEX_AUTHORITATIVE = "xds-b-repository.documentIndex.authoritative";
+	// must match the number of rows seeded into xdsbrepository_lock_stripe
+	public static final int CREATION_LOCK_STRIPES = 64;
 	 // JF: Severity 
 	public static final String SEVERITY_ERROR = "urn:oasis:names:tc:ebxml-regrep:ErrorSeverityType:Error"; 
 	public static final String SEVERITY_WARNING = "urn:oasis:names:tc:ebxml-regrep:ErrorSeverityType:Warning"; 
@@ -0,0 +1,288 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.xds2.common.audit.XDSAudit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.atna.api.AtnaAuditService;
+import org.openmrs.util.OpenmrsUtil;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the ATNA audit events of the XDS.b transactions on a dedicated thread, so that the latency of the
+ * audit repository is not added to every response.
+ * <p/>
+ * Request threads put their events into a bounded buffer, which the sender thread drains in batches. When
+ * the buffer is full, because the audit repository is slow or unavailable, events are appended to a spill file
+ * in the application data directory instead of being dropped or holding up the request. The spill file is
+ * replayed once the buffer has been emptied, and when the module next starts.
+ * <p/>
+ * The audit messages are built by {@link XDSAudit} from the same values as before, with the time each event
+ * happened rather than the time it is sent. Until {@link #start()} is called, e.g. in tests, events are sent on
+ * the calling thread.
+ */
+public class AuditDispatcher {
+
+	private static final Log log = LogFactory.getLog(AuditDispatcher.class);
+
+	private static final int CAPACITY = 10000;
+
+	private static final int BATCH_SIZE = 100;
+
+	private static final long POLL_INTERVAL_MS = 1000;
+
+	private static final long STOP_TIMEOUT_MS = 10000;
+
+	private static final String SPILL_FILE_NAME = "audit-spill.log";
+
+	private static final String REPLAY_FILE_NAME = "audit-spill.log.replaying";
+
+	private static final AuditDispatcher instance = new AuditDispatcher(CAPACITY, null);
+
+	private final BlockingQueue<AuditEvent> buffer;
+
+	// the directory of the spill file, or null for the module's directory in the application data directory
+	private final File spillDirectory;
+
+	// guards the spill file, which request threads append to while the sender thread replays it
+	private final Object spillLock = new Object();
+
+	private Writer spillWriter;
+
+	private volatile Thread sender;
+
+	private volatile boolean running;
+
+	AuditDispatcher(int capacity, File spillDirectory) {
+		this.buffer = new ArrayBlockingQueue<AuditEvent>(capacity);
+		this.spillDirectory = spillDirectory;
+	}
+
+	public static AuditDispatcher getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Queue an audit event to be sent, or spill it if the buffer is full
+	 */
+	public void submit(AuditEvent event) {
+		if (!running) {
+			send(event);
+			return;
+		}
+		if (!buffer.offer(event)) {
+			spill(event);
+		}
+	}
+
+	/**
+	 * Start the sender thread
+	 */
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		sender = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		}, "xds-b-repository-audit");
+		sender.setDaemon(true);
+		sender.start();
+	}
+
+	/**
+	 * Stop the sender thread once it has sent the buffered events, anything it could not send in time is spilled
+	 */
+	public synchronized void stop() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		try {
+			sender.join(STOP_TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (sender.isAlive()) {
+			log.warn("Timed out waiting for the audit events to be sent, spilling the remaining ones");
+			sender.interrupt();
+		}
+		sender = null;
+
+		List<AuditEvent> remaining = new ArrayList<AuditEvent>();
+		buffer.drainTo(remaining);
+		for (AuditEvent event : remaining) {
+			spill(event);
+		}
+		closeSpillWriter();
+	}
+
+	/**
+	 * @return the number of events waiting to be sent, excluding spilled ones
+	 */
+	public int getBufferedCount() {
+		return buffer.size();
+	}
+
+	private void dispatch() {
+		replaySpilledEvents();
+
+		List<AuditEvent> batch = new ArrayList<AuditEvent>(BATCH_SIZE);
+		while (running || !buffer.isEmpty()) {
+			try {
+				AuditEvent first = buffer.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					replaySpilledEvents();
+					continue;
+				}
+				batch.add(first);
+				buffer.drainTo(batch, BATCH_SIZE - 1);
+				sendBatch(batch);
+			} catch (InterruptedException e) {
+				break;
+			} catch (Exception e) {
+				log.error("Error sending audit events", e);
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	void sendBatch(List<AuditEvent> batch) {
+		Context.openSession();
+		try {
+			AuditLogger logger = Context.getService(AtnaAuditService.class).getLogger();
+			for (AuditEvent event : batch) {
+				try {
+					event.send(logger);
+				} catch (Exception e) {
+					log.warn("Could not send audit event, spilling it: " + event, e);
+					spill(event);
+				}
+			}
+		} finally {
+			Context.closeSession();
+		}
+	}
+
+	private void send(AuditEvent event) {
+		try {
+			event.send(Context.getService(AtnaAuditService.class).getLogger());
+		} catch (Exception e) {
+			log.warn("Could not send audit event, spilling it: " + event, e);
+			spill(event);
+		}
+	}
+
+	private void spill(AuditEvent event) {
+		synchronized (spillLock) {
+			try {
+				if (spillWriter == null) {
+					spillWriter = new OutputStreamWriter(new FileOutputStream(getSpillFile(SPILL_FILE_NAME), true), "UTF-8");
+				}
+				spillWriter.write(event.toLine());
+				spillWriter.write('\n');
+				spillWriter.flush();
+			} catch (IOException e) {
+				log.error("Could not spill audit event, it is lost: " + event, e);
+			}
+		}
+	}
+
+	/**
+	 * Send the events of the spill file, including those of a replay that was interrupted
+	 */
+	private void replaySpilledEvents() {
+		File replayFile = getSpillFile(REPLAY_FILE_NAME);
+		if (!replayFile.exists()) {
+			synchronized (spillLock) {
+				File spillFile = getSpillFile(SPILL_FILE_NAME);
+				if (!spillFile.exists() || spillFile.length() == 0) {
+					return;
+				}
+				closeSpillWriter();
+				if (!spillFile.renameTo(replayFile)) {
+					log.error("Could not move " + spillFile + " to replay it");
+					return;
+				}
+			}
+		}
+
+		List<AuditEvent> batch = new ArrayList<AuditEvent>(BATCH_SIZE);
+		int count = 0;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(replayFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.isEmpty()) {
+						continue;
+					}
+					try {
+						batch.add(AuditEvent.fromLine(line));
+					} catch (IllegalArgumentException e) {
+						log.error("Skipping invalid spilled audit event: " + line);
+						continue;
+					}
+					if (batch.size() == BATCH_SIZE) {
+						sendBatch(batch);
+						count += batch.size();
+						batch.clear();
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			sendBatch(batch);
+			count += batch.size();
+		} catch (IOException e) {
+			log.error("Could not replay the spilled audit events, will try again later", e);
+			return;
+		}
+
+		if (!replayFile.delete()) {
+			log.error("Could not delete " + replayFile + ", its audit events may be sent again");
+		}
+		log.info("Sent " + count + " spilled audit events");
+	}
+
+	private void closeSpillWriter() {
+		synchronized (spillLock) {
+			if (spillWriter != null) {
+				try {
+					spillWriter.close();
+				} catch (IOException e) {
+					log.warn("Could not close the audit spill file", e);
+				}
+				spillWriter = null;
+			}
+		}
+	}
+
+	private File getSpillFile(String name) {
+		File directory = spillDirectory != null ? spillDirectory
+				: new File(OpenmrsUtil.getApplicationDataDirectory(), "xds-b-repository");
+		if (!directory.exists() && !directory.mkdirs()) {
+			log.warn("Could not create " + directory);
+		}
+		return new File(directory, name);
+	}
+
+}
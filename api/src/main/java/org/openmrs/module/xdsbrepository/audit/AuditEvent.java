@@ -0,0 +1,255 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.dcm4che3.audit.AuditMessages.EventTypeCode;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.xds2.common.XDSConstants;
+import org.dcm4chee.xds2.common.audit.AuditRequestInfo;
+import org.dcm4chee.xds2.common.audit.XDSAudit;
+import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetRequestType;
+import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetRequestType.DocumentRequest;
+import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetResponseType;
+import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetResponseType.DocumentResponse;
+import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+/**
+ * An ATNA audit event captured on a request thread, to be sent by the {@link AuditDispatcher}. It holds
+ * only the values the audit message is built from (never the documents themselves) and the time it happened,
+ * and can be written to and read back from a single line of the spill file.
+ */
+public class AuditEvent {
+
+	public enum Type {
+		REPOSITORY_IMPORT, EXPORT, ON_DEMAND_EXPORT, REPOSITORY_RETRIEVE_EXPORT
+	}
+
+	// written for null values in the spill file
+	private static final String NULL = "\\N";
+
+	// guards the audit logger of XDSAudit, a static that is swapped for each event that is sent
+	private static final Object XDS_AUDIT_LOCK = new Object();
+
+	private final Type type;
+
+	// when the event happened, which the message is sent with however long it waits in the buffer or spill file
+	private final long eventTime;
+
+	private final String[] values;
+
+	AuditEvent(Type type, long eventTime, String... values) {
+		this.type = type;
+		this.eventTime = eventTime;
+		this.values = values;
+	}
+
+	/**
+	 * An ITI-41 Provide and Register Document Set-b received by the repository
+	 */
+	public static AuditEvent repositoryImport(String submissionSetUID, String patID, boolean success) {
+		return new AuditEvent(Type.REPOSITORY_IMPORT, System.currentTimeMillis(), submissionSetUID, patID, String.valueOf(success));
+	}
+
+	/**
+	 * An ITI-42 Register Document Set-b (or ITI-61 for on-demand entries) sent to a registry
+	 */
+	public static AuditEvent export(boolean onDemand, String submissionSetUID, String patID, URL registryUrl, boolean success) {
+		return new AuditEvent(onDemand ? Type.ON_DEMAND_EXPORT : Type.EXPORT, System.currentTimeMillis(), submissionSetUID, patID,
+				registryUrl.toExternalForm(), String.valueOf(success));
+	}
+
+	/**
+	 * An ITI-43 Retrieve Document Set answered by the repository
+	 */
+	public static AuditEvent repositoryRetrieveExport(RetrieveDocumentSetRequestType req, RetrieveDocumentSetResponseType rsp) {
+		long eventTime = System.currentTimeMillis();
+		List<String> values = new ArrayList<String>();
+		RegistryResponseType registryResponse = rsp.getRegistryResponse();
+		values.add(registryResponse != null ? registryResponse.getStatus() : null);
+		values.add(String.valueOf(req.getDocumentRequest().size()));
+		for (DocumentRequest documentRequest : req.getDocumentRequest()) {
+			values.add(documentRequest.getRepositoryUniqueId());
+			values.add(documentRequest.getDocumentUniqueId());
+			values.add(documentRequest.getHomeCommunityId());
+		}
+		values.add(String.valueOf(rsp.getDocumentResponse().size()));
+		for (DocumentResponse documentResponse : rsp.getDocumentResponse()) {
+			values.add(documentResponse.getRepositoryUniqueId());
+			values.add(documentResponse.getDocumentUniqueId());
+			values.add(documentResponse.getHomeCommunityId());
+		}
+		return new AuditEvent(Type.REPOSITORY_RETRIEVE_EXPORT, eventTime, values.toArray(new String[values.size()]));
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public long getEventTime() {
+		return eventTime;
+	}
+
+	/**
+	 * Build the audit message with {@link XDSAudit} and send it with the given audit logger, setting the time the
+	 * event happened on the message
+	 *
+	 * @throws Exception if the message could not be built or written
+	 */
+	public void send(AuditLogger logger) throws Exception {
+		Calendar time = new GregorianCalendar();
+		time.setTimeInMillis(eventTime);
+		EventTimeAuditLogger eventTimeLogger = new EventTimeAuditLogger(logger, time);
+		synchronized (XDS_AUDIT_LOCK) {
+			XDSAudit.setAuditLogger(eventTimeLogger);
+			try {
+				build();
+			} finally {
+				XDSAudit.setAuditLogger(logger);
+			}
+		}
+		if (eventTimeLogger.getFailure() != null) {
+			throw eventTimeLogger.getFailure();
+		}
+	}
+
+	private void build() throws MalformedURLException {
+		AuditRequestInfo info = new AuditRequestInfo(null, null);
+		switch (type) {
+			case REPOSITORY_IMPORT:
+				XDSAudit.logRepositoryImport(values[0], values[1], info, Boolean.parseBoolean(values[2]));
+				break;
+			case EXPORT:
+			case ON_DEMAND_EXPORT:
+				EventTypeCode eventTypeCode = type == Type.EXPORT ? EventTypeCode.ITI_42_RegisterDocumentSetB
+						: new EventTypeCode("ITI-61", "IHE Transactions", "Register On-Demand Document Entry");
+				URL registryUrl = new URL(values[2]);
+				XDSAudit.logExport(eventTypeCode, values[0], values[1], XDSConstants.WS_ADDRESSING_ANONYMOUS, AuditLogger.processID(),
+						info.getLocalHost(), registryUrl.toExternalForm(), null, registryUrl.getHost(), null, null,
+						Boolean.parseBoolean(values[3]));
+				break;
+			case REPOSITORY_RETRIEVE_EXPORT:
+				XDSAudit.logRepositoryRetrieveExport(getRetrieveRequest(), getRetrieveResponse(), info);
+				break;
+		}
+	}
+
+	private RetrieveDocumentSetRequestType getRetrieveRequest() {
+		RetrieveDocumentSetRequestType req = new RetrieveDocumentSetRequestType();
+		int count = Integer.parseInt(values[1]);
+		for (int i = 0; i < count; i++) {
+			DocumentRequest documentRequest = new DocumentRequest();
+			documentRequest.setRepositoryUniqueId(values[2 + i * 3]);
+			documentRequest.setDocumentUniqueId(values[3 + i * 3]);
+			documentRequest.setHomeCommunityId(values[4 + i * 3]);
+			req.getDocumentRequest().add(documentRequest);
+		}
+		return req;
+	}
+
+	private RetrieveDocumentSetResponseType getRetrieveResponse() {
+		RetrieveDocumentSetResponseType rsp = new RetrieveDocumentSetResponseType();
+		if (values[0] != null) {
+			RegistryResponseType registryResponse = new RegistryResponseType();
+			registryResponse.setStatus(values[0]);
+			rsp.setRegistryResponse(registryResponse);
+		}
+		int offset = 2 + Integer.parseInt(values[1]) * 3;
+		int count = Integer.parseInt(values[offset]);
+		for (int i = 0; i < count; i++) {
+			DocumentResponse documentResponse = new DocumentResponse();
+			documentResponse.setRepositoryUniqueId(values[offset + 1 + i * 3]);
+			documentResponse.setDocumentUniqueId(values[offset + 2 + i * 3]);
+			documentResponse.setHomeCommunityId(values[offset + 3 + i * 3]);
+			rsp.getDocumentResponse().add(documentResponse);
+		}
+		return rsp;
+	}
+
+	/**
+	 * @return the event as a line of tab separated values, without the line terminator
+	 */
+	public String toLine() {
+		StringBuilder line = new StringBuilder(type.name()).append('\t').append(eventTime);
+		for (String value : values) {
+			line.append('\t').append(value == null ? NULL : escape(value));
+		}
+		return line.toString();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the line is not a valid event
+	 */
+	public static AuditEvent fromLine(String line) {
+		String[] fields = line.split("\t", -1);
+		if (fields.length < 2) {
+			throw new IllegalArgumentException("Missing event time: " + line);
+		}
+		String[] values = new String[fields.length - 2];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = NULL.equals(fields[i + 2]) ? null : unescape(fields[i + 2]);
+		}
+		return new AuditEvent(Type.valueOf(fields[0]), Long.parseLong(fields[1]), values);
+	}
+
+	private static String escape(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '\\': escaped.append("\\\\"); break;
+				case '\t': escaped.append("\\t"); break;
+				case '\n': escaped.append("\\n"); break;
+				case '\r': escaped.append("\\r"); break;
+				default: escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+
+	private static String unescape(String value) {
+		StringBuilder unescaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' && i + 1 < value.length()) {
+				char next = value.charAt(++i);
+				switch (next) {
+					case 't': unescaped.append('\t'); break;
+					case 'n': unescaped.append('\n'); break;
+					case 'r': unescaped.append('\r'); break;
+					default: unescaped.append(next);
+				}
+			} else {
+				unescaped.append(c);
+			}
+		}
+		return unescaped.toString();
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+
+		AuditEvent that = (AuditEvent) o;
+		return type == that.type && eventTime == that.eventTime && Arrays.equals(values, that.values);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = type.hashCode();
+		result = 31 * result + (int) (eventTime ^ (eventTime >>> 32));
+		return 31 * result + Arrays.hashCode(values);
+	}
+
+	@Override
+	public String toString() {
+		return toLine();
+	}
+
+}
@@ -0,0 +1,70 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.dcm4che3.audit.AuditMessage;
+import org.dcm4che3.net.IncompatibleConnectionException;
+import org.dcm4che3.net.audit.AuditLogger;
+import org.dcm4chee.xds2.common.audit.XDSAudit;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Calendar;
+
+/**
+ * Set on {@link XDSAudit} while an {@link AuditEvent} is sent, so that the message it builds carries the time
+ * the event happened rather than the time it was sent. The message is written with the configured logger.
+ * <p/>
+ * XDSAudit logs and swallows the failures of the logger, so the failure is also kept here for the event to
+ * be spilled.
+ */
+class EventTimeAuditLogger extends AuditLogger {
+
+	private final AuditLogger target;
+
+	private final Calendar eventTime;
+
+	private Exception failure;
+
+	EventTimeAuditLogger(AuditLogger target, Calendar eventTime) {
+		this.target = target;
+		this.eventTime = eventTime;
+		setAuditSourceID(target.getAuditSourceID());
+		setAuditEnterpriseSiteID(target.getAuditEnterpriseSiteID());
+		setAuditSourceTypeCodes(target.getAuditSourceTypeCodes());
+	}
+
+	@Override
+	public boolean isInstalled() {
+		return target.isInstalled();
+	}
+
+	@Override
+	public void write(Calendar timeStamp, AuditMessage message)
+			throws IncompatibleConnectionException, GeneralSecurityException, IOException {
+		if (message.getEventIdentification() != null) {
+			message.getEventIdentification().setEventDateTime(eventTime);
+		}
+		try {
+			target.write(eventTime, message);
+		} catch (IncompatibleConnectionException e) {
+			failure = e;
+			throw e;
+		} catch (GeneralSecurityException e) {
+			failure = e;
+			throw e;
+		} catch (IOException e) {
+			failure = e;
+			throw e;
+		} catch (RuntimeException e) {
+			failure = e;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the failure to write the message, or null if it was written
+	 */
+	Exception getFailure() {
+		return failure;
+	}
+
+}
@@ -0,0 +1,374 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact in-memory index from document unique id to the content handler class that stores the document,
+ * so that retrieving a document and checking a submitted document for duplicates rarely need a query.
+ * <p/>
+ * The index is an open addressing table (linear probing) of two primitive arrays: a 64 bit hash of each
+ * document unique id, and a one byte ordinal of its handler class. Handler class names and their loaded
+ * classes are interned per ordinal, there are typically only a handful. The ids themselves are not kept,
+ * which makes an entry 9 bytes of table rather than a few hundred bytes of strings and map entries. The cost
+ * is that two ids could share a hash, which is vanishingly unlikely at 64 bits, but a hit should be confirmed
+ * where a false one would matter.
+ * <p/>
+ * The index is loaded from the database in the background when the module starts and updated as mappings
+ * are committed. Until it has been loaded, and for documents registered by other nodes, a miss must be
+ * checked against the database, unless the index is configured to be authoritative.
+ * <p/>
+ * It keeps counts of its lookups and of the hits that the database did not confirm, which are shown on the
+ * module's admin page.
+ */
+public class DocumentHandlerIndex {
+
+	private static final Log log = LogFactory.getLog(DocumentHandlerIndex.class);
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// ordinals are stored as an unsigned byte, 0 marks an empty slot
+	private static final int MAX_HANDLERS = 255;
+
+	private static final DocumentHandlerIndex instance = new DocumentHandlerIndex(INITIAL_CAPACITY);
+
+	private final int initialCapacity;
+
+	private long[] hashes;
+
+	private byte[] ordinals;
+
+	private int size;
+
+	private final List<String> handlerNames = new ArrayList<String>();
+
+	private final List<Class<? extends ContentHandler>> handlerClasses = new ArrayList<Class<? extends ContentHandler>>();
+
+	private final Map<String, Integer> ordinalsByName = new HashMap<String, Integer>();
+
+	private boolean loading;
+
+	private boolean loaded;
+
+	// ids removed while loading, which the load must not add back from its older view of the table
+	private final Set<String> removedWhileLoading = new HashSet<String>();
+
+	private long lookupCount;
+
+	private long hitCount;
+
+	private long confirmedHitCount;
+
+	private long falsePositiveCount;
+
+	DocumentHandlerIndex(int initialCapacity) {
+		this.initialCapacity = Integer.highestOneBit(Math.max(initialCapacity, 2) - 1) << 1;
+		this.hashes = new long[this.initialCapacity];
+		this.ordinals = new byte[this.initialCapacity];
+	}
+
+	public static DocumentHandlerIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return true once every mapping in the database at start up has been loaded, from then on a miss means
+	 * the document is not known to this node
+	 */
+	public synchronized boolean isLoaded() {
+		return loaded;
+	}
+
+	public synchronized int getSize() {
+		return size;
+	}
+
+	public synchronized int getCapacity() {
+		return hashes.length;
+	}
+
+	/**
+	 * @return the size of the table in bytes, excluding the interned handler classes
+	 */
+	public synchronized long getMemoryBytes() {
+		return hashes.length * 9L;
+	}
+
+	public synchronized long getLookupCount() {
+		return lookupCount;
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getFalsePositiveCount() {
+		return falsePositiveCount;
+	}
+
+	/**
+	 * @return the share of the hits checked against the database that it did not confirm, or 0 if none were checked
+	 */
+	public synchronized double getFalsePositiveRate() {
+		return confirmedHitCount + falsePositiveCount == 0 ? 0 : (double) falsePositiveCount / (confirmedHitCount + falsePositiveCount);
+	}
+
+	/**
+	 * @return the probability that a lookup of an id that is not indexed hits anyway, given the number of hashes
+	 * in the table
+	 */
+	public synchronized double getExpectedFalsePositiveRate() {
+		return size / Math.pow(2, 64);
+	}
+
+	/**
+	 * Record whether the database confirmed a hit
+	 */
+	public synchronized void recordHitCheck(boolean confirmed) {
+		if (confirmed) {
+			confirmedHitCount++;
+		} else {
+			falsePositiveCount++;
+		}
+	}
+
+	/**
+	 * @return true if a document with this id is indexed
+	 */
+	public synchronized boolean contains(String documentUniqueId) {
+		return lookup(documentUniqueId) >= 0;
+	}
+
+	/**
+	 * @return the handler class of the document, or null if it is not indexed
+	 * @throws ClassNotFoundException if the indexed handler class cannot be loaded
+	 */
+	@SuppressWarnings("unchecked")
+	public Class<? extends ContentHandler> getHandlerClass(String documentUniqueId) throws ClassNotFoundException {
+		int ordinal;
+		String name;
+		synchronized (this) {
+			int slot = lookup(documentUniqueId);
+			if (slot < 0) {
+				return null;
+			}
+			ordinal = ordinals[slot] & 0xFF;
+			Class<? extends ContentHandler> handlerClass = handlerClasses.get(ordinal - 1);
+			if (handlerClass != null) {
+				return handlerClass;
+			}
+			name = handlerNames.get(ordinal - 1);
+		}
+
+		Class<? extends ContentHandler> handlerClass = (Class<? extends ContentHandler>) Context.loadClass(name);
+		synchronized (this) {
+			// unless the index was cleared meanwhile
+			if (ordinal <= handlerNames.size() && handlerNames.get(ordinal - 1).equals(name)) {
+				handlerClasses.set(ordinal - 1, handlerClass);
+			}
+		}
+		return handlerClass;
+	}
+
+	/**
+	 * @return the name of the handler class of the document, or null if it is not indexed
+	 */
+	synchronized String getHandlerClassName(String documentUniqueId) {
+		int slot = find(hash(documentUniqueId));
+		return slot < 0 ? null : handlerNames.get((ordinals[slot] & 0xFF) - 1);
+	}
+
+	/**
+	 * Index a committed mapping
+	 */
+	public synchronized void put(String documentUniqueId, String handlerClassName) {
+		removedWhileLoading.remove(documentUniqueId);
+		insert(documentUniqueId, handlerClassName);
+	}
+
+	/**
+	 * Remove a mapping that has been deleted
+	 */
+	public synchronized void remove(String documentUniqueId) {
+		if (loading) {
+			removedWhileLoading.add(documentUniqueId);
+		}
+		int slot = find(hash(documentUniqueId));
+		if (slot < 0) {
+			return;
+		}
+
+		// shift the following entries of the probe sequence back, so that no lookup stops early at the gap
+		int mask = hashes.length - 1;
+		int gap = slot;
+		int next = (gap + 1) & mask;
+		while (ordinals[next] != 0) {
+			int home = (int) hashes[next] & mask;
+			// move the entry unless its home slot lies cyclically after the gap and at or before its own slot
+			if (((next - home) & mask) >= ((next - gap) & mask)) {
+				hashes[gap] = hashes[next];
+				ordinals[gap] = ordinals[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		hashes[gap] = 0;
+		ordinals[gap] = 0;
+		size--;
+	}
+
+	/**
+	 * Start loading the index, mappings committed meanwhile may be put as usual
+	 */
+	public synchronized void beginLoad() {
+		loading = true;
+		loaded = false;
+		removedWhileLoading.clear();
+	}
+
+	/**
+	 * Index a mapping read by the load, unless it has been deleted since or the index was cleared
+	 */
+	public synchronized void load(String documentUniqueId, String handlerClassName) {
+		if (loading && !removedWhileLoading.contains(documentUniqueId)) {
+			insert(documentUniqueId, handlerClassName);
+		}
+	}
+
+	/**
+	 * @param complete true if every mapping was read, false if the load failed
+	 */
+	public synchronized void endLoad(boolean complete) {
+		if (!loading) {
+			// cleared meanwhile
+			return;
+		}
+		loading = false;
+		loaded = complete;
+		removedWhileLoading.clear();
+		log.info((complete ? "Indexed " : "Failed to index all documents, indexed ") + size + " documents by " + handlerNames.size()
+				+ " handlers");
+	}
+
+	public synchronized void clear() {
+		hashes = new long[initialCapacity];
+		ordinals = new byte[initialCapacity];
+		size = 0;
+		handlerNames.clear();
+		handlerClasses.clear();
+		ordinalsByName.clear();
+		loading = false;
+		loaded = false;
+		removedWhileLoading.clear();
+		lookupCount = 0;
+		hitCount = 0;
+		confirmedHitCount = 0;
+		falsePositiveCount = 0;
+	}
+
+	/**
+	 * Find the slot of an id and count the lookup
+	 */
+	private int lookup(String documentUniqueId) {
+		int slot = find(hash(documentUniqueId));
+		lookupCount++;
+		if (slot >= 0) {
+			hitCount++;
+		}
+		return slot;
+	}
+
+	private void insert(String documentUniqueId, String handlerClassName) {
+		Integer ordinal = ordinalsByName.get(handlerClassName);
+		if (ordinal == null) {
+			if (handlerNames.size() == MAX_HANDLERS) {
+				// not expected, such documents are simply looked up in the database
+				log.warn("Too many handler classes to index " + handlerClassName);
+				return;
+			}
+			handlerNames.add(handlerClassName);
+			handlerClasses.add(null);
+			ordinal = handlerNames.size();
+			ordinalsByName.put(handlerClassName, ordinal);
+		}
+
+		long hash = hash(documentUniqueId);
+		int slot = find(hash);
+		if (slot >= 0) {
+			ordinals[slot] = (byte) (int) ordinal;
+			return;
+		}
+		if ((size + 1) * 4L > hashes.length * 3L) {
+			resize(hashes.length * 2);
+		}
+		slot = (int) hash & (hashes.length - 1);
+		while (ordinals[slot] != 0) {
+			slot = (slot + 1) & (hashes.length - 1);
+		}
+		hashes[slot] = hash;
+		ordinals[slot] = (byte) (int) ordinal;
+		size++;
+	}
+
+	/**
+	 * @return the slot holding this hash, or -1
+	 */
+	private int find(long hash) {
+		int mask = hashes.length - 1;
+		int slot = (int) hash & mask;
+		while (ordinals[slot] != 0) {
+			if (hashes[slot] == hash) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void resize(int capacity) {
+		long[] oldHashes = hashes;
+		byte[] oldOrdinals = ordinals;
+		hashes = new long[capacity];
+		ordinals = new byte[capacity];
+		int mask = capacity - 1;
+		for (int i = 0; i < oldHashes.length; i++) {
+			if (oldOrdinals[i] != 0) {
+				int slot = (int) oldHashes[i] & mask;
+				while (ordinals[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				hashes[slot] = oldHashes[i];
+				ordinals[slot] = oldOrdinals[i];
+			}
+		}
+	}
+
+	/**
+	 * A 64 bit FNV-1a hash of the id, with the MurmurHash3 finalizer so that the low bits used for the home
+	 * slot depend on every character. The hash is also stored with each mapping in the database, so it must
+	 * not change.
+	 */
+	public static long hash(String documentUniqueId) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < documentUniqueId.length(); i++) {
+			h ^= documentUniqueId.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+}
@@ -0,0 +1,298 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.OpenmrsMetadata;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.Utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory, name indexed dictionaries of the encounter types, encounter roles and patient identifier types
+ * used by the repository. These are small and rarely change, so once warmed, ingestion needs no database
+ * round trips to resolve them.
+ * <p/>
+ * Entries are only published once the transaction that loaded or created them has committed, and the
+ * dictionaries are cleared when the metadata is changed through the OpenMRS services, see
+ * {@link MetadataDictionaryAdvice}.
+ */
+public class MetadataDictionary {
+
+	private static final Log log = LogFactory.getLog(MetadataDictionary.class);
+
+	// how long to wait for another transaction that is creating the same metadata
+	private static final long PENDING_TIMEOUT_SECONDS = 10;
+
+	private static final MetadataDictionary instance = new MetadataDictionary();
+
+	private final Dictionary<EncounterType> encounterTypes = new Dictionary<EncounterType>();
+
+	private final Dictionary<EncounterRole> encounterRoles = new Dictionary<EncounterRole>();
+
+	private final Dictionary<PatientIdentifierType> patientIdentifierTypes = new Dictionary<PatientIdentifierType>();
+
+	private volatile EncounterRole unknownEncounterRole;
+
+	private MetadataDictionary() {
+	}
+
+	public static MetadataDictionary getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Looks up a kind of metadata by name
+	 */
+	public interface Finder<T extends OpenmrsMetadata> {
+
+		/**
+		 * @return the metadata with this name, or null if there is none
+		 */
+		T find(String name);
+	}
+
+	/**
+	 * Looks up and creates a kind of metadata by name
+	 */
+	public interface Loader<T extends OpenmrsMetadata> extends Finder<T> {
+
+		/**
+		 * @return newly saved metadata with this name
+		 */
+		T create(String name);
+	}
+
+	/**
+	 * Load all the non retired metadata into the dictionaries
+	 */
+	public void warm() {
+		EncounterService es = Context.getEncounterService();
+		for (EncounterType type : es.getAllEncounterTypes(false)) {
+			encounterTypes.publish(type.getName(), type);
+		}
+		for (EncounterRole role : es.getAllEncounterRoles(false)) {
+			encounterRoles.publish(role.getName(), role);
+		}
+		unknownEncounterRole = es.getEncounterRoleByUuid(EncounterRole.UNKNOWN_ENCOUNTER_ROLE_UUID);
+
+		for (PatientIdentifierType type : Context.getPatientService().getAllPatientIdentifierTypes(false)) {
+			patientIdentifierTypes.publish(type.getName(), type);
+		}
+
+		log.info("Warmed the metadata dictionary with " + encounterTypes.size() + " encounter types, " + encounterRoles.size()
+				+ " encounter roles and " + patientIdentifierTypes.size() + " patient identifier types");
+	}
+
+	public EncounterType findOrCreateEncounterType(String name, Loader<EncounterType> loader) {
+		return encounterTypes.findOrCreate(name, loader);
+	}
+
+	public EncounterRole findOrCreateEncounterRole(String name, Loader<EncounterRole> loader) {
+		return encounterRoles.findOrCreate(name, loader);
+	}
+
+	public PatientIdentifierType findOrCreatePatientIdentifierType(String name, Loader<PatientIdentifierType> loader) {
+		return patientIdentifierTypes.findOrCreate(name, loader);
+	}
+
+	/**
+	 * Look metadata up without creating it or waiting for a transaction that is creating it, and keep it in the
+	 * dictionary if it exists
+	 *
+	 * @return the metadata with this name, or null if there is none
+	 */
+	public EncounterType findEncounterType(String name, Finder<EncounterType> finder) {
+		return encounterTypes.find(name, finder);
+	}
+
+	public EncounterRole findEncounterRole(String name, Finder<EncounterRole> finder) {
+		return encounterRoles.find(name, finder);
+	}
+
+	public PatientIdentifierType findPatientIdentifierType(String name, Finder<PatientIdentifierType> finder) {
+		return patientIdentifierTypes.find(name, finder);
+	}
+
+	/**
+	 * @return true if the dictionary holds an encounter type with this name, which then needn't be created
+	 */
+	public boolean hasEncounterType(String name) {
+		return encounterTypes.contains(name);
+	}
+
+	public boolean hasEncounterRole(String name) {
+		return encounterRoles.contains(name);
+	}
+
+	public boolean hasPatientIdentifierType(String name) {
+		return patientIdentifierTypes.contains(name);
+	}
+
+	/**
+	 * @return the encounter role used when an author has no role
+	 */
+	public EncounterRole getUnknownEncounterRole() {
+		EncounterRole role = unknownEncounterRole;
+		if (role == null) {
+			final EncounterRole loaded = Context.getEncounterService().getEncounterRoleByUuid(EncounterRole.UNKNOWN_ENCOUNTER_ROLE_UUID);
+			if (loaded != null) {
+				Utils.afterCompletion(new Runnable() {
+					@Override
+					public void run() {
+						unknownEncounterRole = loaded;
+					}
+				}, null);
+			}
+			role = loaded;
+		}
+		return role;
+	}
+
+	public void clearEncounterTypes() {
+		encounterTypes.clear();
+	}
+
+	public void clearEncounterRoles() {
+		encounterRoles.clear();
+		unknownEncounterRole = null;
+	}
+
+	public void clearPatientIdentifierTypes() {
+		patientIdentifierTypes.clear();
+	}
+
+	public void clear() {
+		clearEncounterTypes();
+		clearEncounterRoles();
+		clearPatientIdentifierTypes();
+	}
+
+	/**
+	 * A name indexed dictionary of one kind of metadata with race free find-or-create
+	 */
+	private static class Dictionary<T extends OpenmrsMetadata> {
+
+		private final ConcurrentMap<String, T> entries = new ConcurrentHashMap<String, T>();
+
+		// names that a transaction is currently loading or creating
+		private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+
+		T findOrCreate(final String name, Loader<T> loader) {
+			T value = entries.get(name);
+			if (value != null) {
+				return value;
+			}
+
+			final Pending mine = new Pending();
+			while (true) {
+				Pending other = pending.putIfAbsent(name, mine);
+				if (other == null) {
+					break;
+				}
+				if (other.owner == Thread.currentThread()) {
+					// created earlier in this transaction, it is visible to our own session
+					value = loader.find(name);
+					if (value != null) {
+						return value;
+					}
+					break;
+				}
+				// wait for the other transaction to complete rather than creating a duplicate
+				if (!other.await()) {
+					log.warn("Timed out waiting for another transaction to create metadata '" + name + "'");
+					break;
+				}
+				value = entries.get(name);
+				if (value != null) {
+					return value;
+				}
+				// the other transaction rolled back, try again
+			}
+
+			boolean registered = false;
+			try {
+				value = loader.find(name);
+				if (value == null) {
+					value = loader.create(name);
+				}
+
+				final T result = value;
+				Utils.afterCompletion(new Runnable() {
+					@Override
+					public void run() {
+						entries.put(name, result);
+					}
+				}, new Runnable() {
+					@Override
+					public void run() {
+						release(name, mine);
+					}
+				});
+				registered = true;
+				return value;
+			} finally {
+				if (!registered) {
+					release(name, mine);
+				}
+			}
+		}
+
+		T find(String name, Finder<T> finder) {
+			T value = entries.get(name);
+			if (value == null) {
+				// looked up by a transaction that creates nothing, so what it finds is committed
+				value = finder.find(name);
+				if (value != null) {
+					entries.putIfAbsent(name, value);
+				}
+			}
+			return value;
+		}
+
+		boolean contains(String name) {
+			return entries.containsKey(name);
+		}
+
+		void publish(String name, T value) {
+			entries.put(name, value);
+		}
+
+		void clear() {
+			entries.clear();
+		}
+
+		int size() {
+			return entries.size();
+		}
+
+		private void release(String name, Pending mine) {
+			pending.remove(name, mine);
+			mine.latch.countDown();
+		}
+	}
+
+	private static class Pending {
+
+		private final Thread owner = Thread.currentThread();
+
+		private final CountDownLatch latch = new CountDownLatch(1);
+
+		boolean await() {
+			try {
+				return latch.await(PENDING_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+}
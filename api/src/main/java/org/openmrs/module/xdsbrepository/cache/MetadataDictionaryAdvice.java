@@ -0,0 +1,34 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
+import org.openmrs.PatientIdentifierType;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Clears the {@link MetadataDictionary} when encounter types, encounter roles or patient identifier types
+ * are saved, retired or purged. Registered as advice on the EncounterService and PatientService in config.xml.
+ */
+public class MetadataDictionaryAdvice implements AfterReturningAdvice {
+
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (args == null || method.getName().startsWith("get")) {
+			return;
+		}
+
+		MetadataDictionary dictionary = MetadataDictionary.getInstance();
+		for (Object arg : args) {
+			if (arg instanceof EncounterType) {
+				dictionary.clearEncounterTypes();
+			} else if (arg instanceof EncounterRole) {
+				dictionary.clearEncounterRoles();
+			} else if (arg instanceof PatientIdentifierType) {
+				dictionary.clearPatientIdentifierTypes();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,138 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded, least recently used cache from an enterprise patient identifier (assigning authority id and
+ * identifier) to the id of the OpenMRS patient that holds it.
+ * <p/>
+ * Entries are only hints: callers must check that the patient they load still holds the identifier, so a
+ * stale entry (e.g. from a rolled back transaction or a change made on another node) costs a lookup but
+ * never resolves to the wrong patient. Entries are invalidated when patients are changed through the
+ * PatientService, see {@link PatientCacheAdvice}.
+ */
+public class PatientCache {
+
+	public static final int MAX_SIZE = 10000;
+
+	private static final PatientCache instance = new PatientCache(MAX_SIZE);
+
+	private final LinkedHashMap<Key, Integer> patientIds;
+
+	// the keys held for each patient, so that a patient can be invalidated without scanning the cache
+	private final Map<Integer, Set<Key>> keysByPatientId = new HashMap<Integer, Set<Key>>();
+
+	PatientCache(final int maxSize) {
+		this.patientIds = new LinkedHashMap<Key, Integer>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Integer> eldest) {
+				if (size() > maxSize) {
+					removeKey(eldest.getValue(), eldest.getKey());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public static PatientCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return the id of the patient with this identifier, or null if it is not cached
+	 */
+	public synchronized Integer get(String assigningAuthorityId, String identifier) {
+		return patientIds.get(new Key(assigningAuthorityId, identifier));
+	}
+
+	public synchronized void put(String assigningAuthorityId, String identifier, Integer patientId) {
+		Key key = new Key(assigningAuthorityId, identifier);
+		Integer previous = patientIds.put(key, patientId);
+		if (previous != null) {
+			removeKey(previous, key);
+		}
+		Set<Key> keys = keysByPatientId.get(patientId);
+		if (keys == null) {
+			keys = new HashSet<Key>();
+			keysByPatientId.put(patientId, keys);
+		}
+		keys.add(key);
+	}
+
+	/**
+	 * Remove a single identifier from the cache
+	 */
+	public synchronized void remove(String assigningAuthorityId, String identifier) {
+		Key key = new Key(assigningAuthorityId, identifier);
+		Integer patientId = patientIds.remove(key);
+		if (patientId != null) {
+			removeKey(patientId, key);
+		}
+	}
+
+	/**
+	 * Remove all the identifiers of a patient from the cache
+	 */
+	public synchronized void invalidatePatient(Integer patientId) {
+		Set<Key> keys = keysByPatientId.remove(patientId);
+		if (keys != null) {
+			for (Key key : keys) {
+				patientIds.remove(key);
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		patientIds.clear();
+		keysByPatientId.clear();
+	}
+
+	public synchronized int size() {
+		return patientIds.size();
+	}
+
+	private void removeKey(Integer patientId, Key key) {
+		Set<Key> keys = keysByPatientId.get(patientId);
+		if (keys != null) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				keysByPatientId.remove(patientId);
+			}
+		}
+	}
+
+	private static class Key {
+
+		private final String assigningAuthorityId;
+
+		private final String identifier;
+
+		private final int hash;
+
+		Key(String assigningAuthorityId, String identifier) {
+			this.assigningAuthorityId = assigningAuthorityId;
+			this.identifier = identifier;
+			this.hash = 31 * assigningAuthorityId.hashCode() + identifier.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (!(o instanceof Key)) return false;
+
+			Key that = (Key) o;
+			return hash == that.hash && identifier.equals(that.identifier) && assigningAuthorityId.equals(that.assigningAuthorityId);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+}
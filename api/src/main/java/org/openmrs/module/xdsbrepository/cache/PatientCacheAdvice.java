@@ -0,0 +1,56 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import org.openmrs.Patient;
+import org.openmrs.PatientIdentifier;
+import org.openmrs.PatientIdentifierType;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+/**
+ * Invalidates the {@link PatientCache} when patients, their identifiers or identifier types are changed
+ * through the PatientService. Registered as advice on the PatientService in config.xml.
+ */
+public class PatientCacheAdvice implements AfterReturningAdvice {
+
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		String name = method.getName();
+		if (!(name.startsWith("save") || name.startsWith("void") || name.startsWith("unvoid")
+				|| name.startsWith("merge") || name.startsWith("purge") || name.startsWith("retire")
+				|| name.startsWith("unretire"))) {
+			return;
+		}
+
+		if (args != null) {
+			for (Object arg : args) {
+				invalidate(arg);
+			}
+		}
+	}
+
+	private void invalidate(Object arg) {
+		PatientCache cache = PatientCache.getInstance();
+		if (arg instanceof Patient) {
+			Integer patientId = ((Patient) arg).getPatientId();
+			if (patientId != null) {
+				cache.invalidatePatient(patientId);
+			}
+		} else if (arg instanceof PatientIdentifier) {
+			Patient patient = ((PatientIdentifier) arg).getPatient();
+			if (patient != null && patient.getPatientId() != null) {
+				cache.invalidatePatient(patient.getPatientId());
+			}
+		} else if (arg instanceof PatientIdentifierType) {
+			// the cache is keyed by identifier type name, which may have changed
+			cache.clear();
+		} else if (arg instanceof Collection) {
+			// e.g. mergePatients(Patient, List<Patient>)
+			for (Object o : (Collection<?>) arg) {
+				invalidate(o);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,291 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.Provider;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.XDSbService;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An in-memory index of providers by identifier and by name, used to resolve document authors without
+ * scanning every provider.
+ * <p/>
+ * The name index is keyed by the lower case provider name, so a prefix lookup on the given name narrows the
+ * candidates down before the exact, case sensitive startsWith/contains match is applied. Identifiers that are
+ * known not to exist are remembered for a short while (negative caching).
+ * <p/>
+ * The index is kept in sync incrementally by {@link ProviderIndexAdvice} and is rebuilt periodically by
+ * {@link org.openmrs.module.xdsbrepository.tasks.ProviderIndexRefreshTask} to pick up providers created on other
+ * nodes, which {@link #catchUp()} also does on demand before a provider is created. Requests never rebuild an
+ * index that has been built, they keep using it while it is refreshed. Entries are only hints: callers must
+ * check the provider they load still matches.
+ */
+public class ProviderIndex {
+
+	private static final Log log = LogFactory.getLog(ProviderIndex.class);
+
+	public static final long REFRESH_INTERVAL_MS = 10 * 60 * 1000L;
+
+	private static final int MAX_MISSING_IDENTIFIERS = 10000;
+
+	private static final long MISSING_IDENTIFIER_TTL_MS = 60 * 1000L;
+
+	private static final ProviderIndex instance = new ProviderIndex();
+
+	private final Map<String, Integer> byIdentifier = new HashMap<String, Integer>();
+
+	private final TreeMap<String, Set<Integer>> byName = new TreeMap<String, Set<Integer>>();
+
+	private final Map<Integer, IndexEntry> entries = new HashMap<Integer, IndexEntry>();
+
+	// identifiers that are known not to exist, with the time they were looked up
+	private final LinkedHashMap<String, Long> missingIdentifiers = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return size() > MAX_MISSING_IDENTIFIERS;
+		}
+	};
+
+	// allowance for the clocks of the nodes that share the database not agreeing
+	private static final long CLOCK_SKEW_MS = 60 * 1000L;
+
+	private long builtAt = -1;
+
+	private long syncedAt = -1;
+
+	// set while a thread loads the providers for the first build, the others wait for it
+	private boolean building;
+
+	private ProviderIndex() {
+	}
+
+	public static ProviderIndex getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Build the index if it has not been built yet. Only one thread loads the providers, the others wait for
+	 * it to finish.
+	 */
+	public void ensureBuilt() {
+		synchronized (this) {
+			while (builtAt < 0 && building) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			if (builtAt >= 0) {
+				return;
+			}
+			building = true;
+		}
+		try {
+			refresh();
+		} finally {
+			synchronized (this) {
+				building = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Rebuild the index from the database. The current index is used until the providers have been loaded.
+	 */
+	public void refresh() {
+		long loadedAt = System.currentTimeMillis();
+		List<Provider> providers = Context.getProviderService().getAllProviders();
+		synchronized (this) {
+			build(providers);
+			// providers changed while they were loaded are picked up by the next catch up
+			syncedAt = loadedAt;
+		}
+	}
+
+	/**
+	 * Replace the contents of the index with these providers
+	 */
+	public synchronized void build(List<Provider> providers) {
+		byIdentifier.clear();
+		byName.clear();
+		entries.clear();
+		missingIdentifiers.clear();
+		for (Provider provider : providers) {
+			add(provider);
+		}
+		builtAt = System.currentTimeMillis();
+		syncedAt = builtAt;
+		log.debug("Indexed " + entries.size() + " providers");
+	}
+
+	/**
+	 * Add the providers that were created or changed since the index was last built or caught up, e.g. by
+	 * another node, without waiting for the next rebuild
+	 */
+	public void catchUp() {
+		ensureBuilt();
+		long since;
+		synchronized (this) {
+			since = syncedAt - CLOCK_SKEW_MS;
+		}
+		long now = System.currentTimeMillis();
+		List<Provider> providers = Context.getService(XDSbService.class).getProvidersChangedSince(new Date(since));
+		synchronized (this) {
+			for (Provider provider : providers) {
+				update(provider);
+			}
+			syncedAt = Math.max(syncedAt, now);
+		}
+	}
+
+	/**
+	 * @return the id of the provider with this identifier, or null if it is not indexed
+	 */
+	public synchronized Integer getProviderIdByIdentifier(String identifier) {
+		return byIdentifier.get(identifier);
+	}
+
+	/**
+	 * @return true if a recent lookup found no provider with this identifier
+	 */
+	public synchronized boolean isMissingIdentifier(String identifier) {
+		Long lookedUpAt = missingIdentifiers.get(identifier);
+		if (lookedUpAt == null) {
+			return false;
+		}
+		if (System.currentTimeMillis() - lookedUpAt > MISSING_IDENTIFIER_TTL_MS) {
+			missingIdentifiers.remove(identifier);
+			return false;
+		}
+		return true;
+	}
+
+	public synchronized void markMissingIdentifier(String identifier) {
+		missingIdentifiers.put(identifier, System.currentTimeMillis());
+	}
+
+	/**
+	 * Find a non retired provider whose name starts with the given name and contains the family name. When
+	 * there are several the one with the lowest id is returned.
+	 *
+	 * @return the provider id, or null if there is no such provider
+	 */
+	public synchronized Integer findProviderIdByName(String givenName, String familyName) {
+		String prefix = normalize(givenName);
+		SortedMap<String, Set<Integer>> candidates = byName.subMap(prefix, prefix + Character.MAX_VALUE);
+
+		Integer result = null;
+		for (Set<Integer> ids : candidates.values()) {
+			for (Integer id : ids) {
+				String name = entries.get(id).name;
+				if (name.startsWith(givenName) && name.contains(familyName) && (result == null || id < result)) {
+					result = id;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Add or refresh a provider in the index
+	 */
+	public synchronized void update(Provider provider) {
+		if (provider.getProviderId() == null) {
+			return;
+		}
+		remove(provider.getProviderId());
+		add(provider);
+	}
+
+	/**
+	 * Remove a provider from the index
+	 */
+	public synchronized void remove(Integer providerId) {
+		IndexEntry entry = entries.remove(providerId);
+		if (entry == null) {
+			return;
+		}
+		if (entry.identifier != null && providerId.equals(byIdentifier.get(entry.identifier))) {
+			byIdentifier.remove(entry.identifier);
+		}
+		if (entry.name != null) {
+			String key = normalize(entry.name);
+			Set<Integer> ids = byName.get(key);
+			if (ids != null) {
+				ids.remove(providerId);
+				if (ids.isEmpty()) {
+					byName.remove(key);
+				}
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		byIdentifier.clear();
+		byName.clear();
+		entries.clear();
+		missingIdentifiers.clear();
+		builtAt = -1;
+		syncedAt = -1;
+	}
+
+	private void add(Provider provider) {
+		Integer providerId = provider.getProviderId();
+		String identifier = provider.getIdentifier();
+		// retired providers can still be found by identifier, but not by name
+		String name = provider.isRetired() ? null : provider.getName();
+		entries.put(providerId, new IndexEntry(identifier, name));
+
+		if (identifier != null) {
+			byIdentifier.put(identifier, providerId);
+			missingIdentifiers.remove(identifier);
+		}
+		if (name != null) {
+			String key = normalize(name);
+			Set<Integer> ids = byName.get(key);
+			if (ids == null) {
+				ids = new HashSet<Integer>();
+				byName.put(key, ids);
+			}
+			ids.add(providerId);
+		}
+	}
+
+	/**
+	 * Lower case each character on its own (unlike String.toLowerCase, which is context sensitive), so that
+	 * a name that starts with a prefix always has a normalized form that starts with the normalized prefix
+	 */
+	private static String normalize(String name) {
+		char[] chars = new char[name.length()];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(name.charAt(i));
+		}
+		return new String(chars);
+	}
+
+	private static class IndexEntry {
+
+		private final String identifier;
+
+		private final String name;
+
+		IndexEntry(String identifier, String name) {
+			this.identifier = identifier;
+			this.name = name;
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import org.openmrs.Provider;
+import org.springframework.aop.AfterReturningAdvice;
+
+import java.lang.reflect.Method;
+
+/**
+ * Keeps the {@link ProviderIndex} in sync when providers are saved, retired or purged. Registered as advice
+ * on the ProviderService in config.xml.
+ */
+public class ProviderIndexAdvice implements AfterReturningAdvice {
+
+	@Override
+	public void afterReturning(Object returnValue, Method method, Object[] args, Object target) throws Throwable {
+		if (args == null || args.length == 0 || !(args[0] instanceof Provider)) {
+			return;
+		}
+
+		String name = method.getName();
+		Provider provider = (Provider) args[0];
+		ProviderIndex index = ProviderIndex.getInstance();
+		if (name.equals("saveProvider") || name.equals("retireProvider") || name.equals("unretireProvider")) {
+			index.update(provider);
+		} else if (name.equals("purgeProvider") && provider.getProviderId() != null) {
+			index.remove(provider.getProviderId());
+		}
+	}
+
+}
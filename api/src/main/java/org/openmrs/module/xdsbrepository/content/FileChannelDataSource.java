@@ -0,0 +1,71 @@
+package org.openmrs.module.xdsbrepository.content;
+
+import javax.activation.DataSource;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A read-only data source for a document stored in a file. The file is opened for each read, so the document
+ * is never held in memory by the data source itself, and {@link #writeTo(OutputStream)} copies it to the output
+ * with a channel transfer rather than a read and write loop.
+ */
+public class FileChannelDataSource implements DataSource {
+
+	private final File file;
+
+	private final String contentType;
+
+	public FileChannelDataSource(File file, String contentType) {
+		this.file = file;
+		this.contentType = contentType;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return new FileInputStream(file);
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("Stored documents cannot be written to");
+	}
+
+	@Override
+	public String getContentType() {
+		return contentType;
+	}
+
+	@Override
+	public String getName() {
+		return file.getName();
+	}
+
+	public long getLength() {
+		return file.length();
+	}
+
+	/**
+	 * Copy the whole file to the output stream
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			WritableByteChannel target = Channels.newChannel(out);
+			long position = 0;
+			long size = channel.size();
+			while (position < size) {
+				position += channel.transferTo(position, size - position, target);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,300 @@
+package org.openmrs.module.xdsbrepository.content;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.shr.contenthandler.api.Content;
+import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
+import org.openmrs.module.xdsbrepository.XDSbConfiguration;
+import org.openmrs.module.xdsbrepository.impl.DocumentProcessingPool;
+import org.openmrs.module.xdsbrepository.model.DocumentDetails;
+
+import javax.activation.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the documents of one Retrieve Document Set response within a budget of in-flight bytes.
+ * <p/>
+ * Each document is fetched once, by the pipeline. A document whose mime type and size were stored with its
+ * mapping is described without fetching it, and fetched ahead on worker threads as soon as it fits in the budget,
+ * so the first documents are fetched while the response is still being built. Any other document is fetched when
+ * it is added, to describe it, and held until it is written even if it does not fit. Parts are written in request
+ * order, and as each one is written and released the following documents are fetched ahead, as far as the budget
+ * allows. The heap used by a response is therefore bounded by the budget, or by its largest document if that is
+ * larger, plus the documents that could not be described without fetching them.
+ * <p/>
+ * The documents are fetched after the request's OpenMRS session may have been closed, so the workers open their
+ * own session as the requesting user.
+ */
+public class RetrievePipeline {
+
+	private static final Log log = LogFactory.getLog(RetrievePipeline.class);
+
+	private final long budget;
+
+	private final UserContext userContext;
+
+	private final List<PipelinedDataSource> sources = new ArrayList<PipelinedDataSource>();
+
+	// guarded by this
+	private long inFlight;
+
+	// the first document that may still need fetching ahead, guarded by this
+	private int nextToFetch;
+
+	/**
+	 * @param budget the number of bytes of payload the response may hold in memory
+	 * @param userContext the context of the requesting user, used to fetch the documents
+	 */
+	public RetrievePipeline(long budget, UserContext userContext) {
+		this.budget = budget;
+		this.userContext = userContext;
+	}
+
+	/**
+	 * Add the next document of the response. If its details are not known it is fetched now, see
+	 * {@link PipelinedDataSource#getContent()}.
+	 *
+	 * @param handlerClass the handler to fetch the document from, null for the default handler
+	 * @param documentUniqueId the id to fetch the document by
+	 * @param details the mime type and size the document was stored with, or null if they aren't known
+	 * @return the data source to attach to the response
+	 */
+	public PipelinedDataSource add(Class<? extends ContentHandler> handlerClass, String documentUniqueId, DocumentDetails details) {
+		PipelinedDataSource source;
+		synchronized (this) {
+			source = new PipelinedDataSource(handlerClass, documentUniqueId, details);
+			sources.add(source);
+			if (details == null) {
+				// needed now, and held until it is written
+				startFetch(source);
+			}
+		}
+		fetchAhead();
+		return source;
+	}
+
+	public synchronized long getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Start fetching the next documents that aren't fetched yet, in order, while they fit in the budget. The first
+	 * one is fetched when nothing else is held, even if it is larger than the budget.
+	 */
+	private synchronized void fetchAhead() {
+		while (nextToFetch < sources.size()) {
+			PipelinedDataSource source = sources.get(nextToFetch);
+			if (source.content == null && source.fetch == null && !source.written) {
+				if (inFlight > 0 && inFlight + source.length > budget) {
+					return;
+				}
+				startFetch(source);
+			}
+			nextToFetch++;
+		}
+	}
+
+	// guarded by this
+	private void startFetch(final PipelinedDataSource source) {
+		if (source.length > 0) {
+			source.counted = true;
+			inFlight += source.length;
+		}
+		source.fetch = DocumentProcessingPool.getRetrieveExecutor(XDSbConfiguration.getInstance().getRetrievePoolSize()).submit(new Callable<Content>() {
+			@Override
+			public Content call() {
+				Context.openSession();
+				Context.setUserContext(userContext);
+				try {
+					ContentHandlerService chs = Context.getService(ContentHandlerService.class);
+					ContentHandler handler = source.handlerClass != null ? chs.getContentHandlerByClass(source.handlerClass) : null;
+					if (handler == null) {
+						handler = chs.getDefaultUnstructuredHandler();
+					}
+					return handler.fetchContent(source.contentId);
+				} finally {
+					Context.closeSession();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Wait for a document to be fetched, fetching it now if it hasn't been, and hold it until it is written
+	 *
+	 * @return the document, or null if it was not found
+	 */
+	private Content fetched(PipelinedDataSource source) throws IOException {
+		Future<Content> fetch;
+		synchronized (this) {
+			if (source.content != null) {
+				return source.content;
+			}
+			if (source.fetch == null) {
+				// needed now, even if it doesn't fit in the budget (or being read a second time)
+				log.debug("Document " + source.contentId + " is fetched as it is written");
+				startFetch(source);
+			}
+			fetch = source.fetch;
+		}
+
+		Content content;
+		try {
+			content = fetch.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while fetching document " + source.contentId);
+		} catch (ExecutionException e) {
+			release(source);
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not fetch document " + source.contentId + ": " + e.getCause(), e.getCause());
+		}
+		if (content == null) {
+			release(source);
+			return null;
+		}
+
+		synchronized (this) {
+			source.content = content;
+			if (source.contentType == null) {
+				source.contentType = content.getContentType();
+			}
+			// count the document as it is, rather than the size it was stored with
+			long length = content.getPayload().length;
+			if (source.counted) {
+				inFlight += length - source.length;
+			} else {
+				inFlight += length;
+				source.counted = true;
+			}
+			source.length = length;
+		}
+		return content;
+	}
+
+	private byte[] take(PipelinedDataSource source) throws IOException {
+		Content content = fetched(source);
+		if (content == null) {
+			throw new IOException("Document " + source.contentId + " is no longer available");
+		}
+		fetchAhead();
+		return content.getPayload();
+	}
+
+	private void release(PipelinedDataSource source) {
+		synchronized (this) {
+			source.written = true;
+			source.content = null;
+			source.fetch = null;
+			if (source.counted) {
+				source.counted = false;
+				inFlight -= source.length;
+			}
+		}
+		fetchAhead();
+	}
+
+	/**
+	 * A document of the response, whose payload is released once it has been read, and fetched again should it
+	 * be read a second time. Its state is guarded by the pipeline.
+	 */
+	public class PipelinedDataSource implements DataSource {
+
+		private final Class<? extends ContentHandler> handlerClass;
+
+		private final String contentId;
+
+		// the mime type the document was stored with, or once fetched the one it was fetched with
+		private String contentType;
+
+		// the size the document was stored with until it has been fetched, 0 if it isn't known
+		private long length;
+
+		private Content content;
+
+		private Future<Content> fetch;
+
+		// true once the document has been read, so that it isn't fetched ahead again
+		private boolean written;
+
+		// true while the document's length is counted in the in-flight bytes
+		private boolean counted;
+
+		PipelinedDataSource(Class<? extends ContentHandler> handlerClass, String contentId, DocumentDetails details) {
+			this.handlerClass = handlerClass;
+			this.contentId = contentId;
+			this.contentType = details != null ? details.getMimeType() : null;
+			this.length = details != null ? details.getSize() : 0;
+		}
+
+		/**
+		 * Wait for the document to be fetched, to describe a document that was added without its details. The
+		 * document is held until it is written, rather than fetched again.
+		 *
+		 * @return the document, or null if it was not found, in which case it is not part of the response
+		 */
+		public Content getContent() throws IOException {
+			return fetched(this);
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new ByteArrayInputStream(take(this)) {
+
+				@Override
+				public synchronized int read() {
+					int b = super.read();
+					if (b < 0) {
+						release(PipelinedDataSource.this);
+					}
+					return b;
+				}
+
+				@Override
+				public synchronized int read(byte[] b, int off, int len) {
+					int n = super.read(b, off, len);
+					if (n < 0) {
+						release(PipelinedDataSource.this);
+					}
+					return n;
+				}
+
+				@Override
+				public void close() throws IOException {
+					release(PipelinedDataSource.this);
+				}
+			};
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Retrieved documents cannot be written to");
+		}
+
+		@Override
+		public String getContentType() {
+			synchronized (RetrievePipeline.this) {
+				return contentType;
+			}
+		}
+
+		@Override
+		public String getName() {
+			return contentId;
+		}
+	}
+
+}
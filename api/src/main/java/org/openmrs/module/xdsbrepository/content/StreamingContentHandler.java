@@ -0,0 +1,24 @@
+package org.openmrs.module.xdsbrepository.content;
+
+import javax.activation.DataSource;
+
+/**
+ * Implemented by content handlers that can stream a stored document rather than loading its whole payload
+ * into a {@link org.openmrs.module.shr.contenthandler.api.Content} object. Retrieve Document Set responses
+ * then read the document from storage when the MTOM attachment is written, instead of holding it in memory from
+ * when it is fetched. The data source is opened once when it is fetched, so a document that cannot be read is
+ * reported as an error for that document.
+ * <p/>
+ * The data source is read after the request's OpenMRS session has been closed, so it must not depend on it.
+ * For documents stored in files, see {@link FileChannelDataSource}.
+ */
+public interface StreamingContentHandler {
+
+	/**
+	 * @param contentId the unique id of the document
+	 * @return a data source for the document, or null if the handler cannot stream it, in which case
+	 * fetchContent is used
+	 */
+	DataSource fetchContentDataSource(String contentId);
+
+}
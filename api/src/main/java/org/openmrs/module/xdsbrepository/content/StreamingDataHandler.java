@@ -0,0 +1,28 @@
+package org.openmrs.module.xdsbrepository.content;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A data handler that writes a {@link FileChannelDataSource} with its own channel transfer, other data sources
+ * are copied from their input stream as usual
+ */
+public class StreamingDataHandler extends DataHandler {
+
+	public StreamingDataHandler(DataSource dataSource) {
+		super(dataSource);
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		DataSource dataSource = getDataSource();
+		if (dataSource instanceof FileChannelDataSource) {
+			((FileChannelDataSource) dataSource).writeTo(out);
+		} else {
+			super.writeTo(out);
+		}
+	}
+
+}
@@ -1,19 +1,57 @@
 package org.openmrs.module.xdsbrepository.db;
 
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Provider;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+import org.openmrs.module.xdsbrepository.cache.DocumentHandlerIndex;
+import org.openmrs.module.xdsbrepository.model.DocumentDetails;
+import org.openmrs.module.xdsbrepository.model.OutboxItem;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
 @Transactional
 public interface XDSbDAO {
 	
 	void registerDocument(String docId, Class<? extends ContentHandler> contentHandler);
+
+	void registerDocuments(Map<String, Class<? extends ContentHandler>> contentHandlers);
+
+	void registerDocuments(Map<String, Class<? extends ContentHandler>> contentHandlers, Map<String, DocumentDetails> details);
+
+	void deleteDocumentMappings(Collection<String> docIds);
 	
 	Class<? extends ContentHandler> getDocumentHandlerClass(String documentUniqueId) throws ClassNotFoundException;
 
+	Map<String, String> getDocumentHandlerClassNames(Collection<String> docIds);
+
+	Map<String, DocumentDetails> getDocumentDetails(Collection<String> docIds);
+
+	void loadDocumentHandlerIndex(DocumentHandlerIndex index);
+
+	Integer backfillDocumentMappings(int afterId);
+
+	void clearCaches();
+
 	QueueItem queueDiscreteDataProcessing(QueueItem qi);
 
-	QueueItem dequeueNextDiscreteDataForProcessing();
+	QueueItem claimNextQueueItem(Date now, boolean skipLocked);
 
 	QueueItem updateQueueItem(QueueItem qi);
+
+	OutboxItem saveOutboxItem(OutboxItem item);
+
+	List<OutboxItem> getDueOutboxItems(Date now, Date staleBefore, int max);
+
+	boolean claimOutboxItem(OutboxItem item, Date now, Date staleBefore);
+
+	List<Integer> getPatientIdsByIdentifier(String identifier, PatientIdentifierType identifierType);
+
+	void lockStripe(int stripe);
+
+	List<Provider> getProvidersChangedSince(Date since);
 }
@@ -1,39 +1,259 @@
 package org.openmrs.module.xdsbrepository.db.hibernate;
 
 import org.hibernate.Query;
+import org.hibernate.SQLQuery;
+import org.hibernate.type.StandardBasicTypes;
+import org.openmrs.PatientIdentifierType;
+import org.openmrs.Provider;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.db.hibernate.DbSession;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.cache.DocumentHandlerIndex;
 import org.openmrs.module.xdsbrepository.db.XDSbDAO;
+import org.openmrs.module.xdsbrepository.model.DocHandler;
 import org.openmrs.module.xdsbrepository.model.DocHandlerMapping;
+import org.openmrs.module.xdsbrepository.model.DocumentDetails;
+import org.openmrs.module.xdsbrepository.model.LockStripe;
+import org.openmrs.module.xdsbrepository.model.OutboxItem;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 public class HibernateXDSbDAO implements XDSbDAO {
 
+    private static final int INDEX_PAGE_SIZE = 10000;
+
+    private static final int BATCH_SIZE = 500;
+
+    private static final int BACKFILL_BATCH_SIZE = 1000;
+
+    private static final int QUEUE_CLAIM_CANDIDATES = 10;
+
+    // the ids of the handler classes in the dictionary, only added once the transaction that read them commits
+    private final Map<String, Integer> handlerIds = new ConcurrentHashMap<String, Integer>();
+
+    // true once every mapping has a doc_id_hash, from then on lookups go through idx_doc_id_hash
+    private volatile boolean hashLookups;
+
     private DbSessionFactory sessionFactory;
 
 	@Override
 	public void registerDocument(String docId,
 			Class<? extends ContentHandler> contentHandler) {
+		DbSession session = sessionFactory.getCurrentSession();
 		DocHandlerMapping docMap = new DocHandlerMapping();
 		docMap.setDocId(docId);
-		docMap.setHandlerClass(contentHandler.getName());
-		sessionFactory.getCurrentSession().save(docMap);
+		docMap.setDocIdHash(DocumentHandlerIndex.hash(docId));
+		docMap.setHandler((DocHandler) session.load(DocHandler.class, getHandlerId(contentHandler.getName())));
+		session.save(docMap);
 		
 	}
 
+	@Override
+	public void registerDocuments(Map<String, Class<? extends ContentHandler>> contentHandlers) {
+		registerDocuments(contentHandlers, Collections.<String, DocumentDetails>emptyMap());
+	}
+
+	@Override
+	public void registerDocuments(Map<String, Class<? extends ContentHandler>> contentHandlers, Map<String, DocumentDetails> details) {
+		// a multi-row insert per batch rather than a statement per document, in the current transaction so that
+		// the mappings still reserve the ids (a stateless session would use a connection of its own)
+		List<Map.Entry<String, Class<? extends ContentHandler>>> mappings =
+				new ArrayList<Map.Entry<String, Class<? extends ContentHandler>>>(contentHandlers.entrySet());
+		for (int from = 0; from < mappings.size(); from += BATCH_SIZE) {
+			List<Map.Entry<String, Class<? extends ContentHandler>>> batch = mappings.subList(from, Math.min(from + BATCH_SIZE, mappings.size()));
+			StringBuilder sql = new StringBuilder("insert into xdsbrepository_dochandlers (doc_id, doc_id_hash, handler_id, mime_type, doc_size) values ");
+			for (int i = 0; i < batch.size(); i++) {
+				sql.append(i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+			}
+			SQLQuery query = sessionFactory.getCurrentSession().createSQLQuery(sql.toString());
+			int position = 0;
+			for (Map.Entry<String, Class<? extends ContentHandler>> mapping : batch) {
+				DocumentDetails documentDetails = details.get(mapping.getKey());
+				query.setString(position++, mapping.getKey());
+				query.setLong(position++, DocumentHandlerIndex.hash(mapping.getKey()));
+				query.setInteger(position++, getHandlerId(mapping.getValue().getName()));
+				query.setParameter(position++, documentDetails != null ? documentDetails.getMimeType() : null, StandardBasicTypes.STRING);
+				query.setParameter(position++, documentDetails != null ? documentDetails.getSize() : null, StandardBasicTypes.LONG);
+			}
+			query.executeUpdate();
+		}
+	}
+
+	@Override
+	public void deleteDocumentMappings(Collection<String> docIds) {
+		if (docIds.isEmpty()) {
+			return;
+		}
+		Query query = sessionFactory.getCurrentSession().createQuery("delete from DocHandlerMapping where docId in (:docIds)");
+		query.setParameterList("docIds", docIds);
+		query.executeUpdate();
+	}
+
 	@Override
 	public Class<? extends ContentHandler> getDocumentHandlerClass(
 			String documentUniqueId) throws ClassNotFoundException {
-		Query query = sessionFactory.getCurrentSession().createQuery("from DocHandlerMapping where doc_id = :documentUniqueId");
-		DocHandlerMapping docMap = (DocHandlerMapping) query.setString("documentUniqueId", documentUniqueId).uniqueResult();
-        if (docMap == null) {
+		String handlerClass = getDocumentHandlerClassNames(Collections.singleton(documentUniqueId)).get(documentUniqueId);
+        if (handlerClass == null) {
             return null;
         }
-        return (Class<? extends ContentHandler>) Context.loadClass(docMap.getHandlerClass());
+        return (Class<? extends ContentHandler>) Context.loadClass(handlerClass);
+	}
+
+	@Override
+	public Map<String, String> getDocumentHandlerClassNames(Collection<String> docIds) {
+		Map<String, String> handlerClassNames = new HashMap<String, String>();
+		for (Object[] row : findMappings("m.docId, coalesce(h.className, m.handlerClass)", docIds)) {
+			handlerClassNames.put((String) row[0], (String) row[1]);
+		}
+		return handlerClassNames;
+	}
+
+	@Override
+	public Map<String, DocumentDetails> getDocumentDetails(Collection<String> docIds) {
+		Map<String, DocumentDetails> details = new HashMap<String, DocumentDetails>();
+		for (Object[] row : findMappings("m.docId, m.mimeType, m.size", docIds)) {
+			if (row[1] != null && row[2] != null) {
+				details.put((String) row[0], new DocumentDetails((String) row[1], (Long) row[2]));
+			}
+		}
+		return details;
+	}
+
+	/**
+	 * Once every mapping has a doc_id_hash the mappings are found by the hash alone, so that only the narrow
+	 * idx_doc_id_hash is read rather than the wide idx_doc_id, and the doc_id of the rows found is compared to
+	 * tell apart the documents whose ids share a hash.
+	 *
+	 * @param select the columns to select from the mapping m and its handler h, the document id first
+	 * @return the rows of the mappings of the documents
+	 */
+	private List<Object[]> findMappings(String select, Collection<String> docIds) {
+		List<Object[]> mappings = new ArrayList<Object[]>();
+		List<String> ids = new ArrayList<String>(docIds);
+		boolean byHash = hashLookups;
+		// in batches, as some databases limit the size of an in list
+		for (int from = 0; from < ids.size(); from += BATCH_SIZE) {
+			List<String> batch = ids.subList(from, Math.min(from + BATCH_SIZE, ids.size()));
+			Query query;
+			if (byHash) {
+				query = sessionFactory.getCurrentSession().createQuery("select " + select
+						+ " from DocHandlerMapping m left join m.handler h where m.docIdHash in (:hashes)");
+				Set<Long> hashes = new HashSet<Long>(batch.size());
+				for (String id : batch) {
+					hashes.add(DocumentHandlerIndex.hash(id));
+				}
+				query.setParameterList("hashes", hashes);
+			} else {
+				query = sessionFactory.getCurrentSession().createQuery("select " + select
+						+ " from DocHandlerMapping m left join m.handler h where m.docId in (:docIds)");
+				query.setParameterList("docIds", batch);
+			}
+			Set<String> wanted = new HashSet<String>(batch);
+			for (Object[] row : (List<Object[]>) query.list()) {
+				if (wanted.contains(row[0])) {
+					mappings.add(row);
+				}
+			}
+		}
+		return mappings;
+	}
+
+	@Override
+	public void loadDocumentHandlerIndex(DocumentHandlerIndex index) {
+		// read in pages by id rather than with a scrollable result, which some JDBC drivers (e.g. MySQL's) only
+		// stream with driver specific settings and would otherwise read into memory in full
+		Query query = sessionFactory.getCurrentSession().createQuery("select m.id, m.docId, coalesce(h.className, m.handlerClass) "
+				+ "from DocHandlerMapping m left join m.handler h where m.id > :lastId order by m.id");
+		query.setReadOnly(true);
+		query.setMaxResults(INDEX_PAGE_SIZE);
+		int lastId = 0;
+		List<Object[]> page;
+		do {
+			page = query.setInteger("lastId", lastId).list();
+			for (Object[] row : page) {
+				lastId = (Integer) row[0];
+				index.load((String) row[1], (String) row[2]);
+			}
+		} while (page.size() == INDEX_PAGE_SIZE);
+	}
+
+	@Override
+	public Integer backfillDocumentMappings(int afterId) {
+		DbSession session = sessionFactory.getCurrentSession();
+		Query query = session.createQuery("select id, docId, handlerClass from DocHandlerMapping "
+				+ "where handler is null and id > :afterId order by id");
+		query.setInteger("afterId", afterId);
+		query.setMaxResults(BACKFILL_BATCH_SIZE);
+		List<Object[]> rows = query.list();
+		if (rows.isEmpty()) {
+			hashLookups = true;
+			return null;
+		}
+
+		SQLQuery update = session.createSQLQuery("update xdsbrepository_dochandlers set handler_id = :handlerId, "
+				+ "doc_id_hash = :hash, handler_class = null where id = :id");
+		Integer lastId = null;
+		for (Object[] row : rows) {
+			lastId = (Integer) row[0];
+			update.setInteger("handlerId", getHandlerId((String) row[2]));
+			update.setLong("hash", DocumentHandlerIndex.hash((String) row[1]));
+			update.setInteger("id", lastId);
+			update.executeUpdate();
+		}
+		return lastId;
+	}
+
+	@Override
+	public void clearCaches() {
+		handlerIds.clear();
+		hashLookups = false;
+	}
+
+	/**
+	 * @return the id of the handler class in the dictionary, which is added if it's missing. No creation lock is
+	 * taken: the dictionary is seeded with the handlers in use, and the unique class_name fails the one of two
+	 * transactions that add a new handler class at the same time, whose submission can then be sent again.
+	 */
+	private int getHandlerId(final String className) {
+		Integer id = handlerIds.get(className);
+		if (id != null) {
+			return id;
+		}
+		id = findHandlerId(className);
+		if (id == null) {
+			DocHandler handler = new DocHandler();
+			handler.setClassName(className);
+			sessionFactory.getCurrentSession().save(handler);
+			sessionFactory.getCurrentSession().flush();
+			id = handler.getId();
+		}
+		// not cached until the transaction commits, in case the row was added by it and is rolled back
+		final Integer committedId = id;
+		Utils.afterCompletion(new Runnable() {
+			@Override
+			public void run() {
+				handlerIds.put(className, committedId);
+			}
+		}, null);
+		return id;
+	}
+
+	private Integer findHandlerId(String className) {
+		Query query = sessionFactory.getCurrentSession().createQuery("select id from DocHandler where className = :className");
+		return (Integer) query.setString("className", className).uniqueResult();
 	}
 
 	@Override
@@ -43,15 +263,42 @@ public class HibernateXDSbDAO implements XDSbDAO {
 	}
 
 	@Override
-	public QueueItem dequeueNextDiscreteDataForProcessing() {
-		Query query = sessionFactory.getCurrentSession().createQuery("from QueueItem where status='QUEUED' order by date_added");
-		List list = query.list();
-		if (list.size() < 1) {
-			return null;
-		} else {
-			// return the oldest queue item (FIFO queue)
-			return (QueueItem) list.get(0);
+	public QueueItem claimNextQueueItem(Date now, boolean skipLocked) {
+		DbSession session = sessionFactory.getCurrentSession();
+		if (skipLocked) {
+			// the oldest item that no other transaction has locked, which stays locked until this one commits
+			Number id = (Number) session.createSQLQuery("select id from xdsbrepository_queue where status = :queued "
+					+ "order by date_added, id limit 1 for update skip locked")
+					.setString("queued", QueueItem.Status.QUEUED.name()).uniqueResult();
+			if (id == null) {
+				return null;
+			}
+			QueueItem qi = (QueueItem) session.get(QueueItem.class, id.intValue());
+			qi.setStatus(QueueItem.Status.PROCESSING);
+			qi.setDateUpdated(now);
+			return qi;
 		}
+
+		// otherwise a conditional update of one of the oldest items, so that only one thread or node claims it
+		Query candidates = session.createQuery("select id from QueueItem where status = :queued order by dateAdded, id");
+		candidates.setParameter("queued", QueueItem.Status.QUEUED);
+		candidates.setMaxResults(QUEUE_CLAIM_CANDIDATES);
+		Query claim = session.createQuery("update QueueItem set status = :processing, dateUpdated = :now "
+				+ "where id = :id and status = :queued");
+		claim.setParameter("processing", QueueItem.Status.PROCESSING);
+		claim.setParameter("queued", QueueItem.Status.QUEUED);
+		claim.setTimestamp("now", now);
+		for (Integer id : (List<Integer>) candidates.list()) {
+			if (claim.setInteger("id", id).executeUpdate() == 1) {
+				QueueItem qi = (QueueItem) session.get(QueueItem.class, id);
+				// the update bypassed the session, which may hold the item as it was
+				session.refresh(qi);
+				return qi;
+			}
+		}
+		// each of the candidates was claimed by someone else meanwhile, the next poll looks again (not this
+		// transaction, whose snapshot may still show them as queued)
+		return null;
 	}
 
 	@Override
@@ -60,6 +307,70 @@ public class HibernateXDSbDAO implements XDSbDAO {
 		return qi;
 	}
 
+	@Override
+	public OutboxItem saveOutboxItem(OutboxItem item) {
+		sessionFactory.getCurrentSession().saveOrUpdate(item);
+		return item;
+	}
+
+	@Override
+	public List<OutboxItem> getDueOutboxItems(Date now, Date staleBefore, int max) {
+		// an item is only due once every earlier item of its submission set has been delivered or given up on
+		Query query = sessionFactory.getCurrentSession().createQuery("from OutboxItem o "
+				+ "where ((o.status = :queued and o.nextAttempt <= :now) or (o.status = :dispatching and o.dateUpdated < :staleBefore)) "
+				+ "and not exists (select e.id from OutboxItem e where e.submissionSetId = o.submissionSetId and e.id < o.id "
+				+ "and e.status in (:queued, :dispatching)) order by o.id");
+		query.setParameter("queued", OutboxItem.Status.QUEUED);
+		query.setParameter("dispatching", OutboxItem.Status.DISPATCHING);
+		query.setTimestamp("now", now);
+		query.setTimestamp("staleBefore", staleBefore);
+		query.setMaxResults(max);
+		return query.list();
+	}
+
+	@Override
+	public boolean claimOutboxItem(OutboxItem item, Date now, Date staleBefore) {
+		// a conditional update, so only one node delivers an item
+		Query query = sessionFactory.getCurrentSession().createQuery("update OutboxItem set status = :dispatching, dateUpdated = :now "
+				+ "where id = :id and (status = :queued or (status = :dispatching and dateUpdated < :staleBefore))");
+		query.setParameter("queued", OutboxItem.Status.QUEUED);
+		query.setParameter("dispatching", OutboxItem.Status.DISPATCHING);
+		query.setTimestamp("now", now);
+		query.setTimestamp("staleBefore", staleBefore);
+		query.setInteger("id", item.getId());
+		return query.executeUpdate() == 1;
+	}
+
+	@Override
+	public List<Integer> getPatientIdsByIdentifier(String identifier, PatientIdentifierType identifierType) {
+		Query query = sessionFactory.getCurrentSession().createQuery("select distinct pi.patient.patientId from PatientIdentifier pi "
+				+ "where pi.identifier = :identifier and pi.identifierType = :identifierType and pi.voided = false and pi.patient.voided = false");
+		query.setString("identifier", identifier);
+		query.setParameter("identifierType", identifierType);
+		return query.list();
+	}
+
+	@Override
+	public void lockStripe(int stripe) {
+		DbSession session = sessionFactory.getCurrentSession();
+		Object row = session.createSQLQuery("select stripe_id from xdsbrepository_lock_stripe where stripe_id = :stripe for update")
+				.setInteger("stripe", stripe).uniqueResult();
+		if (row == null) {
+			// the stripes are seeded by liquibase, but create any missing one, the new row is locked until commit
+			LockStripe lockStripe = new LockStripe();
+			lockStripe.setStripeId(stripe);
+			session.save(lockStripe);
+			session.flush();
+		}
+	}
+
+	@Override
+	public List<Provider> getProvidersChangedSince(Date since) {
+		Query query = sessionFactory.getCurrentSession().createQuery("from Provider where dateCreated >= :since or dateChanged >= :since");
+		query.setTimestamp("since", since);
+		return query.list();
+	}
+
     public DbSessionFactory getSessionFactory() {
         return sessionFactory;
     }
@@ -0,0 +1,128 @@
+package org.openmrs.module.xdsbrepository.impl;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of worker threads shared by all provide and register requests, used to spread the
+ * CPU bound stages of document processing over several cores. The pool is sized from the configured
+ * parallelism and only resized when that setting changes, never per request. Its idle threads time out,
+ * so it costs nothing while parallel processing is not in use.
+ * <p/>
+ * Registry requests that run alongside document storage use a separate, unbounded pool, as they spend their
+ * time waiting on the network rather than using a core. Documents fetched for retrieve responses use a third
+ * pool, bounded separately, as they wait on storage.
+ */
+public class DocumentProcessingPool {
+
+	private static final long KEEP_ALIVE_SECONDS = 60;
+
+	private static ThreadPoolExecutor executor;
+
+	private static ThreadPoolExecutor registryExecutor;
+
+	private static ThreadPoolExecutor retrieveExecutor;
+
+	private DocumentProcessingPool() {
+	}
+
+	/**
+	 * @param poolSize the maximum number of worker threads, shared by all provide and register requests
+	 * @return an executor with exactly that many worker threads
+	 */
+	public static synchronized ExecutorService getExecutor(int poolSize) {
+		if (executor == null || executor.isShutdown()) {
+			executor = newFixedPool(poolSize, "xds-b-repository-processor-");
+		} else {
+			resize(executor, poolSize);
+		}
+		return executor;
+	}
+
+	/**
+	 * @return an executor for registry requests, which starts a thread per request when none is idle
+	 */
+	public static synchronized ExecutorService getRegistryExecutor() {
+		if (registryExecutor == null || registryExecutor.isShutdown()) {
+			registryExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new WorkerThreadFactory("xds-b-repository-registry-"));
+		}
+		return registryExecutor;
+	}
+
+	/**
+	 * @param poolSize the maximum number of worker threads, shared by all retrieve requests
+	 * @return an executor for fetching retrieved documents, with exactly that many worker threads
+	 */
+	public static synchronized ExecutorService getRetrieveExecutor(int poolSize) {
+		if (retrieveExecutor == null || retrieveExecutor.isShutdown()) {
+			retrieveExecutor = newFixedPool(poolSize, "xds-b-repository-retrieve-");
+		} else {
+			resize(retrieveExecutor, poolSize);
+		}
+		return retrieveExecutor;
+	}
+
+	/**
+	 * Stop the worker threads, queued work is still completed
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdown();
+			executor = null;
+		}
+		if (registryExecutor != null) {
+			registryExecutor.shutdown();
+			registryExecutor = null;
+		}
+		if (retrieveExecutor != null) {
+			retrieveExecutor.shutdown();
+			retrieveExecutor = null;
+		}
+	}
+
+	private static ThreadPoolExecutor newFixedPool(int size, String threadNamePrefix) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory(threadNamePrefix));
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private static void resize(ThreadPoolExecutor pool, int size) {
+		if (pool.getMaximumPoolSize() == size) {
+			return;
+		}
+		// order matters, the core size may never exceed the maximum size
+		if (size > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(size);
+			pool.setCorePoolSize(size);
+		} else {
+			pool.setCorePoolSize(size);
+			pool.setMaximumPoolSize(size);
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+
+		private final String prefix;
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		WorkerThreadFactory(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, prefix + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+}
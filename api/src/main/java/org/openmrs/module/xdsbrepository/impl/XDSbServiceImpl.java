@@ -3,43 +3,67 @@ package org.openmrs.module.xdsbrepository.impl;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.dcm4che3.audit.AuditMessages.EventTypeCode;
-import org.dcm4che3.net.audit.AuditLogger;
 import org.dcm4chee.xds2.common.XDSConstants;
-import org.dcm4chee.xds2.common.audit.AuditRequestInfo;
-import org.dcm4chee.xds2.common.audit.XDSAudit;
 import org.dcm4chee.xds2.common.exception.XDSException;
 import org.dcm4chee.xds2.infoset.ihe.ProvideAndRegisterDocumentSetRequestType;
 import org.dcm4chee.xds2.infoset.rim.*;
-import org.dcm4chee.xds2.infoset.util.DocumentRegistryPortTypeFactory;
 import org.dcm4chee.xds2.infoset.util.InfosetUtil;
-import org.dcm4chee.xds2.infoset.ws.registry.DocumentRegistryPortType;
 import org.openmrs.*;
 import org.openmrs.api.*;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
 import org.openmrs.api.impl.BaseOpenmrsService;
-import org.openmrs.module.shr.atna.api.AtnaAuditService;
 import org.openmrs.module.shr.contenthandler.UnstructuredDataHandler;
 import org.openmrs.module.shr.contenthandler.api.*;
+import org.openmrs.module.xdsbrepository.ContentDigest;
+import org.openmrs.module.xdsbrepository.DocumentMetadata;
+import org.openmrs.module.xdsbrepository.HL7Parser;
 import org.openmrs.module.xdsbrepository.Identifier;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbConfiguration;
 import org.openmrs.module.xdsbrepository.XDSbService;
+import org.openmrs.module.xdsbrepository.audit.AuditDispatcher;
+import org.openmrs.module.xdsbrepository.audit.AuditEvent;
 import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.cache.DocumentHandlerIndex;
+import org.openmrs.module.xdsbrepository.cache.MetadataDictionary;
+import org.openmrs.module.xdsbrepository.cache.PatientCache;
+import org.openmrs.module.xdsbrepository.cache.ProviderIndex;
 import org.openmrs.module.xdsbrepository.db.XDSbDAO;
 import org.openmrs.module.xdsbrepository.exceptions.CXParseException;
 import org.openmrs.module.xdsbrepository.exceptions.UnsupportedGenderException;
+import org.openmrs.module.xdsbrepository.model.DocumentDetails;
+import org.openmrs.module.xdsbrepository.model.OutboxItem;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
+import org.openmrs.module.xdsbrepository.registry.RegistryClient;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
+import javax.xml.namespace.QName;
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Date;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 @Transactional
 public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
@@ -58,79 +82,269 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 
 	private static final String ERROR_FAILURE = "urn:oasis:names:tc:ebxml-regrep:ResponseStatusType:Failure";
 
+	// SimpleDateFormat is not thread safe, so keep one per thread rather than creating one per patient
+	private static final ThreadLocal<SimpleDateFormat> DATE_OF_BIRTH_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyyMMdd");
+		}
+	};
+
+	private static final MetadataDictionary.Loader<EncounterRole> ENCOUNTER_ROLE_LOADER = new MetadataDictionary.Loader<EncounterRole>() {
+		@Override
+		public EncounterRole find(String name) {
+			// TODO: use the 'getEncounterRoleByName()' in the EncounterService when it is available (OMRS 1.11.0)
+			return getEncounterRoleByName(name);
+		}
+
+		@Override
+		public EncounterRole create(String name) {
+			lockForCreation("encounterRole:" + name);
+			EncounterRole existing = find(name);
+			if (existing != null) {
+				return existing;
+			}
+
+			// Create new encounter role
+			EncounterRole role = new EncounterRole();
+			role.setName(name);
+			role.setDescription("Created by XDS.b module.");
+			return Context.getEncounterService().saveEncounterRole(role);
+		}
+	};
+
 	private XDSbDAO dao;
 
+	private PlatformTransactionManager transactionManager;
+
+	private static final QName SUBMIT_OBJECTS_REQUEST_NAME = new QName("urn:oasis:names:tc:ebxml-regrep:xsd:lcm:3.0", "SubmitObjectsRequest");
+
+	// stale claims are from a node that stopped while delivering, the item is delivered again
+	private static final long OUTBOX_CLAIM_TIMEOUT_MS = 10 * 60 * 1000L;
+
+	private static final long OUTBOX_INITIAL_BACKOFF_MS = 30 * 1000L;
+
+	private static final long OUTBOX_MAX_BACKOFF_MS = 60 * 60 * 1000L;
+
+	private static volatile JAXBContext rimContext;
+
+	// the creation lock stripes held by the current transaction of each thread
+	private static final ThreadLocal<Set<Integer>> HELD_STRIPES = new ThreadLocal<Set<Integer>>();
 
-	final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
 	public static String bytesToHex(byte[] bytes) {
-		char[] hexChars = new char[bytes.length * 2];
-		for (int j = 0; j < bytes.length; j++) {
-			int v = bytes[j] & 0xFF;
-			hexChars[j * 2] = hexArray[v >>> 4];
-			hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-		}
-		return new String(hexChars);
+		return ContentDigest.toHex(bytes);
 	}
 
 
 	/**
-	 * Get the URL of the registry
-	 * @throws MalformedURLException
+	 * Get the URLs of the registry, the global property may list several equivalent endpoints separated by commas
+	 * @throws XDSException if none is configured or a configured URL is not valid
 	 */
-	private URL getRegistryUrl() throws MalformedURLException {
-		AdministrationService as = Context.getAdministrationService();
-		String url = as.getGlobalProperty(XDSbServiceConstants.XDS_REGISTRY_URL_GP);
-
-		return new URL(url);
-	}
-
-	@Transactional(readOnly = false, rollbackFor = XDSException.class)
-	@Override
-	public RegistryResponseType registerDocument(String uniqueId, Class<? extends ContentHandler> contentHandler, SubmitObjectsRequest submitObjectRequest) throws XDSException {
+	private List<URL> getRegistryUrls() throws XDSException {
+		List<URL> registryUrls;
 		try {
-			RegistryResponseType retVal = sendMetadataToRegistry(getRegistryUrl(), submitObjectRequest);
-
-			if (retVal.getStatus().equals(XDSConstants.XDS_B_STATUS_SUCCESS)) {
-				dao.registerDocument(uniqueId, contentHandler);
-			}
-
-			return retVal;
+			registryUrls = XDSbConfiguration.getInstance().getRegistryUrls();
 		} catch (MalformedURLException ex) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
 		}
+		if (registryUrls.isEmpty()) {
+			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, "No registry URL is configured", null);
+		}
+		return registryUrls;
 	}
 
-	@Transactional(readOnly = false, rollbackFor = XDSException.class)
+	// the registry is called outside of any transaction, the mapping is then saved in a transaction of its own
+	@Transactional(propagation = Propagation.SUPPORTS, rollbackFor = XDSException.class)
+	@Override
+	public RegistryResponseType registerDocument(String uniqueId, Class<? extends ContentHandler> contentHandler, SubmitObjectsRequest submitObjectRequest) throws XDSException {
+		Map<String, Class<? extends ContentHandler>> contentHandlers = new HashMap<String, Class<? extends ContentHandler>>();
+		contentHandlers.put(uniqueId, contentHandler);
+		return registerDocuments(contentHandlers, submitObjectRequest);
+	}
+
+	// the registry is called outside of any transaction, the mappings are then saved in a transaction of their own
+	@Transactional(propagation = Propagation.SUPPORTS, rollbackFor = XDSException.class)
 	@Override
 	public RegistryResponseType registerDocuments(
-			Map<String, Class<? extends ContentHandler>> contentHandlers,
+			final Map<String, Class<? extends ContentHandler>> contentHandlers,
 			SubmitObjectsRequest submitObjectRequest) throws XDSException {
 
-		try {
-			RegistryResponseType retVal = sendMetadataToRegistry(getRegistryUrl(), submitObjectRequest);
+		RegistryResponseType retVal = sendMetadataToRegistry(getRegistryUrls(), submitObjectRequest);
 
-			if(retVal.getStatus().equals(XDSConstants.XDS_B_STATUS_SUCCESS))
-			{
-				for (String id : contentHandlers.keySet()) {
-					Class<? extends ContentHandler> contentHandler = contentHandlers.get(id);
-					dao.registerDocument(id, contentHandler);
+		if(retVal.getStatus().equals(XDSConstants.XDS_B_STATUS_SUCCESS))
+		{
+			inTransaction(new TransactionalWork<Void>() {
+				@Override
+				public Void run(TransactionStatus status) {
+					saveDocumentMappings(contentHandlers);
+					return null;
 				}
-			}
-			return retVal;
-		} catch (MalformedURLException ex) {
-			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
+			});
 		}
+		return retVal;
 	}
 
 	@Transactional(readOnly = true)
 	@Override
 	public Class<? extends ContentHandler> getDocumentHandlerClass(String documentUniqueId) throws ClassNotFoundException {
-		return dao.getDocumentHandlerClass(documentUniqueId);
+		Class<? extends ContentHandler> handlerClass = DocumentHandlerIndex.getInstance().getHandlerClass(documentUniqueId);
+		if (handlerClass == null && !isDocumentIndexAuthoritative()) {
+			handlerClass = dao.getDocumentHandlerClass(documentUniqueId);
+			if (handlerClass != null) {
+				// e.g. registered by another node, or before the index was loaded
+				indexOnCommit(documentUniqueId, handlerClass);
+			}
+		}
+		return handlerClass;
+	}
+
+	@Transactional(readOnly = true)
+	@Override
+	@SuppressWarnings("unchecked")
+	public Map<String, Class<? extends ContentHandler>> getDocumentHandlerClasses(Collection<String> documentUniqueIds) throws ClassNotFoundException {
+		Map<String, Class<? extends ContentHandler>> handlerClasses = new HashMap<String, Class<? extends ContentHandler>>();
+		DocumentHandlerIndex index = DocumentHandlerIndex.getInstance();
+		List<String> notIndexed = new ArrayList<String>();
+		for (String documentUniqueId : documentUniqueIds) {
+			Class<? extends ContentHandler> handlerClass = index.getHandlerClass(documentUniqueId);
+			if (handlerClass != null) {
+				handlerClasses.put(documentUniqueId, handlerClass);
+			} else {
+				notIndexed.add(documentUniqueId);
+			}
+		}
+		if (notIndexed.isEmpty() || isDocumentIndexAuthoritative()) {
+			return handlerClasses;
+		}
+
+		for (Map.Entry<String, String> mapping : dao.getDocumentHandlerClassNames(notIndexed).entrySet()) {
+			Class<? extends ContentHandler> handlerClass = (Class<? extends ContentHandler>) Context.loadClass(mapping.getValue());
+			handlerClasses.put(mapping.getKey(), handlerClass);
+			indexOnCommit(mapping.getKey(), handlerClass);
+		}
+		return handlerClasses;
+	}
+
+	@Transactional(readOnly = true)
+	@Override
+	public Set<String> getRegisteredDocumentIds(Collection<String> documentUniqueIds) {
+		return new HashSet<String>(dao.getDocumentHandlerClassNames(documentUniqueIds).keySet());
+	}
+
+	@Transactional(readOnly = true)
+	@Override
+	public Map<String, DocumentDetails> getDocumentDetails(Collection<String> documentUniqueIds) {
+		return dao.getDocumentDetails(documentUniqueIds);
+	}
+
+	/**
+	 * @return true if a document that is not in the loaded index is known not to exist, see
+	 * {@link XDSbConfiguration#isDocumentIndexAuthoritative()}
+	 */
+	private static boolean isDocumentIndexAuthoritative() {
+		return XDSbConfiguration.getInstance().isDocumentIndexAuthoritative() && DocumentHandlerIndex.getInstance().isLoaded();
+	}
+
+	@Transactional(readOnly = true)
+	@Override
+	public void loadDocumentHandlerIndex() {
+		DocumentHandlerIndex index = DocumentHandlerIndex.getInstance();
+		index.beginLoad();
+		boolean complete = false;
+		try {
+			dao.loadDocumentHandlerIndex(index);
+			complete = true;
+		} finally {
+			index.endLoad(complete);
+		}
+	}
+
+	@Override
+	@Transactional
+	public Integer backfillDocumentMappings(int afterId) {
+		return dao.backfillDocumentMappings(afterId);
+	}
+
+	@Override
+	public void clearDocumentMappingCaches() {
+		dao.clearCaches();
+	}
+
+	/**
+	 * Save the mappings of documents to their handlers in one batch, and index them once they are committed
+	 */
+	private void saveDocumentMappings(Map<String, Class<? extends ContentHandler>> handlerClasses) {
+		saveDocumentMappings(handlerClasses, Collections.<String, DocumentDetails>emptyMap());
+	}
+
+	private void saveDocumentMappings(Map<String, Class<? extends ContentHandler>> handlerClasses, Map<String, DocumentDetails> details) {
+		if (handlerClasses.isEmpty()) {
+			return;
+		}
+		dao.registerDocuments(handlerClasses, details);
+		for (Map.Entry<String, Class<? extends ContentHandler>> mapping : handlerClasses.entrySet()) {
+			indexOnCommit(mapping.getKey(), mapping.getValue());
+		}
+	}
+
+	/**
+	 * Save the mappings of processed documents, with the mime type and size they are stored with so that they can
+	 * be retrieved without fetching them first
+	 */
+	private void saveDocumentMappings(List<DocumentMetadata> metadata, Class<? extends ContentHandler> handlerClass) {
+		Map<String, Class<? extends ContentHandler>> handlerClasses = new LinkedHashMap<String, Class<? extends ContentHandler>>();
+		Map<String, DocumentDetails> details = new HashMap<String, DocumentDetails>();
+		for (DocumentMetadata dm : metadata) {
+			String documentUniqueId = dm.getDocumentUniqueId();
+			handlerClasses.put(documentUniqueId, handlerClass);
+			// the size slot has been checked or added by now
+			String size = InfosetUtil.getSlotValue(dm.getExtrinsicObject().getSlot(), SLOT_NAME_SIZE, null);
+			if (dm.getMimeType() != null && size != null) {
+				details.put(documentUniqueId, new DocumentDetails(dm.getMimeType(), Long.parseLong(size)));
+			}
+		}
+		saveDocumentMappings(handlerClasses, details);
+	}
+
+	/**
+	 * Index a mapping once the current transaction commits, so that the index never holds a mapping that was
+	 * rolled back, or now if there is no transaction
+	 */
+	private static void indexOnCommit(final String documentUniqueId, final Class<? extends ContentHandler> handlerClass) {
+		runOnCommit(new Runnable() {
+			@Override
+			public void run() {
+				DocumentHandlerIndex.getInstance().put(documentUniqueId, handlerClass.getName());
+			}
+		});
+	}
+
+	private static void runOnCommit(final Runnable work) {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			work.run();
+			return;
+		}
+		TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+			@Override
+			public void afterCommit() {
+				work.run();
+			}
+		});
 	}
 
 
-	@Transactional(readOnly = false, rollbackFor = {XDSException.class, ContentHandlerException.class} )
+	/**
+	 * Processes a submission in three steps, so that no database connection is held while waiting for the registry:
+	 * <ol>
+	 * <li>validate the documents and reserve their unique ids by saving their handler mappings, in one transaction</li>
+	 * <li>register the metadata with the registry, outside of any transaction</li>
+	 * <li>store the documents, in a second transaction</li>
+	 * </ol>
+	 * If the registry rejects the submission or the documents cannot be stored, the reserved ids are released again.
+	 * When called within an existing transaction each step joins it instead.
+	 */
+	@Transactional(propagation = Propagation.SUPPORTS, rollbackFor = {XDSException.class, ContentHandlerException.class} )
 	@Override
 	public RegistryResponseType provideAndRegisterDocumentSetB(ProvideAndRegisterDocumentSetRequestType request) throws XDSException, ContentHandlerException {
 		boolean wasSuccess = false;
@@ -139,7 +353,6 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		RegistryPackageType submissionSet = InfosetUtil.getRegistryPackage(request.getSubmitObjectsRequest(), XDSConstants.UUID_XDSSubmissionSet);
 		String submissionSetUID = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, submissionSet),
 				patID = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, submissionSet);
-		AuditRequestInfo info = new AuditRequestInfo(null, null);
 
 		RegistryResponseType response = new RegistryResponseType();
 
@@ -147,41 +360,320 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 
 			List<ExtrinsicObjectType> extrinsicObjects = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest());
 
-			SubmitObjectsRequest submitObjectRequest = request.getSubmitObjectsRequest();
-			XDSbService xdsService = Context.getService(XDSbService.class);
+			final SubmitObjectsRequest submitObjectRequest = request.getSubmitObjectsRequest();
 
-			validateDocumentMatchMetadata(extrinsicObjects, InfosetUtil.getDocuments(request));
+			Map<String, ProvideAndRegisterDocumentSetRequestType.Document> documents = InfosetUtil.getDocuments(request);
+			validateDocumentMatchMetadata(extrinsicObjects, documents);
 
-			Map<String, Class<? extends ContentHandler>> contentHandlers = new HashMap<String, Class<? extends ContentHandler>>();
+			// index the metadata of each document once for the whole pipeline
+			final List<DocumentMetadata> metadata = new ArrayList<DocumentMetadata>(extrinsicObjects.size());
 			for (ExtrinsicObjectType eot : extrinsicObjects) {
-				contentHandlers.put(this.processDocumentMetaData(eot, request), UnstructuredDataHandler.class);
+				metadata.add(new DocumentMetadata(eot, documents.get(eot.getId())));
+			}
+
+			if (isOutboxEnabled()) {
+				// store the documents and queue their registration in one transaction, the outbox dispatcher
+				// delivers the metadata to the registry later
+				final String outboxSubmissionSetUID = submissionSetUID;
+				inTransaction(new TransactionalWork<Void>() {
+					@Override
+					public Void run(TransactionStatus status) throws Exception {
+						processDocumentMetaData(metadata);
+						saveDocumentMappings(metadata, UnstructuredDataHandler.class);
+						storeDocuments(metadata);
+						dao.saveOutboxItem(createOutboxItem(outboxSubmissionSetUID, submitObjectRequest));
+						return null;
+					}
+				});
+
+				response.setStatus(XDSConstants.XDS_B_STATUS_SUCCESS);
+				wasSuccess = true;
+				return response;
 			}
 
-			response = xdsService.registerDocuments(contentHandlers, submitObjectRequest);
+			// validate the documents and reserve their ids, the unique index on the mappings stops a concurrent
+			// submission of the same ids
+			final List<String> docUniqueIds = inTransaction(new TransactionalWork<List<String>>() {
+				@Override
+				public List<String> run(TransactionStatus status) throws XDSException {
+					List<String> ids = processDocumentMetaData(metadata);
+					saveDocumentMappings(metadata, UnstructuredDataHandler.class);
+					return ids;
+				}
+			});
 
-			// Save each document
-			if (response.getStatus().equals(XDSConstants.XDS_B_STATUS_SUCCESS)) {
-				for (ExtrinsicObjectType eot : extrinsicObjects) {
-					this.storeDocument(eot, request);
+			boolean stored = false;
+			try {
+				if (isRegistryPipelined()) {
+					response = registerWhileResolving(submitObjectRequest, metadata);
+				} else {
+					response = sendMetadataToRegistry(getRegistryUrls(), submitObjectRequest);
+				}
+
+				// Save each document
+				if (response.getStatus().equals(XDSConstants.XDS_B_STATUS_SUCCESS)) {
+					inTransaction(new TransactionalWork<Void>() {
+						@Override
+						public Void run(TransactionStatus status) throws Exception {
+							storeDocuments(metadata);
+							return null;
+						}
+					});
+					stored = true;
+				}
+			} finally {
+				if (!stored) {
+					releaseDocumentIds(docUniqueIds, response);
 				}
 			}
 
 			wasSuccess = true;
 
-		} catch (UnsupportedGenderException ex) {
-			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
-		} catch (JAXBException ex) {
-			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
 		} catch (RuntimeException ex) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, ex.getMessage(), ex);
 		} finally {
-			XDSAudit.setAuditLogger(Context.getService(AtnaAuditService.class).getLogger());
-			XDSAudit.logRepositoryImport(submissionSetUID, patID, info, wasSuccess);
+			AuditDispatcher.getInstance().submit(AuditEvent.repositoryImport(submissionSetUID, patID, wasSuccess));
 		}
 
 		return response;
 	}
 
+	/**
+	 * @return true if the registry should be called while the documents are resolved, which is only possible when
+	 * the resolving runs in a transaction of its own
+	 */
+	private boolean isRegistryPipelined() {
+		return XDSbConfiguration.getInstance().isPipelineRegistry()
+				&& !TransactionSynchronizationManager.isActualTransactionActive();
+	}
+
+	/**
+	 * Send the metadata to the registry on another thread while what the documents refer to that already exists
+	 * (patients, providers and metadata) is looked up into the in-memory caches. Nothing is created and no
+	 * creation lock is taken until the registry has answered, and the lookups commit before waiting for it, so
+	 * that no database connection or creation lock is held for the registry's latency. Storing the documents
+	 * then only locks and creates what was not found.
+	 *
+	 * @return the registry response
+	 */
+	private RegistryResponseType registerWhileResolving(final SubmitObjectsRequest submitObjectRequest, final List<DocumentMetadata> metadata)
+			throws XDSException {
+		// set on this thread, as the registry thread must not change the metadata while it is being read
+		addRepositoryUniqueId(submitObjectRequest);
+
+		final List<URL> registryUrls = getRegistryUrls();
+		final UserContext userContext = Context.getUserContext();
+		Future<RegistryResponseType> registration = DocumentProcessingPool.getRegistryExecutor().submit(new Callable<RegistryResponseType>() {
+			@Override
+			public RegistryResponseType call() throws XDSException {
+				Context.openSession();
+				Context.setUserContext(userContext);
+				try {
+					return sendMetadataToRegistry(registryUrls, submitObjectRequest);
+				} finally {
+					Context.closeSession();
+				}
+			}
+		});
+
+		try {
+			inTransaction(new TransactionalWork<Void>() {
+				@Override
+				public Void run(TransactionStatus status) throws XDSException {
+					for (DocumentMetadata dm : metadata) {
+						resolveExisting(dm);
+					}
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			// only a head start, the documents are resolved again when they are stored
+			log.warn("Could not look up the existing patients, providers and metadata of a submission", e);
+		}
+
+		return getRegistryResponse(registration);
+	}
+
+	/**
+	 * Look up the patient, providers and metadata that storing a document needs and that already exist, so that the
+	 * in-memory caches hold them when it is stored. Nothing is created and no creation lock is taken.
+	 */
+	private void resolveExisting(DocumentMetadata metadata) throws XDSException {
+		MetadataDictionary dictionary = MetadataDictionary.getInstance();
+		dictionary.findEncounterType(metadata.getClassCode(), new MetadataDictionary.Finder<EncounterType>() {
+			@Override
+			public EncounterType find(String name) {
+				return Context.getEncounterService().getEncounterType(name);
+			}
+		});
+
+		for (Map<String, SlotType1> slotMap : metadata.getClassificationSlots(XDSConstants.UUID_XDSDocumentEntry_author)) {
+			if (slotMap.containsKey(SLOT_NAME_AUTHOR_ROLE)) {
+				for (String authorRole : slotMap.get(SLOT_NAME_AUTHOR_ROLE).getValueList().getValue()) {
+					dictionary.findEncounterRole(authorRole, ENCOUNTER_ROLE_LOADER);
+				}
+			}
+			if (slotMap.containsKey(XDSConstants.SLOT_NAME_AUTHOR_PERSON)) {
+				String authorXCN = slotMap.get(XDSConstants.SLOT_NAME_AUTHOR_PERSON).getValueList().getValue().get(0);
+				String id = xcnComponent(authorXCN, 0);
+				if (!id.isEmpty()) {
+					findProviderByIdentifier(id);
+				} else {
+					ProviderIndex.getInstance().ensureBuilt();
+				}
+			}
+		}
+
+		MetadataDictionary.Finder<PatientIdentifierType> identifierTypeFinder = new MetadataDictionary.Finder<PatientIdentifierType>() {
+			@Override
+			public PatientIdentifierType find(String name) {
+				return Context.getPatientService().getPatientIdentifierTypeByName(name);
+			}
+		};
+		Identifier sourceId = metadata.getSourcePatientIdentifier();
+		if (sourceId == null) {
+			sourceId = parsePatientIdentifier(metadata.getSourcePatientId());
+		}
+		dictionary.findPatientIdentifierType(sourceId.getAssigningAuthority().getAssigningAuthorityId(), identifierTypeFinder);
+
+		Identifier id = metadata.getPatientIdentifier();
+		if (id == null) {
+			id = parsePatientIdentifier(metadata.getPatientId());
+		}
+		String authorityId = id.getAssigningAuthority().getAssigningAuthorityId();
+		PatientIdentifierType idType = dictionary.findPatientIdentifierType(authorityId, identifierTypeFinder);
+		PatientCache cache = PatientCache.getInstance();
+		if (idType != null && cache.get(authorityId, id.getIdentifier()) == null) {
+			List<Integer> patientIds = Context.getService(XDSbService.class).getPatientIdsByIdentifier(id.getIdentifier(), idType);
+			if (patientIds.size() == 1) {
+				cache.put(authorityId, id.getIdentifier(), patientIds.get(0));
+			}
+		}
+	}
+
+	private RegistryResponseType getRegistryResponse(Future<RegistryResponseType> registration) throws XDSException {
+		try {
+			return registration.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, "Interrupted while waiting for the registry", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof XDSException) {
+				throw (XDSException) e.getCause();
+			}
+			throw new XDSException(XDSException.XDS_ERR_REG_NOT_AVAIL, "Document Registry not available: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private boolean isOutboxEnabled() {
+		return XDSbConfiguration.getInstance().isOutboxEnabled();
+	}
+
+	private OutboxItem createOutboxItem(String submissionSetUID, SubmitObjectsRequest submitObjectRequest) throws JAXBException {
+		StringWriter writer = new StringWriter();
+		getRimContext().createMarshaller().marshal(new JAXBElement<SubmitObjectsRequest>(SUBMIT_OBJECTS_REQUEST_NAME,
+				SubmitObjectsRequest.class, submitObjectRequest), writer);
+
+		Date now = new Date();
+		OutboxItem item = new OutboxItem();
+		item.setSubmissionSetId(submissionSetUID);
+		item.setRequest(writer.toString());
+		item.setStatus(OutboxItem.Status.QUEUED);
+		item.setNextAttempt(now);
+		item.setDateAdded(now);
+		return item;
+	}
+
+	// JAXBContext is thread safe and expensive to create, marshallers are neither
+	private static JAXBContext getRimContext() throws JAXBException {
+		JAXBContext context = rimContext;
+		if (context == null) {
+			context = JAXBContext.newInstance(SubmitObjectsRequest.class.getPackage().getName());
+			rimContext = context;
+		}
+		return context;
+	}
+
+	/**
+	 * Compensate for a submission that failed after its document ids were reserved
+	 */
+	private void releaseDocumentIds(final List<String> docUniqueIds, RegistryResponseType response) {
+		if (XDSConstants.XDS_B_STATUS_SUCCESS.equals(response.getStatus())) {
+			log.error("The documents " + docUniqueIds + " were registered but could not be stored, they will not be retrievable");
+		}
+		try {
+			inTransaction(new TransactionalWork<Void>() {
+				@Override
+				public Void run(TransactionStatus status) {
+					dao.deleteDocumentMappings(docUniqueIds);
+					runOnCommit(new Runnable() {
+						@Override
+						public void run() {
+							for (String docUniqueId : docUniqueIds) {
+								DocumentHandlerIndex.getInstance().remove(docUniqueId);
+							}
+						}
+					});
+					return null;
+				}
+			});
+		} catch (Exception e) {
+			// don't hide the failure that is being compensated for
+			log.error("Could not release the document ids " + docUniqueIds, e);
+		}
+	}
+
+	/**
+	 * A unit of work to run in a transaction
+	 */
+	private interface TransactionalWork<T> {
+
+		T run(TransactionStatus status) throws Exception;
+	}
+
+	/**
+	 * Run the work in a transaction of its own, or as part of the current transaction if there is one.
+	 * Read committed is used so that once a creation lock is held, the rows created by the transaction
+	 * that released it are visible.
+	 *
+	 * @throws XDSException if the work fails, other than with a runtime or content handler exception
+	 */
+	private <T> T inTransaction(final TransactionalWork<T> work) throws XDSException, ContentHandlerException {
+		TransactionTemplate template = new TransactionTemplate(transactionManager);
+		template.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+		try {
+			return template.execute(new TransactionCallback<T>() {
+				@Override
+				public T doInTransaction(TransactionStatus status) {
+					try {
+						return work.run(status);
+					} catch (RuntimeException e) {
+						throw e;
+					} catch (Exception e) {
+						// rolls the transaction back, and is unwrapped below
+						throw new TransactionalWorkException(e);
+					}
+				}
+			});
+		} catch (TransactionalWorkException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof XDSException) {
+				throw (XDSException) cause;
+			}
+			if (cause instanceof ContentHandlerException) {
+				throw (ContentHandlerException) cause;
+			}
+			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, cause.getMessage(), cause);
+		}
+	}
+
+	private static class TransactionalWorkException extends RuntimeException {
+
+		TransactionalWorkException(Exception cause) {
+			super(cause);
+		}
+	}
+
 	protected void validateDocumentMatchMetadata(List<ExtrinsicObjectType> extrinsicObjects, Map<String, ProvideAndRegisterDocumentSetRequestType.Document> documents) throws XDSException {
 		Set<String> metadataIds = new HashSet<String>();
 		for (ExtrinsicObjectType eot : extrinsicObjects) {
@@ -206,64 +698,254 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	}
 
 	/**
-	 * Store a document and return its UUID
+	 * Validate a document and its metadata and return its unique id
 	 */
 	protected String processDocumentMetaData(ExtrinsicObjectType eot, ProvideAndRegisterDocumentSetRequestType request) throws XDSException {
+		return processDocumentMetaData(new DocumentMetadata(eot, InfosetUtil.getDocuments(request).get(eot.getId())));
+	}
+
+	/**
+	 * Validate a document and its metadata and return its unique id
+	 */
+	protected String processDocumentMetaData(DocumentMetadata metadata) throws XDSException {
+		return completeDocument(prepareDocument(metadata));
+	}
+
+	/**
+	 * Validate a set of documents and their metadata and return their unique ids in document order.
+	 * When parallel processing is enabled the CPU bound stages are run on the shared processing pool,
+	 * the results are still checked in document order so the first failure is the same as when the
+	 * documents are processed one after another. At most the configured parallelism of documents of a
+	 * request are queued or running on the pool at a time, the next one is submitted as each is taken,
+	 * so a large set does not hold up the documents of other requests behind it.
+	 */
+	protected List<String> processDocumentMetaData(List<DocumentMetadata> metadata) throws XDSException {
+		List<String> docUniqueIds = new ArrayList<String>(metadata.size());
+		Set<String> registered = findRegisteredDocumentIds(metadata);
+
+		int parallelism = getMaxParallelism();
+		if (parallelism <= 1 || metadata.size() <= 1) {
+			for (DocumentMetadata dm : metadata) {
+				docUniqueIds.add(completeDocument(prepareDocument(dm), registered));
+			}
+			return docUniqueIds;
+		}
+
+		ExecutorService executor = DocumentProcessingPool.getExecutor(parallelism);
+		List<Future<PreparedDocument>> futures = new ArrayList<Future<PreparedDocument>>(metadata.size());
+		while (futures.size() < Math.min(parallelism, metadata.size())) {
+			futures.add(submitPrepareDocument(executor, metadata.get(futures.size())));
+		}
+
+		boolean completed = false;
+		try {
+			for (int i = 0; i < metadata.size(); i++) {
+				PreparedDocument prepared = getPreparedDocument(futures.get(i));
+				if (futures.size() < metadata.size()) {
+					futures.add(submitPrepareDocument(executor, metadata.get(futures.size())));
+				}
+				docUniqueIds.add(completeDocument(prepared, registered));
+			}
+			completed = true;
+		} finally {
+			if (!completed) {
+				// no point in finishing the remaining documents once the set has failed
+				for (Future<PreparedDocument> future : futures) {
+					future.cancel(true);
+				}
+			}
+		}
 
-		validateMetadata(eot);
+		return docUniqueIds;
+	}
 
-		String docUniqueId = getDocumentUniqueId(eot);
-		Content content = buildContentObjectFromDocument(docUniqueId, eot, request);
+	private Future<PreparedDocument> submitPrepareDocument(ExecutorService executor, final DocumentMetadata dm) {
+		return executor.submit(new Callable<PreparedDocument>() {
+			@Override
+			public PreparedDocument call() {
+				return prepareDocument(dm);
+			}
+		});
+	}
 
-		validateContent(eot, content);
+	private PreparedDocument getPreparedDocument(Future<PreparedDocument> future) throws XDSException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, "Interrupted while processing documents", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, e.getCause().getMessage(), e.getCause());
+		}
+	}
 
-		addHashSlot(eot, content);
-		addSizeSlot(eot, content);
+	/**
+	 * Look up which of the documents are already registered, with one query for the whole set
+	 *
+	 * @return the ids of the registered documents, to which the ids of the set are added as they are checked
+	 */
+	private Set<String> findRegisteredDocumentIds(List<DocumentMetadata> metadata) {
+		DocumentHandlerIndex index = DocumentHandlerIndex.getInstance();
+		boolean loaded = index.isLoaded();
+		List<String> candidates = new ArrayList<String>(metadata.size());
+		for (DocumentMetadata dm : metadata) {
+			String docUniqueId = dm.getDocumentUniqueId();
+			// once the index is loaded only its hits need to be confirmed, see getDocumentUniqueId
+			if (docUniqueId != null && (!loaded || index.contains(docUniqueId))) {
+				candidates.add(docUniqueId);
+			}
+		}
+		Set<String> registered = new HashSet<String>();
+		if (!candidates.isEmpty()) {
+			registered.addAll(Context.getService(XDSbService.class).getRegisteredDocumentIds(candidates));
+		}
+		if (loaded) {
+			for (String candidate : candidates) {
+				index.recordHitCheck(registered.contains(candidate));
+			}
+		}
+		return registered;
+	}
+
+	/**
+	 * @return the configured maximum number of threads to process the documents of a single request with
+	 */
+	private int getMaxParallelism() {
+		return XDSbConfiguration.getInstance().getMaxParallelism();
+	}
+
+	/**
+	 * Run the CPU bound stages of document processing: metadata validation, building the content object,
+	 * hashing and content validation. This does not touch the database or the OpenMRS context so it is safe
+	 * to call from a worker thread. Validation failures are recorded rather than thrown so that they can be
+	 * reported in the same order as they would be in serial processing.
+	 */
+	protected PreparedDocument prepareDocument(DocumentMetadata metadata) {
+		PreparedDocument prepared = new PreparedDocument(metadata);
+		try {
+			validateMetadata(metadata);
+		} catch (XDSException e) {
+			prepared.metadataError = e;
+			return prepared;
+		}
+
+		try {
+			prepared.content = buildContentObjectFromDocument(metadata.getDocumentUniqueId(), metadata);
+			prepared.digest = ContentDigest.of(prepared.content.getPayload());
+			validateContent(metadata.getExtrinsicObject(), prepared.digest);
+		} catch (XDSException e) {
+			prepared.contentError = e;
+		}
+		return prepared;
+	}
+
+	/**
+	 * Finish processing a prepared document on the request thread: check for duplicates, report any
+	 * validation failure and fill in the missing hash and size slots.
+	 *
+	 * @return the document unique id
+	 */
+	protected String completeDocument(PreparedDocument prepared) throws XDSException {
+		return completeDocument(prepared, null);
+	}
+
+	/**
+	 * @param registered the ids known to be registered already, or null to look the document up
+	 */
+	private String completeDocument(PreparedDocument prepared, Set<String> registered) throws XDSException {
+		if (prepared.metadataError != null) {
+			throw prepared.metadataError;
+		}
+
+		String docUniqueId = registered != null ? getDocumentUniqueId(prepared.metadata, registered)
+				: getDocumentUniqueId(prepared.metadata);
+
+		if (prepared.contentError != null) {
+			throw prepared.contentError;
+		}
+
+		ExtrinsicObjectType eot = prepared.metadata.getExtrinsicObject();
+		addHashSlot(eot, prepared.digest);
+		addSizeSlot(eot, prepared.digest);
 
 		return docUniqueId;
 	}
 
+	/**
+	 * The outcome of the CPU bound processing stages for a single document
+	 */
+	protected static class PreparedDocument {
+
+		private final DocumentMetadata metadata;
+
+		private XDSException metadataError;
+
+		private XDSException contentError;
+
+		private Content content;
+
+		private ContentDigest digest;
+
+		PreparedDocument(DocumentMetadata metadata) {
+			this.metadata = metadata;
+		}
+
+		public Content getContent() {
+			return content;
+		}
+
+		public ContentDigest getDigest() {
+			return digest;
+		}
+	}
+
 	/**
 	 * Check that all the XDS.b metadata fields are present that are required in order to process the request
 	 *
 	 * @throws XDSException
 	 */
 	protected void validateMetadata(ExtrinsicObjectType eot) throws XDSException {
-		if (InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, eot) == null) {
+		validateMetadata(new DocumentMetadata(eot, null));
+	}
+
+	protected void validateMetadata(DocumentMetadata metadata) throws XDSException {
+		if (metadata.getDocumentUniqueId() == null) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "Document unique id not specified", null);
 		}
 
-		if (getClassificationFromExtrinsicObject(XDSConstants.UUID_XDSDocumentEntry_classCode, eot) == null) {
+		if (metadata.getClassification(XDSConstants.UUID_XDSDocumentEntry_classCode) == null) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "DocumentEntry classCode not specified", null);
 		}
 
-		String id = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, eot);
-		if (id == null) {
+		if (metadata.getPatientId() == null) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "DocumentEntry patientId not specified", null);
 		}
-		parsePatientIdentifier(id);
+		if (metadata.getPatientIdentifier() == null) {
+			// re-parse only to report the reason
+			parsePatientIdentifier(metadata.getPatientId());
+		}
 
-		id = InfosetUtil.getSlotValue(eot.getSlot(), XDSConstants.SLOT_NAME_SOURCE_PATIENT_ID, null);
-		if (id == null) {
+		if (metadata.getSourcePatientId() == null) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "Source patientId not specified", null);
 		}
-		parsePatientIdentifier(id);
+		if (metadata.getSourcePatientIdentifier() == null) {
+			parsePatientIdentifier(metadata.getSourcePatientId());
+		}
 	}
 
 	protected void validateContent(ExtrinsicObjectType eot, Content content) throws XDSException {
+		validateContent(eot, ContentDigest.of(content.getPayload()));
+	}
+
+	protected void validateContent(ExtrinsicObjectType eot, ContentDigest digest) throws XDSException {
 		String hash = InfosetUtil.getSlotValue(eot.getSlot(), XDSConstants.SLOT_NAME_HASH, null);
 		if (hash != null) {
 			// verify hash
-			try {
-				MessageDigest digest = MessageDigest.getInstance("SHA-1");
-				digest.update(content.getPayload());
-
-				String calcHash = bytesToHex(digest.digest());
-				if (!calcHash.equalsIgnoreCase(hash)) {
-					throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "The specified document hash is incorrect", null);
-				}
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException(e);
+			if (!digest.getHash().equalsIgnoreCase(hash)) {
+				throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "The specified document hash is incorrect", null);
 			}
 		}
 
@@ -272,7 +954,7 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 			// verify size
 			try {
 				int size = Integer.parseInt(sizeStr);
-				if (size != content.getPayload().length) {
+				if (size != digest.getSize()) {
 					throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "The specified document size is incorrect", null);
 				}
 			} catch (NumberFormatException e) {
@@ -281,38 +963,44 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		}
 	}
 
-	protected String getDocumentUniqueId(ExtrinsicObjectType eot) throws XDSException {
-		String docUniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, eot);
-
-		// Do not store duplicates
-		try {
-			if (Context.getService(XDSbService.class).getDocumentHandlerClass(docUniqueId) != null) {
-				throw new XDSException(XDSException.XDS_ERR_DOCUMENT_UNIQUE_ID_ERROR, String.format("Document id %s is duplicate", docUniqueId), null);
-			}
-		} catch (ClassNotFoundException e) {
-			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, e.getMessage(), e);
+	/**
+	 * Check a document against the ids looked up for its set, which also catches an id used twice in the set
+	 */
+	private String getDocumentUniqueId(DocumentMetadata metadata, Set<String> registered) throws XDSException {
+		String docUniqueId = metadata.getDocumentUniqueId();
+		if (!registered.add(docUniqueId)) {
+			throw new XDSException(XDSException.XDS_ERR_DOCUMENT_UNIQUE_ID_ERROR, String.format("Document id %s is duplicate", docUniqueId), null);
 		}
-
 		return docUniqueId;
 	}
 
-	protected Content buildContentObjectFromDocument(String docUniqueId, ExtrinsicObjectType eot, ProvideAndRegisterDocumentSetRequestType request) throws XDSException {
-		CodedValue typeCode = null;
-		CodedValue formatCode = null;
-		String contentType = eot.getMimeType();
-		List<ClassificationType> classificationList = eot.getClassification();
+	protected String getDocumentUniqueId(DocumentMetadata metadata) throws XDSException {
+		String docUniqueId = metadata.getDocumentUniqueId();
 
-		for (ClassificationType ct : classificationList) {
-			if (ct.getClassificationScheme().equals(XDSConstants.UUID_XDSDocumentEntry_typeCode)) {
-				String codingScheme = InfosetUtil.getSlotValue(ct.getSlot(), SLOT_NAME_CODING_SCHEME, null);
-				typeCode = new CodedValue(ct.getNodeRepresentation(), codingScheme);
-			}
-			if (ct.getClassificationScheme().equals(XDSConstants.UUID_XDSDocumentEntry_formatCode)) {
-				String codingScheme = InfosetUtil.getSlotValue(ct.getSlot(), SLOT_NAME_CODING_SCHEME, null);
-				formatCode = new CodedValue(ct.getNodeRepresentation(), codingScheme);
-			}
+		// Do not store duplicates. Once the index is loaded a miss needs no query, as a document registered by
+		// another node meanwhile is still stopped by the unique index on the mappings. A hit is confirmed in the
+		// database, rather than trusting a hash.
+		DocumentHandlerIndex index = DocumentHandlerIndex.getInstance();
+		boolean loaded = index.isLoaded();
+		if (loaded && !index.contains(docUniqueId)) {
+			return docUniqueId;
+		}
+		boolean registered = Context.getService(XDSbService.class).getRegisteredDocumentIds(Collections.singleton(docUniqueId))
+				.contains(docUniqueId);
+		if (loaded) {
+			index.recordHitCheck(registered);
+		}
+		if (registered) {
+			throw new XDSException(XDSException.XDS_ERR_DOCUMENT_UNIQUE_ID_ERROR, String.format("Document id %s is duplicate", docUniqueId), null);
 		}
 
+		return docUniqueId;
+	}
+
+	protected Content buildContentObjectFromDocument(String docUniqueId, DocumentMetadata metadata) throws XDSException {
+		CodedValue typeCode = metadata.getTypeCode();
+		CodedValue formatCode = metadata.getFormatCode();
+
 		if (typeCode==null) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "DocumentEntry typeCode not specified", null);
 		}
@@ -321,83 +1009,71 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "DocumentEntry formatCode not specified", null);
 		}
 
-		String docId = eot.getId();
-		Map<String, ProvideAndRegisterDocumentSetRequestType.Document> docs = InfosetUtil.getDocuments(request);
-		ProvideAndRegisterDocumentSetRequestType.Document document = docs.get(docId);
-
-		return new Content(docUniqueId, document.getValue(), typeCode, formatCode, contentType);
+		return new Content(docUniqueId, metadata.getDocument().getValue(), typeCode, formatCode, metadata.getMimeType());
 	}
 
-	protected void addHashSlot(ExtrinsicObjectType eot, Content content) {
+	protected void addHashSlot(ExtrinsicObjectType eot, ContentDigest digest) {
 		String hashValue = InfosetUtil.getSlotValue(eot.getSlot(), SLOT_NAME_HASH, null);
 		if (hashValue == null) {
 			SlotType1 hashSlot = new SlotType1();
 			hashSlot.setName(SLOT_NAME_HASH);
 			hashSlot.setValueList(new ValueListType());
-			try {
-				MessageDigest digest = MessageDigest.getInstance("SHA-1");
-				digest.update(content.getPayload());
-
-				hashSlot.getValueList().getValue().add(bytesToHex(digest.digest()));
-				eot.getSlot().add(hashSlot);
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException(e);
-			}
+			hashSlot.getValueList().getValue().add(digest.getHash());
+			eot.getSlot().add(hashSlot);
 		}
 	}
 
-	protected void addSizeSlot(ExtrinsicObjectType eot, Content content) {
+	protected void addSizeSlot(ExtrinsicObjectType eot, ContentDigest digest) {
 		String sizeValue = InfosetUtil.getSlotValue(eot.getSlot(), SLOT_NAME_SIZE, null);
 		if (sizeValue == null) {
 			SlotType1 sizeSlot = new SlotType1();
 			sizeSlot.setName(SLOT_NAME_SIZE);
 			sizeSlot.setValueList(new ValueListType());
-			sizeSlot.getValueList().getValue().add(String.format("%d", content.getPayload().length));
+			sizeSlot.getValueList().getValue().add(String.format("%d", digest.getSize()));
 			eot.getSlot().add(sizeSlot);
 		}
 	}
 
-
+
+	/**
+	 * Store the documents of a submission set, in the current transaction
+	 */
+	private void storeDocuments(List<DocumentMetadata> metadata) throws JAXBException, XDSException, UnsupportedGenderException, ContentHandlerException {
+		lockForCreation(metadata);
+		for (DocumentMetadata dm : metadata) {
+			storeDocument(dm);
+		}
+	}
+
 	/**
 	 * Store a document and return its UUID
 	 */
 	protected String storeDocument(ExtrinsicObjectType eot, ProvideAndRegisterDocumentSetRequestType request) throws JAXBException, XDSException, UnsupportedGenderException, ContentHandlerException {
+		return storeDocument(new DocumentMetadata(eot, InfosetUtil.getDocuments(request).get(eot.getId())));
+	}
 
-		String docId = eot.getId();
-		Map<String, ProvideAndRegisterDocumentSetRequestType.Document> docs = InfosetUtil.getDocuments(request);
-		ProvideAndRegisterDocumentSetRequestType.Document document = docs.get(docId);
-
-		String docUniqueId = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, eot);
-
-		CodedValue typeCode = null;
-		CodedValue formatCode = null;
-		String contentType = eot.getMimeType();
-		List<ClassificationType> classificationList = eot.getClassification();
-		for (ClassificationType ct : classificationList) {
-			if (ct.getClassificationScheme().equals(XDSConstants.UUID_XDSDocumentEntry_typeCode)) {
-				String codingScheme = InfosetUtil.getSlotValue(ct.getSlot(), SLOT_NAME_CODING_SCHEME, null);
-				typeCode = new CodedValue(ct.getNodeRepresentation(), codingScheme);
-			}
-			if (ct.getClassificationScheme().equals(XDSConstants.UUID_XDSDocumentEntry_formatCode)) {
-				String codingScheme = InfosetUtil.getSlotValue(ct.getSlot(), SLOT_NAME_CODING_SCHEME, null);
-				formatCode = new CodedValue(ct.getNodeRepresentation(), codingScheme);
-			}
-		}
+	/**
+	 * Store a document and return its UUID
+	 */
+	protected String storeDocument(DocumentMetadata metadata) throws JAXBException, XDSException, UnsupportedGenderException, ContentHandlerException {
+		String docUniqueId = metadata.getDocumentUniqueId();
+		CodedValue typeCode = metadata.getTypeCode();
+		CodedValue formatCode = metadata.getFormatCode();
 
-		Content content = new Content(docUniqueId, document.getValue(), typeCode, formatCode, contentType);
+		Content content = new Content(docUniqueId, metadata.getDocument().getValue(), typeCode, formatCode, metadata.getMimeType());
 		ContentHandlerService chs = Context.getService(ContentHandlerService.class);
 		ContentHandler defaultHandler = chs.getDefaultUnstructuredHandler();
 		ContentHandler discreteHandler = chs.getContentHandler(typeCode, formatCode);
 
-		Patient patient = findOrCreatePatient(eot);
-		Map<EncounterRole, Set<Provider>> providersByRole = findOrCreateProvidersByRole(eot);
-		EncounterType encounterType = findOrCreateEncounterType(eot);
+		Patient patient = findOrCreatePatient(metadata);
+		Map<EncounterRole, Set<Provider>> providersByRole = findOrCreateProvidersByRole(metadata);
+		EncounterType encounterType = findOrCreateEncounterType(metadata);
 
 		// always send to the default unstructured data handler
 		defaultHandler.saveContent(patient, providersByRole, encounterType, content);
 		// If another handler exists send to that as well, do this async if config is set
 		if (discreteHandler != null) {
-			if (Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_DISCRETE_HANDLER_ASYNC, "false").equalsIgnoreCase("true")) {
+			if (XDSbConfiguration.getInstance().isDiscreteHandlerAsync()) {
 				QueueItem qi = new QueueItem();
 				qi.setDocUniqueId(docUniqueId);
 				qi.setPatient(patient);
@@ -451,22 +1127,40 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	 * @throws JAXBException
 	 */
 	protected EncounterType findOrCreateEncounterType(ExtrinsicObjectType eo) {
+		return findOrCreateEncounterType(new DocumentMetadata(eo, null));
+	}
+
+	/**
+	 * Finds an existing encounter type or create a new one if one cannot be found
+	 *
+	 * @param metadata the metadata of the document in question
+	 * @return an encounter type
+	 */
+	protected EncounterType findOrCreateEncounterType(DocumentMetadata metadata) {
 		// TODO: is it ok to only use classcode? should we use format code or type code as well?
-		ClassificationType classCodeCT = this.getClassificationFromExtrinsicObject(XDSConstants.UUID_XDSDocumentEntry_classCode, eo);
-		String classCode = classCodeCT.getNodeRepresentation();
+		String classCode = metadata.getClassCode();
 
-		EncounterService es = Context.getEncounterService();
-		EncounterType encounterType = es.getEncounterType(classCode);
+		return MetadataDictionary.getInstance().findOrCreateEncounterType(classCode, new MetadataDictionary.Loader<EncounterType>() {
+			@Override
+			public EncounterType find(String name) {
+				return Context.getEncounterService().getEncounterType(name);
+			}
 
-		if (encounterType == null) {
-			// create new encounter Type
-			encounterType = new EncounterType();
-			encounterType.setName(classCode);
-			encounterType.setDescription("Created by XDS.b module.");
-			encounterType = es.saveEncounterType(encounterType);
-		}
+			@Override
+			public EncounterType create(String name) {
+				lockForCreation("encounterType:" + name);
+				EncounterType existing = find(name);
+				if (existing != null) {
+					return existing;
+				}
 
-		return encounterType;
+				// create new encounter Type
+				EncounterType encounterType = new EncounterType();
+				encounterType.setName(name);
+				encounterType.setDescription("Created by XDS.b module.");
+				return Context.getEncounterService().saveEncounterType(encounterType);
+			}
+		});
 	}
 
 	/**
@@ -478,12 +1172,23 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	 * @throws JAXBException
 	 */
 	protected Map<EncounterRole, Set<Provider>> findOrCreateProvidersByRole(ExtrinsicObjectType eo) throws JAXBException {
-		EncounterService es = Context.getEncounterService();
-		EncounterRole unkownRole = es.getEncounterRoleByUuid(EncounterRole.UNKNOWN_ENCOUNTER_ROLE_UUID);
+		return findOrCreateProvidersByRole(new DocumentMetadata(eo, null));
+	}
+
+	/**
+	 * Extracts provider and role information from the document metadata and creates a
+	 * map of encounter roles to providers as needed by OpenMRS
+	 *
+	 * @param metadata the metadata of the document in question
+	 * @return a map of encounter roles to a set of providers that participates in the encounter using that role
+	 */
+	protected Map<EncounterRole, Set<Provider>> findOrCreateProvidersByRole(DocumentMetadata metadata) {
+		MetadataDictionary dictionary = MetadataDictionary.getInstance();
+		EncounterRole unkownRole = dictionary.getUnknownEncounterRole();
 
 		Map<EncounterRole, Set<Provider>> providersByRole = new HashMap<EncounterRole, Set<Provider>>();
 
-		List<Map<String, SlotType1>> authorClassSlots = this.getClassificationSlotsFromExtrinsicObject(XDSConstants.UUID_XDSDocumentEntry_author, eo);
+		List<Map<String, SlotType1>> authorClassSlots = metadata.getClassificationSlots(XDSConstants.UUID_XDSDocumentEntry_author);
 		for (Map<String, SlotType1> slotMap : authorClassSlots) {
 			// find/create a provider for this classification instance
 			Provider provider = findOrCreateProvider(slotMap);
@@ -494,15 +1199,7 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 				List<String> valueList = slot.getValueList().getValue();
 				for (String authorRole : valueList) {
 					// iterate though roles for this author and find/create a provider for those roles
-					// TODO: use the 'getEncounterRoleByName()' in the EncounterService when it is available (OMRS 1.11.0)
-					EncounterRole role = this.getEncounterRoleByName(authorRole);
-					if (role == null) {
-						// Create new encounter role
-						role = new EncounterRole();
-						role.setName(authorRole);
-						role.setDescription("Created by XDS.b module.");
-						role = es.saveEncounterRole(role);
-					}
+					EncounterRole role = dictionary.findOrCreateEncounterRole(authorRole, ENCOUNTER_ROLE_LOADER);
 
 					if (providersByRole.containsKey(role)) {
 						providersByRole.get(role).add(provider);
@@ -533,7 +1230,7 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	 * @param authorRole the name to use
 	 * @return the encounter role
 	 */
-	private EncounterRole getEncounterRoleByName(String authorRole) {
+	private static EncounterRole getEncounterRoleByName(String authorRole) {
 		EncounterService es = Context.getEncounterService();
 		for (EncounterRole role : es.getAllEncounterRoles(false)) {
 			if (role.getName().equals(authorRole)) {
@@ -555,40 +1252,120 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		if (authorSlotMap.containsKey(XDSConstants.SLOT_NAME_AUTHOR_PERSON)) {
 			SlotType1 slot = authorSlotMap.get(XDSConstants.SLOT_NAME_AUTHOR_PERSON);
 			String authorXCN = slot.getValueList().getValue().get(0);
-			String[] xcnComponents = authorXCN.split("\\^", -1);
+			String id = xcnComponent(authorXCN, 0);
+			String familyName = xcnComponent(authorXCN, 1);
+			String givenName = xcnComponent(authorXCN, 2);
 
 			// attempt to find the provider
-			if (!xcnComponents[0].isEmpty()) {
+			if (!id.isEmpty()) {
 				// there is an identifier
-				Provider pro = ps.getProviderByIdentifier(xcnComponents[0]);
+				Provider pro = findProviderByIdentifier(id);
 				if (pro != null) {
 					return pro;
 				}
-			} else {
+			} else if (!givenName.isEmpty() || !familyName.isEmpty()) {
 				// we only have a name - this shouldn't happen under OpenHIE as we should always
-				// have a provider id (EPID) - Warning this could get slow...
-				List<Provider> allProviders = ps.getAllProviders();
-				for (Provider pro : allProviders) {
-					if (pro.getName().startsWith(xcnComponents[2]) && pro.getName().contains(xcnComponents[1])) {
-						return pro;
-					}
+				// have a provider id (EPID), so look the name up in the provider index
+				Provider pro = findProviderByName(givenName, familyName);
+				if (pro != null) {
+					return pro;
+				}
+			}
+
+			// no provider found - take the creation lock and check that another transaction didn't create one meanwhile
+			if (!id.isEmpty()) {
+				lockForCreation("provider:" + id);
+				Provider pro = ps.getProviderByIdentifier(id);
+				if (pro != null) {
+					ProviderIndex.getInstance().update(pro);
+					return pro;
+				}
+			} else if (!givenName.isEmpty() || !familyName.isEmpty()) {
+				lockForCreation("providerName:" + givenName + "^" + familyName);
+				ProviderIndex.getInstance().catchUp();
+				Provider pro = findProviderByName(givenName, familyName);
+				if (pro != null) {
+					return pro;
 				}
 			}
 
-			// no provider found - let's create one
-			return ps.saveProvider(createProvider(xcnComponents));
+			// let's create one
+			return ps.saveProvider(createProvider(id, familyName, givenName));
+		}
+
+		return null;
+	}
+
+	/**
+	 * Find a provider by identifier, using the provider index before going to the database
+	 *
+	 * @return the provider, or null if there is no provider with this identifier
+	 */
+	private Provider findProviderByIdentifier(String identifier) {
+		ProviderService ps = Context.getProviderService();
+		ProviderIndex index = ProviderIndex.getInstance();
+
+		Integer providerId = index.getProviderIdByIdentifier(identifier);
+		if (providerId != null) {
+			Provider pro = ps.getProvider(providerId);
+			if (pro != null && identifier.equals(pro.getIdentifier())) {
+				return pro;
+			}
+			index.remove(providerId);
+		}
+
+		if (index.isMissingIdentifier(identifier)) {
+			return null;
+		}
+
+		Provider pro = ps.getProviderByIdentifier(identifier);
+		if (pro != null) {
+			index.update(pro);
+		} else {
+			index.markMissingIdentifier(identifier);
 		}
+		return pro;
+	}
 
+	/**
+	 * Find a non retired provider whose name starts with the given name and contains the family name
+	 *
+	 * @return the provider, or null if there is none
+	 */
+	private Provider findProviderByName(String givenName, String familyName) {
+		ProviderService ps = Context.getProviderService();
+		ProviderIndex index = ProviderIndex.getInstance();
+		index.ensureBuilt();
+
+		Integer providerId;
+		while ((providerId = index.findProviderIdByName(givenName, familyName)) != null) {
+			Provider pro = ps.getProvider(providerId);
+			if (pro != null && !pro.isRetired() && pro.getName().startsWith(givenName) && pro.getName().contains(familyName)) {
+				return pro;
+			}
+			// stale entry, e.g. from a rolled back transaction
+			index.remove(providerId);
+		}
 		return null;
 	}
 
+	/**
+	 * @return the XCN component with the given index, or an empty string if it is not present
+	 */
+	private static String xcnComponent(String xcn, int index) {
+		String component = HL7Parser.component(xcn, HL7Parser.COMPONENT_SEPARATOR, index);
+		return component != null ? component : "";
+	}
+
 	/**
 	 * Create a provider
 	 *
-	 * @param xcnComponents
+	 * @param id the provider identifier
+	 * @param familyName the provider's family name, may be empty
+	 * @param givenName the provider's given name, may be empty
 	 * @return a new provider object
 	 */
-	private Provider createProvider(String[] xcnComponents) {
+	private Provider createProvider(String id, String familyName, String givenName) {
 		Provider pro;
 		Person person;
 		PersonName name;
@@ -600,18 +1377,18 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 
 		names = new TreeSet<PersonName>();
 
-		pro.setIdentifier(xcnComponents[0]);
+		pro.setIdentifier(id);
 
-		if (xcnComponents.length >= 3 && !xcnComponents[2].isEmpty() && !xcnComponents[1].isEmpty()) {
+		if (!givenName.isEmpty() && !familyName.isEmpty()) {
 			// if there are name components
-			name = new PersonName(xcnComponents[2], "", xcnComponents[1]);
+			name = new PersonName(givenName, "", familyName);
 			names.add(name);
 			person.setNames(names);
 			person = Context.getPersonService().savePerson(person);
 			pro.setPerson(person);
 		} else {
 			// set the name to the id as that's add we have?
-			name = new PersonName(xcnComponents[0], "", "");
+			name = new PersonName(id, "", "");
 			names.add(name);
 			person.setNames(names);
 			person = Context.getPersonService().savePerson(person);
@@ -621,44 +1398,6 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		return pro;
 	}
 
-	/**
-	 * @param classificationScheme - The classification scheme to look for
-	 * @param eo                   - The extrinsic object to process
-	 * @return A list of maps, each item in the list represents a classification definition for
-	 * this scheme. There may be multiple of these. Each list item contains a map of SlotType1
-	 * objects keyed by their slot name.
-	 * @throws JAXBException
-	 */
-	private List<Map<String, SlotType1>> getClassificationSlotsFromExtrinsicObject(String classificationScheme, ExtrinsicObjectType eo) throws JAXBException {
-		List<ClassificationType> classifications = eo.getClassification();
-
-		List<Map<String, SlotType1>> classificationMaps = new ArrayList<Map<String, SlotType1>>();
-		for (ClassificationType c : classifications) {
-			if (c.getClassificationScheme().equals(classificationScheme)) {
-				Map<String, SlotType1> slotsFromRegistryObject = InfosetUtil.getSlotsFromRegistryObject(c);
-				classificationMaps.add(slotsFromRegistryObject);
-			}
-		}
-		return classificationMaps;
-	}
-
-	/**
-	 * @param classificationScheme - The classification scheme to look for
-	 * @param eo                   - The extrinsic object to process
-	 * @return The first classification of this type found
-	 * @throws JAXBException
-	 */
-	private ClassificationType getClassificationFromExtrinsicObject(String classificationScheme, ExtrinsicObjectType eo) {
-		List<ClassificationType> allClassifications = eo.getClassification();
-
-		for (ClassificationType c : allClassifications) {
-			if (c.getClassificationScheme().equals(classificationScheme)) {
-				return c;
-			}
-		}
-		return null;
-	}
-
 	/**
 	 * Attempt to find a patient, if one doesn't exist it creates a new patient
 	 *
@@ -670,62 +1409,129 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	 * @throws JAXBException
 	 */
 	protected Patient findOrCreatePatient(ExtrinsicObjectType eo) throws PatientIdentifierException, JAXBException, UnsupportedGenderException, XDSException {
-		String patCX = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, eo);
-		Identifier id = parsePatientIdentifier(patCX);
+		return findOrCreatePatient(new DocumentMetadata(eo, null));
+	}
 
-		PatientService ps = Context.getPatientService();
-		// TODO: Is this correct, should we have patient identifier with the name as the assigning authority
-		PatientIdentifierType idType = ps.getPatientIdentifierTypeByName(id.getAssigningAuthority().getAssigningAuthorityId());
-		if (idType == null) {
-			// create new idType
-			idType = new PatientIdentifierType();
-			idType.setName(id.getAssigningAuthority().getAssigningAuthorityId());
-			idType.setDescription("ID type for assigning authority: '" + id.getAssigningAuthority().getAssigningAuthorityId() + "'. Created by the xds-b-repository module.");
-			idType.setValidator("");
-			idType = ps.savePatientIdentifierType(idType);
+	/**
+	 * Attempt to find a patient, if one doesn't exist it creates a new patient
+	 *
+	 * @param metadata the metadata of the document in question
+	 * @return a patient
+	 * @throws PatientIdentifierException if there are multiple patient found with the id specified in the metadata
+	 * @throws UnsupportedGenderException if the gender code is not supported by OpenMRS
+	 */
+	protected Patient findOrCreatePatient(DocumentMetadata metadata) throws PatientIdentifierException, JAXBException, UnsupportedGenderException, XDSException {
+		Identifier id = metadata.getPatientIdentifier();
+		if (id == null) {
+			id = parsePatientIdentifier(metadata.getPatientId());
 		}
 
-		List<Patient> patients = ps.getPatients(null, id.getIdentifier(), Collections.singletonList(idType), true);
+		String authorityId = id.getAssigningAuthority().getAssigningAuthorityId();
+		PatientService ps = Context.getPatientService();
+		PatientCache cache = PatientCache.getInstance();
 
 		Patient retVal = null;
 
-		if (patients.size() > 1) {
-			throw new PatientIdentifierException("Multiple patients found for this identifier: " + id.getIdentifier() + ", with id type: " + id.getAssigningAuthority().getAssigningAuthorityId());
-		} else if (patients.size() < 1) {
-			if (Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_AUTOCREATE_PATIENTS).equals("true")) {
-				retVal = ps.savePatient(this.createPatient(eo, id.getIdentifier(), idType));
+		// most submissions are for patients we have seen before
+		Integer cachedPatientId = cache.get(authorityId, id.getIdentifier());
+		if (cachedPatientId != null) {
+			retVal = ps.getPatient(cachedPatientId);
+			if (retVal == null || retVal.isVoided() || !hasIdentifier(retVal, authorityId, id.getIdentifier())) {
+				// stale entry, e.g. from a rolled back transaction
+				cache.remove(authorityId, id.getIdentifier());
+				retVal = null;
+			}
+		}
+
+		if (retVal == null) {
+			// TODO: Is this correct, should we have patient identifier with the name as the assigning authority
+			PatientIdentifierType idType = MetadataDictionary.getInstance().findOrCreatePatientIdentifierType(authorityId,
+					new MetadataDictionary.Loader<PatientIdentifierType>() {
+						@Override
+						public PatientIdentifierType find(String name) {
+							return Context.getPatientService().getPatientIdentifierTypeByName(name);
+						}
+
+						@Override
+						public PatientIdentifierType create(String name) {
+							lockForCreation("patientIdentifierType:" + name);
+							PatientIdentifierType existing = find(name);
+							if (existing != null) {
+								return existing;
+							}
+
+							// create new idType
+							PatientIdentifierType idType = new PatientIdentifierType();
+							idType.setName(name);
+							idType.setDescription("ID type for assigning authority: '" + name + "'. Created by the xds-b-repository module.");
+							idType.setValidator("");
+							return Context.getPatientService().savePatientIdentifierType(idType);
+						}
+					});
+
+			XDSbService xdsService = Context.getService(XDSbService.class);
+			List<Integer> patientIds = xdsService.getPatientIdsByIdentifier(id.getIdentifier(), idType);
+			boolean autoCreate = XDSbConfiguration.getInstance().isAutoCreatePatients();
+
+			if (patientIds.isEmpty() && autoCreate) {
+				// take the creation lock and check that another transaction didn't create the patient meanwhile
+				lockForCreation("patient:" + authorityId + "^" + id.getIdentifier());
+				patientIds = xdsService.getPatientIdsByIdentifier(id.getIdentifier(), idType);
+			}
+
+			if (patientIds.size() > 1) {
+				throw new PatientIdentifierException("Multiple patients found for this identifier: " + id.getIdentifier() + ", with id type: " + authorityId);
+			} else if (patientIds.size() < 1) {
+				if (autoCreate) {
+					retVal = ps.savePatient(this.createPatient(metadata, id.getIdentifier(), idType));
+				} else {
+					throw new XDSException(XDSException.XDS_ERR_UNKNOWN_PATID, String.format("Patient ID %s is not known to the repository", id.getIdentifier()), null);
+				}
 			} else {
-				throw new XDSException(XDSException.XDS_ERR_UNKNOWN_PATID, String.format("Patient ID %s is not known to the repository", id.getIdentifier()), null);
+				// loading the patient by id (rather than through a patient search) gives the complete list
+				// of their identifiers, see https://issues.openmrs.org/browse/TRUNK-5089
+				retVal = ps.getPatient(patientIds.get(0));
 			}
-		} else {
-			retVal = patients.get(0);
-            //Due to a bug in OpenMRS, we need to reload the patient to have a complete list
-            //of their identifiers, see https://issues.openmrs.org/browse/TRUNK-5089
-            Context.evictFromSession(retVal);
-            retVal = ps.getPatient(retVal.getPatientId());
+
+			cache.put(authorityId, id.getIdentifier(), retVal.getPatientId());
 		}
 
-		this.addLocalIdentifierToPatient(eo, retVal);
+		this.addLocalIdentifierToPatient(metadata, retVal);
 		return retVal;
 	}
 
 	/**
 	 * Add local identifier to the patient.
 	 */
-	private void addLocalIdentifierToPatient(ExtrinsicObjectType eo, Patient pat) throws XDSException {
+	private void addLocalIdentifierToPatient(DocumentMetadata metadata, Patient pat) throws XDSException {
 
-		String patCX = InfosetUtil.getSlotValue(eo.getSlot(), XDSConstants.SLOT_NAME_SOURCE_PATIENT_ID, null);
-		Identifier id = parsePatientIdentifier(patCX);
+		Identifier id = metadata.getSourcePatientIdentifier();
+		if (id == null) {
+			id = parsePatientIdentifier(metadata.getSourcePatientId());
+		}
 
 		// Add the source identifier type if it does not exist!
-		PatientIdentifierType pit = Context.getPatientService().getPatientIdentifierTypeByName(id.getAssigningAuthority().getAssigningAuthorityId());
-		if (pit == null) {
-			pit = new PatientIdentifierType();
-			pit.setName(id.getAssigningAuthority().getAssigningAuthorityId());
-			pit.setDescription("Automatically created by OpenSHR XDS");
-			Context.getPatientService().savePatientIdentifierType(pit);
+		PatientIdentifierType pit = MetadataDictionary.getInstance().findOrCreatePatientIdentifierType(id.getAssigningAuthority().getAssigningAuthorityId(),
+				new MetadataDictionary.Loader<PatientIdentifierType>() {
+					@Override
+					public PatientIdentifierType find(String name) {
+						return Context.getPatientService().getPatientIdentifierTypeByName(name);
+					}
 
-		}
+					@Override
+					public PatientIdentifierType create(String name) {
+						lockForCreation("patientIdentifierType:" + name);
+						PatientIdentifierType existing = find(name);
+						if (existing != null) {
+							return existing;
+						}
+
+						PatientIdentifierType pit = new PatientIdentifierType();
+						pit.setName(name);
+						pit.setDescription("Automatically created by OpenSHR XDS");
+						return Context.getPatientService().savePatientIdentifierType(pit);
+					}
+				});
 
 		// Does the patient already have this identifier?
 		boolean hasId = false;
@@ -738,20 +1544,21 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	}
 
 
-	private Identifier parsePatientIdentifier(String id) throws XDSException {
-		id = id.replaceAll("&amp;", "&");
-		try {
-			Identifier result = new Identifier(id);
-
-			if (result.getIdentifier() == null) {
-				throw new CXParseException("Empty identifier");
-			}
-
-			if (result.getAssigningAuthority()==null || result.getAssigningAuthority().getAssigningAuthorityId()==null) {
-				throw new CXParseException("Assigning authority id not specified");
+	/**
+	 * @return true if the patient holds a non voided identifier of the type named after the assigning authority
+	 */
+	private boolean hasIdentifier(Patient patient, String authorityId, String identifier) {
+		for (PatientIdentifier pid : patient.getActiveIdentifiers()) {
+			if (pid.getIdentifier().equals(identifier) && pid.getIdentifierType().getName().equals(authorityId)) {
+				return true;
 			}
+		}
+		return false;
+	}
 
-			return result;
+	private Identifier parsePatientIdentifier(String id) throws XDSException {
+		try {
+			return DocumentMetadata.parsePatientIdentifier(id);
 		} catch (CXParseException e) {
 			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "Invalid DocumentEntry.patientId: " + e.getMessage(), null);
 		}
@@ -761,7 +1568,7 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	/**
 	 * Create a new patient object from document metadata
 	 *
-	 * @param eo     the ExtrinsicObject that represents the document in question
+	 * @param metadata the metadata of the document in question
 	 * @param patId  the patients unique ID
 	 * @param idType the patient id type
 	 * @return a newly created patient object
@@ -769,51 +1576,49 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	 * @throws ParseException
 	 * @throws UnsupportedGenderException
 	 */
-	private Patient createPatient(ExtrinsicObjectType eo, String patId, PatientIdentifierType idType)
+	private Patient createPatient(DocumentMetadata metadata, String patId, PatientIdentifierType idType)
 			throws JAXBException, UnsupportedGenderException, XDSException {
-		Map<String, SlotType1> slots = InfosetUtil.getSlotsFromRegistryObject(eo);
-		SlotType1 patInfoSlot = slots.get(XDSConstants.SLOT_NAME_SOURCE_PATIENT_INFO);
+		SlotType1 patInfoSlot = metadata.getSlot(XDSConstants.SLOT_NAME_SOURCE_PATIENT_INFO);
 		List<String> valueList = patInfoSlot.getValueList().getValue();
 
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
 		Patient pat = new Patient();
 
 		PatientIdentifier pi = new PatientIdentifier(patId, idType, Context.getLocationService().getDefaultLocation());
 		pat.addIdentifier(pi);
 
 		for (String val : valueList) {
-			if (val.startsWith("PID-3|")) {
-				// patient ID - ignore source patient id in favour of enterprise patient id
-			} else if (val.startsWith("PID-5|")) {
-				// patient name
-				val = val.replace("PID-5|", "");
-				String[] nameComponents = val.split("\\^", -1);
-				PersonName pn = createPatientName(nameComponents);
-				pat.addName(pn);
-			} else if (val.startsWith("PID-7|")) {
-				// patient date of birth
-				try {
-					val = val.replace("PID-7|", "");
-					Date dob = sdf.parse(val);
-					pat.setBirthdate(dob);
-				} catch (ParseException ex) {
-					throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "Unparseable date of birth value found: " + val, null);
-				}
-			} else if (val.startsWith("PID-8|")) {
-				// patient gender
-				val = val.replace("PID-8|", "");
-				if (val.equalsIgnoreCase("O") || val.equalsIgnoreCase("U") || val.equalsIgnoreCase("A") || val.equalsIgnoreCase("N")) {
-					throw new UnsupportedGenderException("OpenMRS does not support genders other than male or female.");
-				}
-				pat.setGender(val);
-			} else if (val.startsWith("PID-11|")) {
-				// patient address
-				val = val.replace("PID-11|", "");
-				String[] addrComponents = val.split("\\^", -1);
-				PersonAddress pa = createPatientAddress(addrComponents);
-				pat.addAddress(pa);
-			} else {
-				log.warn("Found an unknown value in the sourcePatientInfo slot: " + val);
+			int valueStart = HL7Parser.pidValueStart(val);
+			switch (HL7Parser.pidFieldNumber(val)) {
+				case 3:
+					// patient ID - ignore source patient id in favour of enterprise patient id
+					break;
+				case 5:
+					// patient name
+					pat.addName(createPatientName(val, valueStart));
+					break;
+				case 7:
+					// patient date of birth
+					String dob = val.substring(valueStart);
+					try {
+						pat.setBirthdate(DATE_OF_BIRTH_FORMAT.get().parse(dob));
+					} catch (ParseException ex) {
+						throw new XDSException(XDSException.XDS_ERR_REPOSITORY_METADATA_ERROR, "Unparseable date of birth value found: " + dob, null);
+					}
+					break;
+				case 8:
+					// patient gender
+					String gender = val.substring(valueStart);
+					if (gender.equalsIgnoreCase("O") || gender.equalsIgnoreCase("U") || gender.equalsIgnoreCase("A") || gender.equalsIgnoreCase("N")) {
+						throw new UnsupportedGenderException("OpenMRS does not support genders other than male or female.");
+					}
+					pat.setGender(gender);
+					break;
+				case 11:
+					// patient address
+					pat.addAddress(createPatientAddress(val, valueStart));
+					break;
+				default:
+					log.warn("Found an unknown value in the sourcePatientInfo slot: " + val);
 			}
 		}
 
@@ -827,61 +1632,49 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	}
 
 	/**
-	 * Create a patient name
+	 * Create a patient name from a PID-5 value
 	 *
-	 * @param nameComponents
+	 * @param pid the sourcePatientInfo value
+	 * @param start the offset of the XPN within the value
 	 * @return
 	 */
-	private PersonName createPatientName(String[] nameComponents) {
-		if (nameComponents == null || nameComponents.length == 0) {
-			return new PersonName("*", "*", "*");
-		} else {
-			PersonName pn = new PersonName();
+	private PersonName createPatientName(String pid, int start) {
+		int end = pid.length();
+		PersonName pn = new PersonName();
 
-			if (nameComponents[0] == null || "".equals(nameComponents[0])) {
-				pn.setFamilyName("*");
-			} else {
-				pn.setFamilyName(nameComponents[0]);
-			}
+		String familyName = HL7Parser.nonEmptyComponent(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 0);
+		pn.setFamilyName(familyName != null ? familyName : "*");
 
-			if (nameComponents.length == 1 || "".equals(nameComponents[1])) {
-				pn.setGivenName("*");
-			} else {
-				pn.setGivenName(nameComponents[1]);
-			}
+		String givenName = HL7Parser.nonEmptyComponent(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 1);
+		pn.setGivenName(givenName != null ? givenName : "*");
 
-			try {
-				pn.setMiddleName(nameComponents[2]);
-				pn.setFamilyNameSuffix(nameComponents[3]);
-				pn.setPrefix(nameComponents[4]);
-				pn.setDegree(nameComponents[5]);
-			} catch (ArrayIndexOutOfBoundsException e) {
-				// ignore, these aren't important if they don't exist
-			}
+		// these aren't important if they don't exist
+		pn.setMiddleName(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 2));
+		pn.setFamilyNameSuffix(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 3));
+		pn.setPrefix(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 4));
+		pn.setDegree(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 5));
 
-			return pn;
-		}
+		return pn;
 	}
 
 	/**
-	 * Create a patient address
+	 * Create a patient address from a PID-11 value
 	 *
-	 * @param addrComponents
+	 * @param pid the sourcePatientInfo value
+	 * @param start the offset of the XAD within the value
 	 * @return
 	 */
-	private PersonAddress createPatientAddress(String[] addrComponents) {
+	private PersonAddress createPatientAddress(String pid, int start) {
+		int end = pid.length();
 		PersonAddress pa = new PersonAddress();
-		try {
 
-			pa.setAddress1(addrComponents[0]);
-			pa.setAddress2(addrComponents[1]);
-			pa.setCityVillage(addrComponents[2]);
-			pa.setStateProvince(addrComponents[3]);
-			pa.setPostalCode(addrComponents[4]);
-			pa.setCountry(addrComponents[5]);
-		} catch (ArrayIndexOutOfBoundsException e) {
-			// ignore, these aren't important if they don't exist
-		}
+		// these aren't important if they don't exist
+		pa.setAddress1(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 0));
+		pa.setAddress2(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 1));
+		pa.setCityVillage(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 2));
+		pa.setStateProvince(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 3));
+		pa.setPostalCode(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 4));
+		pa.setCountry(HL7Parser.component(pid, start, end, HL7Parser.COMPONENT_SEPARATOR, 5));
 
 		return pa;
 	}
@@ -897,14 +1690,7 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 	@Override
 	@Transactional
 	public QueueItem dequeueNextDiscreteDataForProcessing() {
-		QueueItem qi = dao.dequeueNextDiscreteDataForProcessing();
-		if (qi != null) {
-			qi.setStatus(QueueItem.Status.PROCESSING);
-			qi.setDateUpdated(new Date());
-			return dao.updateQueueItem(qi);
-		} else {
-			return null;
-		}
+		return dao.claimNextQueueItem(new Date(), XDSbConfiguration.getInstance().isDiscreteHandlerSkipLocked());
 	}
 
 	@Override
@@ -919,37 +1705,243 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		return dao.updateQueueItem(qi);
 	}
 
+	@Override
+	@Transactional(readOnly = true)
+	public List<OutboxItem> getDueOutboxItems(int max) {
+		Date now = new Date();
+		return dao.getDueOutboxItems(now, new Date(now.getTime() - OUTBOX_CLAIM_TIMEOUT_MS), max);
+	}
+
+	@Override
+	@Transactional
+	public boolean claimOutboxItem(OutboxItem item) {
+		Date now = new Date();
+		return dao.claimOutboxItem(item, now, new Date(now.getTime() - OUTBOX_CLAIM_TIMEOUT_MS));
+	}
+
+	@Override
+	@Transactional(propagation = Propagation.SUPPORTS)
+	public RegistryResponseType dispatchOutboxItem(OutboxItem item) throws XDSException {
+		SubmitObjectsRequest submitObjectRequest;
+		try {
+			submitObjectRequest = getRimContext().createUnmarshaller()
+					.unmarshal(new StreamSource(new StringReader(item.getRequest())), SubmitObjectsRequest.class).getValue();
+		} catch (JAXBException e) {
+			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, "Could not read outbox item " + item.getId() + ": " + e.getMessage(), e);
+		}
+		return sendMetadataToRegistry(getRegistryUrls(), submitObjectRequest);
+	}
+
+	@Override
+	@Transactional
+	public OutboxItem completeOutboxItem(OutboxItem item, boolean successful) {
+		if (successful) {
+			item.setStatus(OutboxItem.Status.SENT);
+		} else {
+			item.setStatus(OutboxItem.Status.FAILED);
+		}
+		item.setAttempts(item.getAttempts() + 1);
+		item.setDateUpdated(new Date());
+		return dao.saveOutboxItem(item);
+	}
+
+	@Override
+	@Transactional
+	public OutboxItem rescheduleOutboxItem(OutboxItem item, String error) {
+		int attempts = item.getAttempts() + 1;
+
+		Date now = new Date();
+		item.setAttempts(attempts);
+		item.setLastError(error != null && error.length() > 1024 ? error.substring(0, 1024) : error);
+		item.setDateUpdated(now);
+		if (attempts >= XDSbConfiguration.getInstance().getOutboxMaxAttempts()) {
+			item.setStatus(OutboxItem.Status.FAILED);
+		} else {
+			// 30s, 1m, 2m, ... up to an hour
+			long backoff = OUTBOX_INITIAL_BACKOFF_MS << Math.min(attempts - 1, 20);
+			item.setStatus(OutboxItem.Status.QUEUED);
+			item.setNextAttempt(new Date(now.getTime() + Math.min(backoff, OUTBOX_MAX_BACKOFF_MS)));
+		}
+		return dao.saveOutboxItem(item);
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public List<Integer> getPatientIdsByIdentifier(String identifier, PatientIdentifierType identifierType) {
+		return dao.getPatientIdsByIdentifier(identifier, identifierType);
+	}
+
+	@Override
+	@Transactional
+	public void acquireCreationLock(String key) {
+		lockStripe(getCreationLockStripe(key));
+	}
+
+	private static int getCreationLockStripe(String key) {
+		return (key.hashCode() & Integer.MAX_VALUE) % XDSbServiceConstants.CREATION_LOCK_STRIPES;
+	}
+
+	/**
+	 * Lock a stripe unless the current transaction already holds it
+	 */
+	private void lockStripe(int stripe) {
+		Set<Integer> held = HELD_STRIPES.get();
+		if (held == null && TransactionSynchronizationManager.isSynchronizationActive()) {
+			held = new HashSet<Integer>();
+			HELD_STRIPES.set(held);
+			Utils.afterCompletion(null, new Runnable() {
+				@Override
+				public void run() {
+					HELD_STRIPES.remove();
+				}
+			});
+		}
+		if (held == null || held.add(stripe)) {
+			dao.lockStripe(stripe);
+		}
+	}
+
+	/**
+	 * Take the creation locks of everything the documents may need to create, before any of it is looked up.
+	 * The stripes are locked in ascending order, so that two submissions that need some of the same stripes wait
+	 * for each other rather than deadlock. The keys of metadata, providers and patients that the in-memory
+	 * caches hold are left out, as they won't be created. Should one of them have to be created after all, its
+	 * stripe is locked when it is needed.
+	 */
+	private void lockForCreation(List<DocumentMetadata> metadata) throws XDSException {
+		SortedSet<Integer> stripes = new TreeSet<Integer>();
+		for (DocumentMetadata dm : metadata) {
+			for (String key : getCreationKeys(dm)) {
+				stripes.add(getCreationLockStripe(key));
+			}
+		}
+		for (Integer stripe : stripes) {
+			lockStripe(stripe);
+		}
+	}
+
+	/**
+	 * @return the creation lock keys of the metadata, provider and patient that storing the document may create,
+	 * matching the keys locked by the find-or-create methods
+	 */
+	private List<String> getCreationKeys(DocumentMetadata metadata) throws XDSException {
+		List<String> keys = new ArrayList<String>();
+		MetadataDictionary dictionary = MetadataDictionary.getInstance();
+		ProviderIndex providers = ProviderIndex.getInstance();
+
+		String classCode = metadata.getClassCode();
+		if (!dictionary.hasEncounterType(classCode)) {
+			keys.add("encounterType:" + classCode);
+		}
+
+		for (Map<String, SlotType1> slotMap : metadata.getClassificationSlots(XDSConstants.UUID_XDSDocumentEntry_author)) {
+			if (slotMap.containsKey(SLOT_NAME_AUTHOR_ROLE)) {
+				for (String authorRole : slotMap.get(SLOT_NAME_AUTHOR_ROLE).getValueList().getValue()) {
+					if (!dictionary.hasEncounterRole(authorRole)) {
+						keys.add("encounterRole:" + authorRole);
+					}
+				}
+			}
+			if (slotMap.containsKey(XDSConstants.SLOT_NAME_AUTHOR_PERSON)) {
+				String authorXCN = slotMap.get(XDSConstants.SLOT_NAME_AUTHOR_PERSON).getValueList().getValue().get(0);
+				String id = xcnComponent(authorXCN, 0);
+				String familyName = xcnComponent(authorXCN, 1);
+				String givenName = xcnComponent(authorXCN, 2);
+				if (!id.isEmpty()) {
+					if (providers.getProviderIdByIdentifier(id) == null) {
+						keys.add("provider:" + id);
+					}
+				} else if (!givenName.isEmpty() || !familyName.isEmpty()) {
+					if (providers.findProviderIdByName(givenName, familyName) == null) {
+						keys.add("providerName:" + givenName + "^" + familyName);
+					}
+				}
+			}
+		}
+
+		Identifier id = metadata.getPatientIdentifier();
+		if (id == null) {
+			id = parsePatientIdentifier(metadata.getPatientId());
+		}
+		String authorityId = id.getAssigningAuthority().getAssigningAuthorityId();
+		if (!dictionary.hasPatientIdentifierType(authorityId)) {
+			keys.add("patientIdentifierType:" + authorityId);
+		}
+		if (XDSbConfiguration.getInstance().isAutoCreatePatients() && PatientCache.getInstance().get(authorityId, id.getIdentifier()) == null) {
+			keys.add("patient:" + authorityId + "^" + id.getIdentifier());
+		}
+
+		Identifier sourceId = metadata.getSourcePatientIdentifier();
+		if (sourceId == null) {
+			sourceId = parsePatientIdentifier(metadata.getSourcePatientId());
+		}
+		String sourceAuthorityId = sourceId.getAssigningAuthority().getAssigningAuthorityId();
+		if (!dictionary.hasPatientIdentifierType(sourceAuthorityId)) {
+			keys.add("patientIdentifierType:" + sourceAuthorityId);
+		}
+		return keys;
+	}
+
+	@Override
+	@Transactional(readOnly = true)
+	public List<Provider> getProvidersChangedSince(Date since) {
+		return dao.getProvidersChangedSince(since);
+	}
+
+	/**
+	 * Take the database lock for creating the thing with this key, which is held until the transaction ends.
+	 * Callers must look the key up again once they hold it, as another transaction may have created it while
+	 * this one was waiting.
+	 */
+	private static void lockForCreation(String key) {
+		Context.getService(XDSbService.class).acquireCreationLock(key);
+	}
+
+	/**
+	 * Set the repositoryUniqueId slot of each document entry, unless it already holds the right value
+	 */
+	private void addRepositoryUniqueId(SubmitObjectsRequest submitObjectRequest) {
+		String repositoryUniqueId = XDSbConfiguration.getInstance().getRepositoryUniqueId();
+
+		// JF: Fix meta-data issue
+		for(ExtrinsicObjectType eot : InfosetUtil.getExtrinsicObjects(submitObjectRequest))
+		{
+			if (repositoryUniqueId != null && repositoryUniqueId.equals(InfosetUtil.getSlotValue(eot.getSlot(), SLOT_NAME_REPOSITORY_UNIQUE_ID, null))) {
+				continue;
+			}
+			try {
+				InfosetUtil.addOrOverwriteSlot(eot, SLOT_NAME_REPOSITORY_UNIQUE_ID, repositoryUniqueId);
+			} catch (JAXBException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
 	/**
 	* Register documents on registry
 	* @throws Exception
 	*/
 	protected RegistryResponseType sendMetadataToRegistry(URL registryUrl, SubmitObjectsRequest submitObjectRequest) throws XDSException {
+		return sendMetadataToRegistry(Collections.singletonList(registryUrl), submitObjectRequest);
+	}
+
+	/**
+	* Register documents on the fastest of several equivalent registry endpoints
+	*/
+	protected RegistryResponseType sendMetadataToRegistry(List<URL> registryUrls, SubmitObjectsRequest submitObjectRequest) throws XDSException {
 		
-		DocumentRegistryPortType port = DocumentRegistryPortTypeFactory.getDocumentRegistryPortSoap12(registryUrl.toString());
-		log.info("XDS.b: Send register document-b request to registry:" + registryUrl);
+		log.info("XDS.b: Send register document-b request to registry:" + registryUrls);
 		// Auditing code
-		EventTypeCode eventTypeCode = EventTypeCode.ITI_42_RegisterDocumentSetB;
+		boolean onDemand = false;
 		boolean wasSuccess = true;
 
 		
-		// JF: Fix meta-data issue
 		for(ExtrinsicObjectType eot : InfosetUtil.getExtrinsicObjects(submitObjectRequest))
 		{
 			if(!eot.getObjectType().equals(XDSConstants.UUID_XDSDocumentEntry))
-				eventTypeCode = new EventTypeCode("ITI-61", "IHE Transactions", "Register On-Demand Document Entry");
-
-			try {
-				InfosetUtil.addOrOverwriteSlot(eot, SLOT_NAME_REPOSITORY_UNIQUE_ID, Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP));
-			} catch (JAXBException e) {
-				e.printStackTrace();
-			}
-
-			//SlotType1 repositorySlot = new SlotType1();
-			//repositorySlot.setName(SLOT_NAME_REPOSITORY_UNIQUE_ID);
-			//repositorySlot.setValueList(new ValueListType());
-			//repositorySlot.getValueList().getValue().add(Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP));
-			//eot.getSlot().add(repositorySlot);
+				onDemand = true;
 		}
+		addRepositoryUniqueId(submitObjectRequest);
 				
 		RegistryResponseType rsp;
 
@@ -958,20 +1950,21 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		RegistryPackageType submissionSet = InfosetUtil.getRegistryPackage(submitObjectRequest, XDSConstants.UUID_XDSSubmissionSet);
 		String submissionSetUID = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_uniqueId, submissionSet),
 				patID = InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSSubmissionSet_patientId, submissionSet);
-		AuditRequestInfo info = new AuditRequestInfo(null, null);
+		URL registryUrl = registryUrls.get(0);
 
 		try {
 			
-			rsp = port.documentRegistryRegisterDocumentSetB(submitObjectRequest);
+			RegistryClient.Registration registration = RegistryClient.getInstance().registerDocumentSetB(registryUrls, submitObjectRequest);
+			registryUrl = registration.getRegistryUrl();
+			rsp = registration.getResponse();
 			
 		} catch (Exception e) {
 			wasSuccess = false;
-			throw new XDSException(XDSException.XDS_ERR_REG_NOT_AVAIL, "Document Registry not available: " + registryUrl, e);
+			throw new XDSException(XDSException.XDS_ERR_REG_NOT_AVAIL, "Document Registry not available: " + registryUrls, e);
 		}
 		finally
 		{
-			XDSAudit.setAuditLogger(Context.getService(AtnaAuditService.class).getLogger());
-			XDSAudit.logExport(eventTypeCode, submissionSetUID, patID, XDSConstants.WS_ADDRESSING_ANONYMOUS, AuditLogger.processID(), info.getLocalHost(), registryUrl.toExternalForm(), null, registryUrl.getHost(), null, null, wasSuccess);
+			AuditDispatcher.getInstance().submit(AuditEvent.export(onDemand, submissionSetUID, patID, registryUrl, wasSuccess));
 		}
 		return rsp;
 	}
@@ -980,6 +1973,10 @@ public class XDSbServiceImpl extends BaseOpenmrsService implements XDSbService {
 		return dao;
 	}
 
+	public void setTransactionManager(PlatformTransactionManager transactionManager) {
+		this.transactionManager = transactionManager;
+	}
+
 	public void setDao(XDSbDAO dao) {
 		this.dao = dao;
 	}
@@ -0,0 +1,38 @@
+package org.openmrs.module.xdsbrepository.model;
+
+import javax.persistence.*;
+
+/**
+ * An entry of the dictionary of content handler classes, so that each document mapping stores a small id
+ * rather than the class name
+ */
+@Entity
+@Table(name = "xdsbrepository_handlers")
+public class DocHandler {
+
+	@Id
+	@GeneratedValue
+	@Column(name = "id")
+	private Integer id;
+
+	@Basic
+	@Column(name = "class_name")
+	private String className;
+
+	public Integer getId() {
+		return id;
+	}
+
+	public void setId(Integer id) {
+		this.id = id;
+	}
+
+	public String getClassName() {
+		return className;
+	}
+
+	public void setClassName(String className) {
+		this.className = className;
+	}
+
+}
@@ -18,10 +18,29 @@ public class DocHandlerMapping {
 	@Column(name = "doc_id")
 	private String docId;
 
+    @ManyToOne
+    @JoinColumn(name = "handler_id")
+    private DocHandler handler;
+
+    // a hash of the document id, see DocumentHandlerIndex#hash
+    @Basic
+    @Column(name = "doc_id_hash")
+    private Long docIdHash;
+
+    // the class name as stored before the handler dictionary, null once the mapping has been backfilled
     @Basic
 	@Column(name = "handler_class")
 	private String handlerClass;
 
+    // the mime type and size of the document as stored, null if it was registered without them
+    @Basic
+    @Column(name = "mime_type")
+    private String mimeType;
+
+    @Basic
+    @Column(name = "doc_size")
+    private Long size;
+
 	public Integer getId() {
 		return id;
 	}
@@ -38,6 +57,22 @@ public class DocHandlerMapping {
 		this.docId = docId;
 	}
 
+	public DocHandler getHandler() {
+		return handler;
+	}
+
+	public void setHandler(DocHandler handler) {
+		this.handler = handler;
+	}
+
+	public Long getDocIdHash() {
+		return docIdHash;
+	}
+
+	public void setDocIdHash(Long docIdHash) {
+		this.docIdHash = docIdHash;
+	}
+
 	public String getHandlerClass() {
 		return handlerClass;
 	}
@@ -46,4 +81,20 @@ public class DocHandlerMapping {
 		this.handlerClass = handlerClass;
 	}
 
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public void setMimeType(String mimeType) {
+		this.mimeType = mimeType;
+	}
+
+	public Long getSize() {
+		return size;
+	}
+
+	public void setSize(Long size) {
+		this.size = size;
+	}
+
 }
@@ -0,0 +1,26 @@
+package org.openmrs.module.xdsbrepository.model;
+
+/**
+ * The mime type and size of a stored document, kept with its handler mapping so that a retrieve response can be
+ * described without fetching the document
+ */
+public class DocumentDetails {
+
+	private final String mimeType;
+
+	private final long size;
+
+	public DocumentDetails(String mimeType, long size) {
+		this.mimeType = mimeType;
+		this.size = size;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+}
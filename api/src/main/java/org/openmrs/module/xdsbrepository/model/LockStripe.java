@@ -0,0 +1,26 @@
+package org.openmrs.module.xdsbrepository.model;
+
+import javax.persistence.*;
+
+/**
+ * A row that is locked (select ... for update) to serialise the creation of patients, providers and metadata
+ * with the same key across all the nodes that share the database. Keys are hashed onto a fixed number of
+ * stripes so that unrelated keys can be created in parallel.
+ */
+@Entity
+@Table(name = "xdsbrepository_lock_stripe")
+public class LockStripe {
+
+	@Id
+	@Column(name = "stripe_id")
+	private Integer stripeId;
+
+	public Integer getStripeId() {
+		return stripeId;
+	}
+
+	public void setStripeId(Integer stripeId) {
+		this.stripeId = stripeId;
+	}
+
+}
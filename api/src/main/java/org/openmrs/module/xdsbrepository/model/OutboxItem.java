@@ -0,0 +1,139 @@
+package org.openmrs.module.xdsbrepository.model;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * A Register Document Set-b request that is waiting to be delivered to the registry, see the outbox mode of
+ * the repository.
+ */
+@Entity
+@Table(name = "xdsbrepository_outbox")
+public class OutboxItem {
+
+    public enum Status {
+        QUEUED, DISPATCHING, FAILED, SENT
+    }
+
+    @Id
+    @GeneratedValue
+    @Column(name = "id")
+    private Integer id;
+
+    @Basic
+    @Column(name = "submission_set_id")
+    private String submissionSetId;
+
+    @Lob
+    @Column(name = "request")
+    private String request;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status")
+    private Status status;
+
+    @Basic
+    @Column(name = "attempts")
+    private int attempts;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "next_attempt")
+    private Date nextAttempt;
+
+    @Basic
+    @Column(name = "last_error")
+    private String lastError;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "date_added")
+    private Date dateAdded;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "date_updated")
+    private Date dateUpdated;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public String getSubmissionSetId() {
+        return submissionSetId;
+    }
+
+    public void setSubmissionSetId(String submissionSetId) {
+        this.submissionSetId = submissionSetId;
+    }
+
+    /**
+     * @return the marshalled SubmitObjectsRequest
+     */
+    public String getRequest() {
+        return request;
+    }
+
+    public void setRequest(String request) {
+        this.request = request;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Date getNextAttempt() {
+        return nextAttempt;
+    }
+
+    public void setNextAttempt(Date nextAttempt) {
+        this.nextAttempt = nextAttempt;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public Date getDateAdded() {
+        return dateAdded;
+    }
+
+    public void setDateAdded(Date dateAdded) {
+        this.dateAdded = dateAdded;
+    }
+
+    public Date getDateUpdated() {
+        return dateUpdated;
+    }
+
+    public void setDateUpdated(Date dateUpdated) {
+        this.dateUpdated = dateUpdated;
+    }
+}
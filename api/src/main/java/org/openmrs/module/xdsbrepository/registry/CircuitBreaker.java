@@ -0,0 +1,172 @@
+package org.openmrs.module.xdsbrepository.registry;
+
+/**
+ * A circuit breaker for the calls to one registry endpoint. It records the outcome of the most recent calls
+ * and opens once the failure rate reaches a threshold, after which calls are refused straight away rather
+ * than waiting for the registry to time out. Once the open duration has passed a single probe call is let
+ * through (half open): if it succeeds the breaker closes again, otherwise it stays open for another period.
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	private final String name;
+
+	private final int failureRateThreshold;
+
+	private final int minimumCalls;
+
+	private final long openDurationMs;
+
+	// the outcomes of the most recent calls, true for a failure
+	private final boolean[] window;
+
+	private int position;
+
+	private int calls;
+
+	private int failures;
+
+	private State state = State.CLOSED;
+
+	private long openedAt;
+
+	private long probeStartedAt = -1;
+
+	private long openedCount;
+
+	private long halfOpenedCount;
+
+	private long closedCount;
+
+	private long rejectedCount;
+
+	/**
+	 * @param name the name of the protected endpoint
+	 * @param failureRateThreshold the failure rate, in percent, at which the breaker opens
+	 * @param minimumCalls the number of calls that must have been recorded before the breaker can open
+	 * @param windowSize the number of most recent calls the failure rate is calculated over
+	 * @param openDurationMs how long the breaker stays open before a probe call is allowed
+	 */
+	public CircuitBreaker(String name, int failureRateThreshold, int minimumCalls, int windowSize, long openDurationMs) {
+		this.name = name;
+		this.failureRateThreshold = failureRateThreshold;
+		this.minimumCalls = Math.min(minimumCalls, windowSize);
+		this.openDurationMs = openDurationMs;
+		this.window = new boolean[windowSize];
+	}
+
+	/**
+	 * @return true if the call may go ahead, in which case its outcome must be reported with
+	 * {@link #onSuccess()} or {@link #onFailure()}
+	 */
+	public synchronized boolean tryAcquire() {
+		long now = System.currentTimeMillis();
+		if (state == State.OPEN && now - openedAt >= openDurationMs) {
+			state = State.HALF_OPEN;
+			halfOpenedCount++;
+			probeStartedAt = -1;
+		}
+		if (state == State.HALF_OPEN) {
+			// one probe at a time, unless the last one never reported back
+			if (probeStartedAt < 0 || now - probeStartedAt >= openDurationMs) {
+				probeStartedAt = now;
+				return true;
+			}
+		} else if (state == State.CLOSED) {
+			return true;
+		}
+		rejectedCount++;
+		return false;
+	}
+
+	public synchronized void onSuccess() {
+		if (state == State.HALF_OPEN) {
+			close();
+		} else {
+			record(false);
+		}
+	}
+
+	public synchronized void onFailure() {
+		if (state == State.HALF_OPEN) {
+			open();
+			return;
+		}
+		record(true);
+		if (state == State.CLOSED && calls >= minimumCalls && failures * 100 >= failureRateThreshold * calls) {
+			open();
+		}
+	}
+
+	/**
+	 * @return false if calls are currently being refused, without changing the state of the breaker
+	 */
+	public synchronized boolean isCallPermitted() {
+		return state != State.OPEN || System.currentTimeMillis() - openedAt >= openDurationMs;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	/**
+	 * @return the failure rate of the recorded calls, in percent
+	 */
+	public synchronized int getFailureRate() {
+		return calls == 0 ? 0 : failures * 100 / calls;
+	}
+
+	public synchronized long getOpenedCount() {
+		return openedCount;
+	}
+
+	public synchronized long getHalfOpenedCount() {
+		return halfOpenedCount;
+	}
+
+	public synchronized long getClosedCount() {
+		return closedCount;
+	}
+
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	private void record(boolean failure) {
+		if (calls == window.length) {
+			// overwrite the oldest outcome
+			if (window[position]) {
+				failures--;
+			}
+		} else {
+			calls++;
+		}
+		window[position] = failure;
+		if (failure) {
+			failures++;
+		}
+		position = (position + 1) % window.length;
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openedAt = System.currentTimeMillis();
+		openedCount++;
+	}
+
+	private void close() {
+		state = State.CLOSED;
+		calls = 0;
+		failures = 0;
+		position = 0;
+		closedCount++;
+	}
+
+}
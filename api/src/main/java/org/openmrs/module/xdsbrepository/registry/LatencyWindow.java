@@ -0,0 +1,62 @@
+package org.openmrs.module.xdsbrepository.registry;
+
+import java.util.Arrays;
+
+/**
+ * The latencies of the most recent calls to a registry endpoint, from which rolling percentiles are
+ * calculated
+ */
+public class LatencyWindow {
+
+	private final long[] samples;
+
+	private int position;
+
+	private int count;
+
+	public LatencyWindow(int size) {
+		samples = new long[size];
+	}
+
+	public synchronized void record(long latencyMs) {
+		samples[position] = latencyMs;
+		position = (position + 1) % samples.length;
+		if (count < samples.length) {
+			count++;
+		}
+	}
+
+	/**
+	 * @return the number of recorded calls, at most the size of the window
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/**
+	 * @param percentile between 1 and 100
+	 * @return the latency in ms that the given percentage of the recorded calls did not exceed, or -1 if no
+	 * calls have been recorded
+	 */
+	public long getPercentile(int percentile) {
+		long[] sorted;
+		synchronized (this) {
+			if (count == 0) {
+				return -1;
+			}
+			sorted = Arrays.copyOf(samples, count);
+		}
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+	}
+
+	public long getP50() {
+		return getPercentile(50);
+	}
+
+	public long getP95() {
+		return getPercentile(95);
+	}
+
+}
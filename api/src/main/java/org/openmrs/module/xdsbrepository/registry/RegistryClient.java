@@ -0,0 +1,544 @@
+package org.openmrs.module.xdsbrepository.registry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dcm4chee.xds2.common.exception.XDSException;
+import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
+import org.dcm4chee.xds2.infoset.rim.SubmitObjectsRequest;
+import org.dcm4chee.xds2.infoset.util.DocumentRegistryPortTypeFactory;
+import org.dcm4chee.xds2.infoset.ws.registry.DocumentRegistryPortType;
+import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.xdsbrepository.XDSbConfiguration;
+import org.openmrs.module.xdsbrepository.impl.DocumentProcessingPool;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import javax.xml.ws.BindingProvider;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client for the ITI-42 Register Document Set-b transaction that keeps a pool of registry ports per
+ * registry URL, rather than building a new port (with its marshallers and HTTP/TLS connection) for every
+ * submission.
+ * <p/>
+ * All the ports share one SSLSocketFactory, built from the keystore and truststore global properties when they
+ * are set, so TLS sessions are resumed rather than renegotiated, and the HTTP connections underneath are kept
+ * alive between requests. The pools are discarded when one of the registry global properties changes, see
+ * {@link RegistryGlobalPropertyListener}.
+ * <p/>
+ * Calls are made with connect and read timeouts, and each registry URL has a {@link CircuitBreaker} so that
+ * while a registry is failing, submissions fail fast with XDS_ERR_REG_NOT_AVAIL.
+ * <p/>
+ * Several equivalent registry endpoints may be configured. Each call goes to the endpoint with the lowest
+ * rolling p95 latency whose circuit breaker is not open, and endpoints with too few recorded calls are tried
+ * first so that every endpoint's latency stays known. Register Document Set-b is not idempotent, so a request
+ * only fails over to the next endpoint when it cannot have reached the registry: the endpoint's breaker rejected
+ * it, or the connection was refused or timed out while connecting. Other failures, such as read timeouts and
+ * SOAP faults, are thrown, as the registry may have registered the submission. When hedging is enabled and the
+ * chosen endpoint has not answered within its p95 latency, the request is also sent to the next endpoint and
+ * the first response is used.
+ */
+public class RegistryClient {
+
+	private static final Log log = LogFactory.getLog(RegistryClient.class);
+
+	private static final int LATENCY_WINDOW_SIZE = 200;
+
+	// the number of calls to an endpoint before its latency is trusted for routing
+	private static final int MIN_LATENCY_SAMPLES = 20;
+
+	// the hedge delay for an endpoint whose latency is not known yet
+	private static final long DEFAULT_HEDGE_DELAY_MS = 1000;
+
+	// the request context properties for the timeouts, standard and of the JAX-WS reference implementation
+	private static final String[] CONNECT_TIMEOUT_PROPERTIES = {
+			"javax.xml.ws.client.connectionTimeout",
+			"com.sun.xml.internal.ws.connect.timeout",
+			"com.sun.xml.ws.connect.timeout"
+	};
+
+	private static final String[] READ_TIMEOUT_PROPERTIES = {
+			"javax.xml.ws.client.receiveTimeout",
+			"com.sun.xml.internal.ws.request.timeout",
+			"com.sun.xml.ws.request.timeout"
+	};
+
+	// the request context properties for the SSLSocketFactory of the JAX-WS reference implementation, as
+	// bundled with the JDK and as a library
+	private static final String[] SSL_SOCKET_FACTORY_PROPERTIES = {
+			"com.sun.xml.internal.ws.transport.https.client.SSLSocketFactory",
+			"com.sun.xml.ws.transport.https.client.SSLSocketFactory"
+	};
+
+	private static final RegistryClient instance = new RegistryClient();
+
+	private final ConcurrentMap<String, BlockingQueue<DocumentRegistryPortType>> pools = new ConcurrentHashMap<String, BlockingQueue<DocumentRegistryPortType>>();
+
+	private final ConcurrentMap<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String, CircuitBreaker>();
+
+	private final ConcurrentMap<String, LatencyWindow> latencies = new ConcurrentHashMap<String, LatencyWindow>();
+
+	private volatile SSLSocketFactory sslSocketFactory;
+
+	private volatile boolean sslConfigured;
+
+	private RegistryClient() {
+	}
+
+	public static RegistryClient getInstance() {
+		return instance;
+	}
+
+	/**
+	 * The response to a registration, with the endpoint that gave it
+	 */
+	public static class Registration {
+
+		private final URL registryUrl;
+
+		private final RegistryResponseType response;
+
+		Registration(URL registryUrl, RegistryResponseType response) {
+			this.registryUrl = registryUrl;
+			this.response = response;
+		}
+
+		public URL getRegistryUrl() {
+			return registryUrl;
+		}
+
+		public RegistryResponseType getResponse() {
+			return response;
+		}
+	}
+
+	/**
+	 * Thrown when a request is not sent to a registry because its circuit breaker is open
+	 */
+	public static class CircuitOpenException extends XDSException {
+
+		CircuitOpenException(String registryUrl) {
+			super(XDSException.XDS_ERR_REG_NOT_AVAIL, "The registry " + registryUrl + " is failing, not sending requests to it for now", null);
+		}
+	}
+
+	/**
+	 * Send a Register Document Set-b request to the best of several equivalent registry endpoints, failing over
+	 * to the next endpoint when a call could not reach its registry, and hedging it with the next endpoint if
+	 * that is enabled
+	 *
+	 * @param registryUrls the URLs of the registry endpoints, in order of preference when their latencies are equal
+	 * @param submitObjectsRequest the metadata to register
+	 * @return the first response
+	 * @throws Exception the failure of a call that may have reached its registry, or if no endpoint could be
+	 * reached, the failure of the first endpoint that was called
+	 */
+	public Registration registerDocumentSetB(List<URL> registryUrls, final SubmitObjectsRequest submitObjectsRequest) throws Exception {
+		List<URL> endpoints = orderEndpoints(registryUrls);
+		boolean hedging = endpoints.size() > 1
+				&& XDSbConfiguration.getInstance().isRegistryHedge();
+		if (!hedging) {
+			Exception failure = null;
+			for (URL endpoint : endpoints) {
+				try {
+					return new Registration(endpoint, registerDocumentSetB(endpoint.toString(), submitObjectsRequest));
+				} catch (Exception e) {
+					if (!isNotSent(e)) {
+						throw e;
+					}
+					log.debug("Registry " + endpoint + " could not be reached, trying the next one", e);
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+			throw failure;
+		}
+
+		CompletionService<Registration> completionService = new ExecutorCompletionService<Registration>(
+				DocumentProcessingPool.getRegistryExecutor());
+		final UserContext userContext = Context.getUserContext();
+		URL latest = endpoints.get(0);
+		completionService.submit(new RegistrationTask(latest, submitObjectsRequest, userContext));
+		int next = 1;
+		int pending = 1;
+		boolean hedged = false;
+
+		Exception failure = null;
+		while (pending > 0) {
+			Future<Registration> future;
+			if (!hedged && next < endpoints.size()) {
+				future = completionService.poll(getHedgeDelay(latest), TimeUnit.MILLISECONDS);
+				if (future == null) {
+					log.debug("Registry " + latest + " is slow, hedging with " + endpoints.get(next));
+					latest = endpoints.get(next++);
+					completionService.submit(new RegistrationTask(latest, submitObjectsRequest, userContext));
+					pending++;
+					hedged = true;
+					continue;
+				}
+			} else {
+				future = completionService.take();
+			}
+			pending--;
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+				if (!isNotSent(cause)) {
+					// the registry may have registered it, so no other endpoint is tried, but one already called may
+					// still answer
+					failure = cause;
+					next = endpoints.size();
+					continue;
+				}
+				if (failure == null) {
+					failure = cause;
+				}
+				// fail over at once rather than after the hedge delay
+				if (next < endpoints.size()) {
+					log.debug("A registry failed, trying " + endpoints.get(next), e.getCause());
+					latest = endpoints.get(next++);
+					completionService.submit(new RegistrationTask(latest, submitObjectsRequest, userContext));
+					pending++;
+				}
+			}
+		}
+		throw failure;
+	}
+
+	/**
+	 * Send a Register Document Set-b request to the registry
+	 *
+	 * @param registryUrl the URL of the registry
+	 * @param submitObjectsRequest the metadata to register
+	 * @return the registry response
+	 * @throws XDSException if the circuit breaker for the registry is open, or the TLS configuration cannot be loaded
+	 * @throws Exception if the registry cannot be reached or returns a fault
+	 */
+	public RegistryResponseType registerDocumentSetB(String registryUrl, SubmitObjectsRequest submitObjectsRequest) throws Exception {
+		CircuitBreaker circuitBreaker = getCircuitBreaker(registryUrl);
+		if (!circuitBreaker.tryAcquire()) {
+			throw new CircuitOpenException(registryUrl);
+		}
+
+		DocumentRegistryPortType port = null;
+		boolean success = false;
+		long start = 0;
+		try {
+			// inside the try, so that the permit is given back if the port cannot be built
+			port = borrowPort(registryUrl);
+			start = System.currentTimeMillis();
+			RegistryResponseType rsp = port.documentRegistryRegisterDocumentSetB(submitObjectsRequest);
+			success = true;
+			return rsp;
+		} finally {
+			if (port != null) {
+				// failures are recorded too, a timing out endpoint should not look fast
+				getLatencyWindow(registryUrl).record(System.currentTimeMillis() - start);
+			}
+			if (success) {
+				circuitBreaker.onSuccess();
+				returnPort(registryUrl, port);
+			} else {
+				// ports that failed are dropped, in case their connection is in a bad state
+				circuitBreaker.onFailure();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the request cannot have reached the registry, so that it is safe to send it to another one
+	 */
+	private static boolean isNotSent(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+			if (t instanceof CircuitOpenException || t instanceof ConnectException || t instanceof NoRouteToHostException
+					|| t instanceof UnknownHostException) {
+				return true;
+			}
+			// as opposed to "Read timed out", once the request may have been sent
+			if (t instanceof SocketTimeoutException && "connect timed out".equals(t.getMessage())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the circuit breakers of the registries that have been called
+	 */
+	public Collection<CircuitBreaker> getCircuitBreakers() {
+		return new ArrayList<CircuitBreaker>(circuitBreakers.values());
+	}
+
+	/**
+	 * @return the latencies of the registries that have been called, by URL
+	 */
+	public Map<String, LatencyWindow> getLatencies() {
+		return new TreeMap<String, LatencyWindow>(latencies);
+	}
+
+	/**
+	 * Discard all the pooled ports, the TLS configuration and the endpoint statistics, they are rebuilt on the
+	 * next request
+	 */
+	public synchronized void reset() {
+		pools.clear();
+		circuitBreakers.clear();
+		latencies.clear();
+		sslSocketFactory = null;
+		sslConfigured = false;
+		log.debug("Registry client reset");
+	}
+
+	private DocumentRegistryPortType borrowPort(String registryUrl) throws XDSException {
+		DocumentRegistryPortType port = getPool(registryUrl).poll();
+		if (port == null) {
+			port = createPort(registryUrl);
+		}
+		return port;
+	}
+
+	private void returnPort(String registryUrl, DocumentRegistryPortType port) {
+		// if the pool is full (or was reset meanwhile) the port is simply dropped
+		BlockingQueue<DocumentRegistryPortType> pool = pools.get(registryUrl);
+		if (pool != null) {
+			pool.offer(port);
+		}
+	}
+
+	private BlockingQueue<DocumentRegistryPortType> getPool(String registryUrl) {
+		BlockingQueue<DocumentRegistryPortType> pool = pools.get(registryUrl);
+		if (pool == null) {
+			int poolSize = XDSbConfiguration.getInstance().getRegistryPoolSize();
+			pool = new ArrayBlockingQueue<DocumentRegistryPortType>(poolSize);
+			BlockingQueue<DocumentRegistryPortType> existing = pools.putIfAbsent(registryUrl, pool);
+			if (existing != null) {
+				pool = existing;
+			} else {
+				log.info("Created a pool of up to " + poolSize + " ports for registry " + registryUrl);
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * @return the endpoints whose circuit breakers allow calls (or all of them, if none do), those with too few
+	 * recorded calls first and then the fastest first
+	 */
+	private List<URL> orderEndpoints(List<URL> registryUrls) {
+		List<URL> endpoints = new ArrayList<URL>(registryUrls.size());
+		for (URL url : registryUrls) {
+			if (getCircuitBreaker(url.toString()).isCallPermitted()) {
+				endpoints.add(url);
+			}
+		}
+		if (endpoints.isEmpty()) {
+			endpoints.addAll(registryUrls);
+		}
+
+		final Map<URL, Long> p95s = new HashMap<URL, Long>();
+		final Map<URL, Integer> counts = new HashMap<URL, Integer>();
+		for (URL url : endpoints) {
+			LatencyWindow window = getLatencyWindow(url.toString());
+			counts.put(url, window.getCount());
+			p95s.put(url, window.getP95());
+		}
+		// a stable sort, so configured order breaks ties
+		Collections.sort(endpoints, new Comparator<URL>() {
+			@Override
+			public int compare(URL a, URL b) {
+				int countA = counts.get(a);
+				int countB = counts.get(b);
+				if (countA < MIN_LATENCY_SAMPLES || countB < MIN_LATENCY_SAMPLES) {
+					return countA < countB ? -1 : (countA == countB ? 0 : 1);
+				}
+				return p95s.get(a).compareTo(p95s.get(b));
+			}
+		});
+		return endpoints;
+	}
+
+	private long getHedgeDelay(URL registryUrl) {
+		LatencyWindow window = getLatencyWindow(registryUrl.toString());
+		return window.getCount() < MIN_LATENCY_SAMPLES ? DEFAULT_HEDGE_DELAY_MS : window.getP95();
+	}
+
+	private LatencyWindow getLatencyWindow(String registryUrl) {
+		LatencyWindow window = latencies.get(registryUrl);
+		if (window == null) {
+			window = new LatencyWindow(LATENCY_WINDOW_SIZE);
+			LatencyWindow existing = latencies.putIfAbsent(registryUrl, window);
+			if (existing != null) {
+				window = existing;
+			}
+		}
+		return window;
+	}
+
+	private CircuitBreaker getCircuitBreaker(String registryUrl) {
+		CircuitBreaker circuitBreaker = circuitBreakers.get(registryUrl);
+		if (circuitBreaker == null) {
+			XDSbConfiguration configuration = XDSbConfiguration.getInstance();
+			circuitBreaker = new CircuitBreaker(registryUrl, configuration.getBreakerFailureRateThreshold(),
+					configuration.getBreakerMinimumCalls(), configuration.getBreakerWindowSize(),
+					configuration.getBreakerOpenDuration());
+			CircuitBreaker existing = circuitBreakers.putIfAbsent(registryUrl, circuitBreaker);
+			if (existing != null) {
+				circuitBreaker = existing;
+			}
+		}
+		return circuitBreaker;
+	}
+
+	private DocumentRegistryPortType createPort(String registryUrl) throws XDSException {
+		DocumentRegistryPortType port = DocumentRegistryPortTypeFactory.getDocumentRegistryPortSoap12(registryUrl);
+		Map<String, Object> requestContext = ((BindingProvider) port).getRequestContext();
+
+		XDSbConfiguration configuration = XDSbConfiguration.getInstance();
+		Integer connectTimeout = configuration.getRegistryConnectTimeout();
+		for (String property : CONNECT_TIMEOUT_PROPERTIES) {
+			requestContext.put(property, connectTimeout);
+		}
+		Integer readTimeout = configuration.getRegistryReadTimeout();
+		for (String property : READ_TIMEOUT_PROPERTIES) {
+			requestContext.put(property, readTimeout);
+		}
+
+		SSLSocketFactory factory = getSslSocketFactory();
+		if (factory != null) {
+			for (String property : SSL_SOCKET_FACTORY_PROPERTIES) {
+				requestContext.put(property, factory);
+			}
+		}
+		return port;
+	}
+
+	private SSLSocketFactory getSslSocketFactory() throws XDSException {
+		if (!sslConfigured) {
+			synchronized (this) {
+				if (!sslConfigured) {
+					sslSocketFactory = buildSslSocketFactory();
+					sslConfigured = true;
+				}
+			}
+		}
+		return sslSocketFactory;
+	}
+
+	/**
+	 * @return a socket factory for the module keystore and truststore, or null if neither is configured, in
+	 * which case the JVM defaults are used
+	 */
+	private SSLSocketFactory buildSslSocketFactory() throws XDSException {
+		XDSbConfiguration configuration = XDSbConfiguration.getInstance();
+		String keystorePath = configuration.getKeystorePath();
+		String truststorePath = configuration.getTruststorePath();
+		if (isEmpty(keystorePath) && isEmpty(truststorePath)) {
+			return null;
+		}
+
+		try {
+			KeyManagerFactory kmf = null;
+			if (!isEmpty(keystorePath)) {
+				char[] password = toChars(configuration.getKeystorePassword());
+				kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+				kmf.init(loadKeyStore(keystorePath, password), password);
+			}
+
+			TrustManagerFactory tmf = null;
+			if (!isEmpty(truststorePath)) {
+				char[] password = toChars(configuration.getTruststorePassword());
+				tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+				tmf.init(loadKeyStore(truststorePath, password));
+			}
+
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(kmf != null ? kmf.getKeyManagers() : null, tmf != null ? tmf.getTrustManagers() : null, null);
+			return context.getSocketFactory();
+		} catch (GeneralSecurityException e) {
+			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, "Could not configure TLS for the registry: " + e.getMessage(), e);
+		} catch (IOException e) {
+			throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, "Could not load the registry keystore: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Sends a request on a registry thread, with the OpenMRS user context of the request thread
+	 */
+	private class RegistrationTask implements Callable<Registration> {
+
+		private final URL registryUrl;
+
+		private final SubmitObjectsRequest submitObjectsRequest;
+
+		private final UserContext userContext;
+
+		RegistrationTask(URL registryUrl, SubmitObjectsRequest submitObjectsRequest, UserContext userContext) {
+			this.registryUrl = registryUrl;
+			this.submitObjectsRequest = submitObjectsRequest;
+			this.userContext = userContext;
+		}
+
+		@Override
+		public Registration call() throws Exception {
+			Context.openSession();
+			Context.setUserContext(userContext);
+			try {
+				return new Registration(registryUrl, registerDocumentSetB(registryUrl.toString(), submitObjectsRequest));
+			} finally {
+				Context.closeSession();
+			}
+		}
+	}
+
+	private static KeyStore loadKeyStore(String path, char[] password) throws GeneralSecurityException, IOException {
+		KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+		InputStream in = new FileInputStream(path);
+		try {
+			keyStore.load(in, password);
+		} finally {
+			in.close();
+		}
+		return keyStore;
+	}
+
+	private static char[] toChars(String password) {
+		return password != null ? password.toCharArray() : null;
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.trim().isEmpty();
+	}
+
+}
@@ -0,0 +1,29 @@
+package org.openmrs.module.xdsbrepository.registry;
+
+import org.openmrs.GlobalProperty;
+import org.openmrs.api.GlobalPropertyListener;
+
+/**
+ * Resets the {@link RegistryClient} when the registry URL, pool size or TLS configuration changes, so that
+ * the new configuration is used from the next request on
+ */
+public class RegistryGlobalPropertyListener implements GlobalPropertyListener {
+
+	private static final String REGISTRY_PROPERTY_PREFIX = "xds-b-repository.xdsregistry.";
+
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return propertyName != null && propertyName.startsWith(REGISTRY_PROPERTY_PREFIX);
+	}
+
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		RegistryClient.getInstance().reset();
+	}
+
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		RegistryClient.getInstance().reset();
+	}
+
+}
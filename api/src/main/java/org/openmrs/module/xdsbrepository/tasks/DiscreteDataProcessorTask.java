@@ -27,8 +27,6 @@ import java.util.Set;
 
 public class DiscreteDataProcessorTask implements Runnable {
 
-    private static final Object lock = new Object();
-
     private Log log = LogFactory.getLog(DiscreteDataProcessorTask.class);
 
     @Override
@@ -36,11 +34,8 @@ public class DiscreteDataProcessorTask implements Runnable {
         XDSbService service = Context.getService(XDSbService.class);
         Utils.startSession();
 
-        QueueItem currentQueueItem;
-        // ensure that tasks don't dequeue the same queue item
-        synchronized (lock) {
-            currentQueueItem = service.dequeueNextDiscreteDataForProcessing();
-        }
+        // claimed in the database, so no other task or node dequeues the same queue item
+        QueueItem currentQueueItem = service.dequeueNextDiscreteDataForProcessing();
         if (currentQueueItem != null) {
             try {
                 processQueueItem(currentQueueItem);
@@ -0,0 +1,84 @@
+package org.openmrs.module.xdsbrepository.tasks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.dcm4chee.xds2.common.XDSConstants;
+import org.dcm4chee.xds2.common.exception.XDSException;
+import org.dcm4chee.xds2.infoset.rim.RegistryError;
+import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbConfiguration;
+import org.openmrs.module.xdsbrepository.XDSbService;
+import org.openmrs.module.xdsbrepository.model.OutboxItem;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Delivers the submissions queued in the outbox to the registry. Items are delivered oldest first, and an
+ * item that could not be delivered holds back the later items of its submission set until it is retried.
+ */
+public class OutboxDispatcherTask implements Runnable {
+
+    private Log log = LogFactory.getLog(OutboxDispatcherTask.class);
+
+    @Override
+    public void run() {
+        try {
+            Utils.startSession();
+            dispatch();
+        } catch (Exception e) {
+            log.error("Error dispatching the registry outbox", e);
+        } finally {
+            Context.closeSession();
+        }
+    }
+
+    protected void dispatch() {
+        XDSbService service = Context.getService(XDSbService.class);
+        int batchSize = XDSbConfiguration.getInstance().getOutboxBatchSize();
+
+        List<OutboxItem> items = service.getDueOutboxItems(batchSize);
+        Set<String> heldBack = new HashSet<String>();
+        for (OutboxItem item : items) {
+            if (heldBack.contains(item.getSubmissionSetId()) || !service.claimOutboxItem(item)) {
+                continue;
+            }
+
+            try {
+                RegistryResponseType response = service.dispatchOutboxItem(item);
+                if (XDSConstants.XDS_B_STATUS_SUCCESS.equals(response.getStatus())) {
+                    service.completeOutboxItem(item, true);
+                } else {
+                    // the registry rejected the submission, sending it again won't help
+                    item.setLastError(describeErrors(response));
+                    log.error("The registry rejected outbox item " + item.getId() + " for submission set "
+                            + item.getSubmissionSetId() + ": " + item.getLastError());
+                    service.completeOutboxItem(item, false);
+                }
+            } catch (XDSException e) {
+                log.warn("Could not deliver outbox item " + item.getId() + " for submission set "
+                        + item.getSubmissionSetId() + ", it will be retried: " + e.getMessage());
+                heldBack.add(item.getSubmissionSetId());
+                service.rescheduleOutboxItem(item, e.getMessage());
+            }
+        }
+    }
+
+    private static String describeErrors(RegistryResponseType response) {
+        if (response.getRegistryErrorList() == null) {
+            return response.getStatus();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (RegistryError error : response.getRegistryErrorList().getRegistryError()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(error.getErrorCode()).append(": ").append(error.getCodeContext());
+        }
+        return sb.length() > 1024 ? sb.substring(0, 1024) : sb.toString();
+    }
+
+}
@@ -0,0 +1,29 @@
+package org.openmrs.module.xdsbrepository.tasks;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.cache.ProviderIndex;
+
+/**
+ * Rebuilds the provider index to pick up providers created or changed on other nodes, so that requests can
+ * keep using the current index rather than rebuilding it themselves.
+ */
+public class ProviderIndexRefreshTask implements Runnable {
+
+    private Log log = LogFactory.getLog(ProviderIndexRefreshTask.class);
+
+    @Override
+    public void run() {
+        try {
+            Utils.startSession();
+            ProviderIndex.getInstance().refresh();
+        } catch (Exception e) {
+            log.error("Error refreshing the provider index, the current index is kept", e);
+        } finally {
+            Context.closeSession();
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+package org.openmrs.module.xdsbrepository;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HL7ParserTest {
+
+    @Test
+    public void component_shouldReturnEmptyAndMissingComponents() {
+        assertEquals("1111", HL7Parser.component("1111^^^&1.2.3&ISO", '^', 0));
+        assertEquals("", HL7Parser.component("1111^^^&1.2.3&ISO", '^', 1));
+        assertEquals("&1.2.3&ISO", HL7Parser.component("1111^^^&1.2.3&ISO", '^', 3));
+        assertNull(HL7Parser.component("1111^^^&1.2.3&ISO", '^', 4));
+        assertNull(HL7Parser.nonEmptyComponent("1111^^^&1.2.3&ISO", '^', 2));
+    }
+
+    @Test
+    public void component_shouldOnlyLookWithinTheGivenRange() {
+        String cx = "1111^^^&1.2.3&ISO^PI";
+        assertEquals("1.2.3", HL7Parser.component(cx, 7, 17, '&', 1));
+        assertEquals("ISO", HL7Parser.component(cx, 7, 17, '&', 2));
+        assertNull(HL7Parser.component(cx, 7, 17, '&', 3));
+    }
+
+    @Test
+    public void pidFieldNumber_shouldParseTheFieldNumber() {
+        assertEquals(5, HL7Parser.pidFieldNumber("PID-5|Doe^John"));
+        assertEquals(11, HL7Parser.pidFieldNumber("PID-11|100 Main St^^Metropolis"));
+        assertEquals(-1, HL7Parser.pidFieldNumber("PID-X|Doe^John"));
+        assertEquals(-1, HL7Parser.pidFieldNumber("PID-|Doe^John"));
+        assertEquals(-1, HL7Parser.pidFieldNumber("stuff"));
+        assertEquals(6, HL7Parser.pidValueStart("PID-5|Doe^John"));
+    }
+
+    @Test
+    public void identifier_shouldParseCX() throws Exception {
+        Identifier id = new Identifier("1111^^^test&1.2.3&ISO^PI");
+        assertEquals("1111", id.getIdentifier());
+        assertEquals("test", id.getAssigningAuthority().getAssigningAuthority());
+        assertEquals("1.2.3", id.getAssigningAuthority().getAssigningAuthorityId());
+        assertEquals("ISO", id.getAssigningAuthority().getAssigningAuthorityIdType());
+        assertEquals("PI", id.getTypeCode());
+        assertEquals("1111^^^test&1.2.3&ISO^PI", id.toCX());
+    }
+
+    @Test
+    public void identifier_shouldBeEqualWhenTheCXIsTheSame() throws Exception {
+        Identifier id1 = new Identifier("1111^^^&1.2.3&ISO");
+        Identifier id2 = new Identifier("1111", new AssigningAuthority("", "1.2.3", "ISO"), " ");
+        Identifier id3 = new Identifier("1111^^^&1.2.4&ISO");
+
+        assertEquals(id1.toCX(), id2.toCX());
+        assertEquals(id1, id2);
+        assertEquals(id1.hashCode(), id2.hashCode());
+        assertFalse(id1.equals(id3));
+    }
+
+    @Test
+    public void parsePatientIdentifier_shouldUnescapeSubcomponentSeparators() throws Exception {
+        Identifier id = DocumentMetadata.parsePatientIdentifier("1111^^^&amp;1.2.3&amp;ISO");
+        assertEquals("1111", id.getIdentifier());
+        assertEquals("1.2.3", id.getAssigningAuthority().getAssigningAuthorityId());
+        assertEquals("ISO", id.getAssigningAuthority().getAssigningAuthorityIdType());
+    }
+
+}
@@ -0,0 +1,101 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AuditDispatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Records the events instead of sending them, holding up the first batch until it is released
+     */
+    private static class RecordingDispatcher extends AuditDispatcher {
+
+        private final CountDownLatch sending = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private final List<AuditEvent> sent = new ArrayList<AuditEvent>();
+
+        RecordingDispatcher(int capacity, File spillDirectory) {
+            super(capacity, spillDirectory);
+        }
+
+        @Override
+        void sendBatch(List<AuditEvent> batch) {
+            sending.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (sent) {
+                sent.addAll(batch);
+            }
+        }
+
+        List<AuditEvent> getSent() {
+            synchronized (sent) {
+                return new ArrayList<AuditEvent>(sent);
+            }
+        }
+    }
+
+    private static AuditEvent event(String submissionSetUID, long eventTime) {
+        return new AuditEvent(AuditEvent.Type.REPOSITORY_IMPORT, eventTime, submissionSetUID, "1111111111^^^&1.2.3&ISO", "true");
+    }
+
+    @Test
+    public void submit_shouldSpillEventsWhenTheBufferIsFullAndReplayThemWithTheirTime() throws Exception {
+        File directory = folder.newFolder();
+        RecordingDispatcher dispatcher = new RecordingDispatcher(2, directory);
+        dispatcher.start();
+        try {
+            AuditEvent first = event("2009.9.1.1", 1000L);
+            dispatcher.submit(first);
+            assertTrue(dispatcher.sending.await(10, TimeUnit.SECONDS));
+
+            AuditEvent second = event("2009.9.1.2", 2000L);
+            AuditEvent third = event("2009.9.1.3", 3000L);
+            AuditEvent fourth = event("2009.9.1.4", 4000L);
+            AuditEvent fifth = event("2009.9.1.5", 5000L);
+            dispatcher.submit(second);
+            dispatcher.submit(third);
+            dispatcher.submit(fourth);
+            dispatcher.submit(fifth);
+
+            assertEquals(2, dispatcher.getBufferedCount());
+            File spillFile = new File(directory, "audit-spill.log");
+            assertEquals(Arrays.asList(fourth.toLine(), fifth.toLine()), FileUtils.readLines(spillFile, "UTF-8"));
+
+            dispatcher.release.countDown();
+            File replayFile = new File(directory, "audit-spill.log.replaying");
+            long deadline = System.currentTimeMillis() + 10000;
+            while ((dispatcher.getSent().size() < 5 || replayFile.exists()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+
+            assertEquals(Arrays.asList(first, second, third, fourth, fifth), dispatcher.getSent());
+            assertEquals(4000L, dispatcher.getSent().get(3).getEventTime());
+            assertFalse(spillFile.exists() && spillFile.length() > 0);
+            assertFalse(replayFile.exists());
+        } finally {
+            dispatcher.release.countDown();
+            dispatcher.stop();
+        }
+    }
+
+}
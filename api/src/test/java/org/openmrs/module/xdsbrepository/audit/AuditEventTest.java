@@ -0,0 +1,58 @@
+package org.openmrs.module.xdsbrepository.audit;
+
+import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetRequestType;
+import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetResponseType;
+import org.junit.Test;
+
+import java.net.URL;
+
+import static org.junit.Assert.*;
+
+public class AuditEventTest {
+
+    @Test
+    public void fromLine_shouldReadBackAnEventWrittenByToLine() throws Exception {
+        AuditEvent event = AuditEvent.export(false, "2009.9.1.2456", "1111111111^^^&1.2.3&ISO",
+                new URL("http://localhost:8089/ws/xdsregistry"), true);
+
+        assertEquals(event, AuditEvent.fromLine(event.toLine()));
+    }
+
+    @Test
+    public void fromLine_shouldKeepNullsAndEscapedCharacters() {
+        AuditEvent event = AuditEvent.repositoryImport("a\tb\\N\nc", null, false);
+
+        String line = event.toLine();
+        assertEquals(-1, line.indexOf('\n'));
+        assertEquals(event, AuditEvent.fromLine(line));
+    }
+
+    @Test
+    public void fromLine_shouldKeepTheTimeTheEventHappened() {
+        AuditEvent event = new AuditEvent(AuditEvent.Type.REPOSITORY_IMPORT, 1000L, "2009.9.1.2456", null, "true");
+
+        assertEquals(1000L, AuditEvent.fromLine(event.toLine()).getEventTime());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromLine_shouldRejectALineWithoutAnEventTime() {
+        AuditEvent.fromLine("REPOSITORY_IMPORT");
+    }
+
+    @Test
+    public void repositoryRetrieveExport_shouldNotKeepTheDocuments() {
+        RetrieveDocumentSetRequestType req = new RetrieveDocumentSetRequestType();
+        RetrieveDocumentSetRequestType.DocumentRequest documentRequest = new RetrieveDocumentSetRequestType.DocumentRequest();
+        documentRequest.setRepositoryUniqueId("1.19.6.24.109.42.1.5.1");
+        documentRequest.setDocumentUniqueId("2009.9.1.2455");
+        req.getDocumentRequest().add(documentRequest);
+        RetrieveDocumentSetResponseType rsp = new RetrieveDocumentSetResponseType();
+
+        AuditEvent event = AuditEvent.repositoryRetrieveExport(req, rsp);
+
+        assertEquals("REPOSITORY_RETRIEVE_EXPORT\t" + event.getEventTime() + "\t\\N\t1\t1.19.6.24.109.42.1.5.1\t2009.9.1.2455\t\\N\t0",
+                event.toLine());
+        assertEquals(event, AuditEvent.fromLine(event.toLine()));
+    }
+
+}
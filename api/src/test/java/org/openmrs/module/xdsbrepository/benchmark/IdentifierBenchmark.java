@@ -0,0 +1,170 @@
+package org.openmrs.module.xdsbrepository.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openmrs.module.xdsbrepository.AssigningAuthority;
+import org.openmrs.module.xdsbrepository.DocumentMetadata;
+import org.openmrs.module.xdsbrepository.Identifier;
+import org.openmrs.module.xdsbrepository.exceptions.CXParseException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the index based CX parsing and field based equality of {@link Identifier} with the previous
+ * split and string building implementation, which is kept here as {@link LegacyIdentifier}.
+ * <p/>
+ * This is not run as part of the build, run it with:
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.openmrs.module.xdsbrepository.benchmark.IdentifierBenchmark
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class IdentifierBenchmark {
+
+	private static final String CX = "1111111111^^^&1.2.3&ISO^PI";
+
+	private static final String OTHER_CX = "1111111111^^^&1.2.4&ISO^PI";
+
+	private Identifier identifier;
+
+	private Identifier otherIdentifier;
+
+	private LegacyIdentifier legacyIdentifier;
+
+	private LegacyIdentifier otherLegacyIdentifier;
+
+	@Setup
+	public void setup() throws CXParseException {
+		identifier = new Identifier(CX);
+		otherIdentifier = new Identifier(OTHER_CX);
+		legacyIdentifier = new LegacyIdentifier(CX);
+		otherLegacyIdentifier = new LegacyIdentifier(OTHER_CX);
+	}
+
+	@Benchmark
+	public Identifier parse() throws CXParseException {
+		return DocumentMetadata.parsePatientIdentifier(CX);
+	}
+
+	@Benchmark
+	public LegacyIdentifier parseLegacy() {
+		return new LegacyIdentifier(CX);
+	}
+
+	@Benchmark
+	public boolean equalsDifferentAuthority() {
+		return identifier.equals(otherIdentifier);
+	}
+
+	@Benchmark
+	public boolean equalsDifferentAuthorityLegacy() {
+		return legacyIdentifier.equals(otherLegacyIdentifier);
+	}
+
+	@Benchmark
+	public int hash() {
+		return identifier.hashCode();
+	}
+
+	@Benchmark
+	public int hashLegacy() {
+		return legacyIdentifier.hashCode();
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		Options options = new OptionsBuilder()
+				.include(IdentifierBenchmark.class.getSimpleName())
+				.build();
+		new Runner(options).run();
+	}
+
+	/**
+	 * The previous CX parsing, which splits with regular expressions and compares by building CX strings
+	 */
+	public static class LegacyIdentifier {
+
+		private String identifier;
+
+		private AssigningAuthority assigningAuthority;
+
+		private String typeCode;
+
+		public LegacyIdentifier(String CX) {
+			String[] tokens = CX.replaceAll("&amp;", "&").split("\\^");
+
+			if (tokens.length > 0 && !tokens[0].isEmpty()) {
+				identifier = tokens[0];
+			}
+
+			if (tokens.length > 3 && !tokens[3].isEmpty()) {
+				String[] authTokens = tokens[3].split("&");
+				AssigningAuthority auth = new AssigningAuthority();
+
+				if (authTokens.length > 0 && !authTokens[0].isEmpty()) {
+					auth.setAssigningAuthority(authTokens[0]);
+				}
+				if (authTokens.length > 1 && !authTokens[1].isEmpty()) {
+					auth.setAssigningAuthorityId(authTokens[1]);
+				}
+				if (authTokens.length > 2 && !authTokens[2].isEmpty()) {
+					auth.setAssigningAuthorityIdType(authTokens[2]);
+				}
+
+				assigningAuthority = auth;
+			}
+
+			if (tokens.length > 4 && !tokens[4].isEmpty()) {
+				typeCode = tokens[4];
+			}
+		}
+
+		public String toCX() {
+			String res = identifier;
+			if (assigningAuthority != null) {
+				res += "^^^" + assigningAuthority.toHL7();
+			}
+			if (typeCode != null && !typeCode.trim().isEmpty()) {
+				if (assigningAuthority == null) {
+					res += "^^^^" + typeCode;
+				} else {
+					res += "^" + typeCode;
+				}
+			}
+			return res;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) return true;
+			if (o == null || getClass() != o.getClass()) return false;
+
+			return toCX().equals(((LegacyIdentifier) o).toCX());
+		}
+
+		@Override
+		public int hashCode() {
+			int result = identifier != null ? identifier.hashCode() : 0;
+			result = 31 * result + (assigningAuthority != null ? assigningAuthority.toHL7().hashCode() : 0);
+			result = 31 * result + (typeCode != null ? typeCode.hashCode() : 0);
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,103 @@
+package org.openmrs.module.xdsbrepository.cache;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DocumentHandlerIndexTest {
+
+    private static final String UNSTRUCTURED = "org.openmrs.module.shr.contenthandler.UnstructuredDataHandler";
+
+    private static final String CDA = "org.openmrs.module.shr.cdahandler.CDAHandler";
+
+    @Test
+    public void put_shouldIndexDocumentsBeyondTheInitialCapacity() {
+        DocumentHandlerIndex index = new DocumentHandlerIndex(4);
+        for (int i = 0; i < 1000; i++) {
+            index.put("1.2.3." + i, i % 2 == 0 ? UNSTRUCTURED : CDA);
+        }
+
+        assertEquals(1000, index.getSize());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 0 ? UNSTRUCTURED : CDA, index.getHandlerClassName("1.2.3." + i));
+        }
+        assertFalse(index.contains("1.2.3.1000"));
+        assertNull(index.getHandlerClassName("1.2.3.1000"));
+    }
+
+    @Test
+    public void put_shouldReplaceTheHandlerOfAnIndexedDocument() {
+        DocumentHandlerIndex index = new DocumentHandlerIndex(4);
+        index.put("1.2.3.1", UNSTRUCTURED);
+        index.put("1.2.3.1", CDA);
+
+        assertEquals(1, index.getSize());
+        assertEquals(CDA, index.getHandlerClassName("1.2.3.1"));
+    }
+
+    @Test
+    public void remove_shouldKeepTheOtherDocumentsFindable() {
+        DocumentHandlerIndex index = new DocumentHandlerIndex(16);
+        for (int i = 0; i < 500; i++) {
+            index.put("1.2.3." + i, UNSTRUCTURED);
+        }
+        for (int i = 0; i < 500; i += 3) {
+            index.remove("1.2.3." + i);
+        }
+
+        for (int i = 0; i < 500; i++) {
+            assertEquals("1.2.3." + i, i % 3 != 0, index.contains("1.2.3." + i));
+        }
+        assertEquals(333, index.getSize());
+    }
+
+    @Test
+    public void load_shouldNotAddBackADocumentRemovedWhileLoading() {
+        DocumentHandlerIndex index = new DocumentHandlerIndex(16);
+        index.beginLoad();
+        index.remove("1.2.3.1");
+        index.load("1.2.3.1", UNSTRUCTURED);
+        index.load("1.2.3.2", UNSTRUCTURED);
+        assertFalse(index.isLoaded());
+        index.endLoad(true);
+
+        assertTrue(index.isLoaded());
+        assertFalse(index.contains("1.2.3.1"));
+        assertTrue(index.contains("1.2.3.2"));
+    }
+
+    @Test
+    public void endLoad_shouldNotMarkTheIndexLoadedIfItWasClearedMeanwhile() {
+        DocumentHandlerIndex index = new DocumentHandlerIndex(16);
+        index.beginLoad();
+        index.load("1.2.3.1", UNSTRUCTURED);
+        index.clear();
+        index.load("1.2.3.2", UNSTRUCTURED);
+        index.endLoad(true);
+
+        assertFalse(index.isLoaded());
+        assertEquals(0, index.getSize());
+    }
+
+    @Test
+    public void recordHitCheck_shouldCountTheHitsThatWereNotConfirmed() {
+        DocumentHandlerIndex index = new DocumentHandlerIndex(16);
+        index.put("1.2.3.1", UNSTRUCTURED);
+        assertTrue(index.contains("1.2.3.1"));
+        assertFalse(index.contains("1.2.3.2"));
+        index.recordHitCheck(true);
+        index.recordHitCheck(true);
+        index.recordHitCheck(true);
+        index.recordHitCheck(false);
+
+        assertEquals(2, index.getLookupCount());
+        assertEquals(1, index.getHitCount());
+        assertEquals(1, index.getFalsePositiveCount());
+        assertEquals(0.25, index.getFalsePositiveRate(), 0);
+
+        index.clear();
+        assertEquals(0, index.getLookupCount());
+        assertEquals(0, index.getFalsePositiveRate(), 0);
+    }
+
+}
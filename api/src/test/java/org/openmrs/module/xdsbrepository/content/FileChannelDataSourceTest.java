@@ -0,0 +1,32 @@
+package org.openmrs.module.xdsbrepository.content;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FileChannelDataSourceTest {
+
+    @Test
+    public void writeTo_shouldCopyTheWholeFile() throws Exception {
+        byte[] payload = new byte[100000];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+        File file = File.createTempFile("document", ".bin");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(payload);
+        out.close();
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        new StreamingDataHandler(new FileChannelDataSource(file, "application/octet-stream")).writeTo(written);
+
+        assertTrue(Arrays.equals(payload, written.toByteArray()));
+    }
+
+}
@@ -4,9 +4,12 @@ import com.github.tomakehurst.wiremock.junit.WireMockRule;
 import org.dcm4chee.xds2.common.XDSConstants;
 import org.dcm4chee.xds2.common.exception.XDSException;
 import org.dcm4chee.xds2.infoset.ihe.ProvideAndRegisterDocumentSetRequestType;
+import org.dcm4chee.xds2.infoset.rim.ClassificationType;
 import org.dcm4chee.xds2.infoset.rim.ExtrinsicObjectType;
 import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
+import org.dcm4chee.xds2.infoset.rim.SlotType1;
 import org.dcm4chee.xds2.infoset.util.InfosetUtil;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
@@ -19,10 +22,21 @@ import org.openmrs.module.shr.contenthandler.api.CodedValue;
 import org.openmrs.module.shr.contenthandler.api.Content;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
+import org.openmrs.module.xdsbrepository.DocumentMetadata;
+import org.openmrs.module.xdsbrepository.Identifier;
 import org.openmrs.module.xdsbrepository.XDSbService;
+import org.openmrs.module.xdsbrepository.XDSbConfiguration;
+import org.openmrs.module.xdsbrepository.XDSbConfigurationListener;
 import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.cache.DocumentHandlerIndex;
+import org.openmrs.module.xdsbrepository.cache.MetadataDictionary;
+import org.openmrs.module.xdsbrepository.cache.PatientCache;
+import org.openmrs.module.xdsbrepository.cache.ProviderIndex;
 import org.openmrs.module.xdsbrepository.exceptions.UnsupportedGenderException;
+import org.openmrs.module.xdsbrepository.model.DocumentDetails;
+import org.openmrs.module.xdsbrepository.model.OutboxItem;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
+import org.openmrs.module.xdsbrepository.registry.RegistryClient;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 import org.openmrs.util.OpenmrsConstants;
 
@@ -34,6 +48,8 @@ import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -81,8 +97,18 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         return request.getValue();
     }
 
+    private final XDSbConfigurationListener configurationListener = new XDSbConfigurationListener();
+
     @Before
     public void setup() throws Exception {
+        XDSbConfiguration.clear();
+        Context.getAdministrationService().addGlobalPropertyListener(configurationListener);
+        PatientCache.getInstance().clear();
+        MetadataDictionary.getInstance().clear();
+        ProviderIndex.getInstance().clear();
+        DocumentHandlerIndex.getInstance().clear();
+        Context.getService(XDSbService.class).clearDocumentMappingCaches();
+        RegistryClient.getInstance().reset();
         executeDataSet("provideAndRegRequest-dataset.xml");
 
         AdministrationService as = Context.getAdministrationService();
@@ -97,6 +123,11 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         as.saveGlobalProperty(gp4);
     }
 
+    @After
+    public void tearDown() {
+        Context.getAdministrationService().removeGlobalPropertyListener(configurationListener);
+    }
+
 	@Test
 	public void sendMetadataToRegistry_shouldSendRequestToRegistry() throws Exception {
         stubRegistry();
@@ -208,6 +239,43 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertNull(handlerClass);
     }
 
+    @Test
+    public void getDocumentHandlerClasses_shouldReturnTheHandlerClassesOfTheDocumentsThatAreFound() throws Exception {
+        stubRegistry();
+        XDSbService service = Context.getService(XDSbService.class);
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
+
+        Map<String, Class<? extends ContentHandler>> docHandlerMap = new HashMap<String, Class<? extends ContentHandler>>();
+        docHandlerMap.put("111111111", TestContentHandler1.class);
+        docHandlerMap.put("222222222", TestContentHandler2.class);
+        service.registerDocuments(docHandlerMap, request.getSubmitObjectsRequest());
+
+        Map<String, Class<? extends ContentHandler>> handlerClasses = service.getDocumentHandlerClasses(
+                Arrays.asList("111111111", "222222222", "unkown_id"));
+        assertEquals(docHandlerMap, handlerClasses);
+    }
+
+    @Test
+    public void backfillDocumentMappings_shouldMoveMappingsSavedBeforeTheHandlerDictionary() throws Exception {
+        AdministrationService as = Context.getAdministrationService();
+        as.executeSQL("insert into xdsbrepository_dochandlers (doc_id, handler_class) values ('333333333', '"
+                + TestContentHandler1.class.getName() + "')", false);
+        XDSbService service = Context.getService(XDSbService.class);
+        assertEquals(TestContentHandler1.class, service.getDocumentHandlerClass("333333333"));
+
+        Integer lastId = service.backfillDocumentMappings(0);
+        assertNotNull(lastId);
+        assertNull(service.backfillDocumentMappings(lastId));
+        assertNull(service.backfillDocumentMappings(0));
+
+        List<List<Object>> rows = as.executeSQL("select handler_class, handler_id, doc_id_hash from xdsbrepository_dochandlers "
+                + "where doc_id = '333333333'", true);
+        assertNull(rows.get(0).get(0));
+        assertNotNull(rows.get(0).get(1));
+        assertEquals(DocumentHandlerIndex.hash("333333333"), ((Number) rows.get(0).get(2)).longValue());
+        assertEquals(TestContentHandler1.class, service.getDocumentHandlerClass("333333333"));
+    }
+
     @Test
     public void sendMetadataToRegistry_shouldThrowErrorIfRegistryUnavailable() throws Exception {
         ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
@@ -302,6 +370,27 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertEquals("I'm OLD", qi.getDocUniqueId());
     }
 
+    @Test
+    public void dequeueNextDiscreteDataForProcessing_shouldNotDequeueAClaimedItemAgain() {
+        XDSbService service = Context.getService(XDSbService.class);
+
+        for (String docUniqueId : Arrays.asList("first", "second")) {
+            QueueItem qi = new QueueItem();
+            qi.setPatient(Context.getPatientService().getPatient(2));
+            qi.setEncounterType(Context.getEncounterService().getEncounterType(1));
+            qi.setRoleProviderMap("1:1,2|2:3");
+            qi.setDocUniqueId(docUniqueId);
+            service.queueDiscreteDataProcessing(qi);
+        }
+
+        QueueItem qi1 = service.dequeueNextDiscreteDataForProcessing();
+        QueueItem qi2 = service.dequeueNextDiscreteDataForProcessing();
+        assertEquals("first", qi1.getDocUniqueId());
+        assertEquals("second", qi2.getDocUniqueId());
+        assertEquals(QueueItem.Status.PROCESSING, qi2.getStatus());
+        assertNull(service.dequeueNextDiscreteDataForProcessing());
+    }
+
     @Test
     public void completeQueueItem_shouldMarkQueueItemAsSuccessful() {
         XDSbService service = Context.getService(XDSbService.class);
@@ -467,6 +556,24 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertEquals("Sarah", pat.getMiddleName());
     }
 
+    @Test
+    public void findOrCreatePatient_shouldCacheAnExistingPatientAndIgnoreStaleEntries() throws Exception {
+        XDSbServiceImpl service = new XDSbServiceImpl();
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
+        ExtrinsicObjectType eo = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest()).get(0);
+        Identifier id = new Identifier(InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_patientId, eo));
+        String authorityId = id.getAssigningAuthority().getAssigningAuthorityId();
+
+        Patient pat = service.findOrCreatePatient(eo);
+        assertEquals(pat.getPatientId(), PatientCache.getInstance().get(authorityId, id.getIdentifier()));
+        assertEquals(pat, service.findOrCreatePatient(eo));
+
+        // an entry that points at a patient without the identifier must not be used
+        PatientCache.getInstance().put(authorityId, id.getIdentifier(), 999);
+        assertEquals(pat, service.findOrCreatePatient(eo));
+        assertEquals(pat.getPatientId(), PatientCache.getInstance().get(authorityId, id.getIdentifier()));
+    }
+
     @Test
     public void findOrCreatePatient_shouldThrowUnsupportedGenderException() throws Exception {
         XDSbServiceImpl service = new XDSbServiceImpl();
@@ -588,6 +695,34 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         }
     }
 
+    @Test
+    public void findOrCreateProvider_shouldFindAnExistingProviderByNameWhenThereIsNoIdentifier() throws Exception {
+        XDSbServiceImpl service = new XDSbServiceImpl();
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest2.xml");
+        ExtrinsicObjectType eo = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest()).get(0);
+        for (ClassificationType ct : eo.getClassification()) {
+            for (SlotType1 slot : ct.getSlot()) {
+                List<String> values = slot.getValueList().getValue();
+                if (slot.getName().equals(XDSConstants.SLOT_NAME_AUTHOR_PERSON) && values.get(0).startsWith("pro222^")) {
+                    values.set(0, "^Provider^Jack^^^");
+                }
+            }
+        }
+        int count = Context.getProviderService().getAllProviders().size();
+
+        Map<EncounterRole, Set<Provider>> providersByRole = service.findOrCreateProvidersByRole(eo);
+
+        boolean jackFound = false;
+        for (Set<Provider> providers : providersByRole.values()) {
+            for (Provider provider : providers) {
+                jackFound |= provider.getProviderId().equals(1);
+            }
+        }
+        assertTrue(jackFound);
+        // only the other authors were created
+        assertTrue(Context.getProviderService().getAllProviders().size() <= count + 2);
+    }
+
     @Test
     public void findOrCreateEncounterType_shouldFindAnExistingEncounterType() throws Exception {
         XDSbServiceImpl service = new XDSbServiceImpl();
@@ -612,6 +747,20 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertEquals("History and Physical - non existing", encounterType.getName());
     }
 
+    @Test
+    public void findOrCreateEncounterType_shouldOnlyCreateTheEncounterTypeOnceInATransaction() throws Exception {
+        XDSbServiceImpl service = new XDSbServiceImpl();
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest2.xml");
+        ExtrinsicObjectType eo = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest()).get(0);
+        int count = Context.getEncounterService().getAllEncounterTypes().size();
+
+        EncounterType first = service.findOrCreateEncounterType(eo);
+        EncounterType second = service.findOrCreateEncounterType(eo);
+
+        assertEquals(first, second);
+        assertEquals(count + 1, Context.getEncounterService().getAllEncounterTypes().size());
+    }
+
     @Test
     public void storeDocument_shouldReturnTheDocumentUniqueId() throws Exception {
         XDSbServiceImpl service = new XDSbServiceImpl();
@@ -768,6 +917,44 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         }
     }
 
+    @Test
+    public void processDocumentMetaData_shouldAddHashAndSizeSlotsWhenMissing() throws Exception {
+        XDSbServiceImpl service = new XDSbServiceImpl();
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
+        List<ExtrinsicObjectType> extrinsicObjects = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest());
+        ExtrinsicObjectType eo = extrinsicObjects.get(0);
+
+        service.processDocumentMetaData(eo, request);
+
+        assertEquals("D4AB0EC359350A6EA6A137C88F40565227F0FA03", InfosetUtil.getSlotValue(eo.getSlot(), XDSConstants.SLOT_NAME_HASH, null));
+        assertEquals("16", InfosetUtil.getSlotValue(eo.getSlot(), XDSConstants.SLOT_NAME_SIZE, null));
+    }
+
+    @Test
+    public void processDocumentMetaData_shouldProcessDocumentsInParallelAndKeepTheirOrder() throws Exception {
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_MAX_PARALLELISM, "4"));
+
+        XDSbServiceImpl service = new XDSbServiceImpl();
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest_multiDoc.xml");
+        List<ExtrinsicObjectType> extrinsicObjects = InfosetUtil.getExtrinsicObjects(request.getSubmitObjectsRequest());
+        Map<String, ProvideAndRegisterDocumentSetRequestType.Document> documents = InfosetUtil.getDocuments(request);
+        List<DocumentMetadata> metadata = new ArrayList<DocumentMetadata>();
+        for (ExtrinsicObjectType eo : extrinsicObjects) {
+            metadata.add(new DocumentMetadata(eo, documents.get(eo.getId())));
+        }
+
+        List<String> ids = service.processDocumentMetaData(metadata);
+
+        assertEquals(2, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            ExtrinsicObjectType eo = extrinsicObjects.get(i);
+            assertEquals(InfosetUtil.getExternalIdentifierValue(XDSConstants.UUID_XDSDocumentEntry_uniqueId, eo), ids.get(i));
+            assertEquals("D4AB0EC359350A6EA6A137C88F40565227F0FA03", InfosetUtil.getSlotValue(eo.getSlot(), XDSConstants.SLOT_NAME_HASH, null));
+            assertEquals("16", InfosetUtil.getSlotValue(eo.getSlot(), XDSConstants.SLOT_NAME_SIZE, null));
+        }
+    }
+
     public class TestContentHandler1 implements ContentHandler {
 
         @Override
@@ -837,4 +1024,129 @@ public class XDSbServiceTest extends BaseModuleContextSensitiveTest {
         assertEquals(2, patient.getIdentifiers().size());
     }
 
+    @Test
+    public void provideAndRegisterDocumentSetB_shouldReleaseTheReservedDocumentIdsIfTheRegistryIsUnavailable() throws Exception {
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REGISTRY_URL_GP, "http://localhost:9999/not/here"));
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
+
+        XDSbService service = Context.getService(XDSbService.class);
+        try {
+            service.provideAndRegisterDocumentSetB(request);
+            fail("Expected an exception");
+        } catch (XDSException e) {
+            assertEquals(XDSException.XDS_ERR_REG_NOT_AVAIL, e.getErrorCode());
+        }
+
+        assertNull(service.getDocumentHandlerClass("2009.9.1.2455"));
+    }
+
+    @Test
+    public void provideAndRegisterDocumentSetB_shouldFailOverToTheNextRegistry() throws Exception {
+        stubRegistry();
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REGISTRY_URL_GP,
+                "http://localhost:9999/not/here, http://localhost:8089/ws/xdsregistry"));
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
+
+        // the first listed registry is tried first, and is down
+        XDSbService service = Context.getService(XDSbService.class);
+        RegistryResponseType result = service.provideAndRegisterDocumentSetB(request);
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, result.getStatus());
+        assertEquals(1, RegistryClient.getInstance().getLatencies().get("http://localhost:9999/not/here").getCount());
+        assertEquals(1, RegistryClient.getInstance().getLatencies().get("http://localhost:8089/ws/xdsregistry").getCount());
+    }
+
+    @Test
+    public void provideAndRegisterDocumentSetB_shouldStoreTheMimeTypeAndSizeOfEachDocument() throws Exception {
+        stubRegistry();
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
+        int size = InfosetUtil.getDocuments(request).get("Document01").getValue().length;
+
+        XDSbService service = Context.getService(XDSbService.class);
+        RegistryResponseType result = service.provideAndRegisterDocumentSetB(request);
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, result.getStatus());
+
+        DocumentDetails details = service.getDocumentDetails(Arrays.asList("2009.9.1.2455")).get("2009.9.1.2455");
+        assertEquals("text/plain", details.getMimeType());
+        assertEquals(size, details.getSize());
+    }
+
+    @Test
+    public void provideAndRegisterDocumentSetB_shouldHedgeAtOnceWhenTheFirstRegistryFails() throws Exception {
+        stubRegistry();
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REGISTRY_HEDGE_GP, "true"));
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REGISTRY_URL_GP,
+                "http://localhost:9999/not/here, http://localhost:8089/ws/xdsregistry"));
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
+
+        XDSbService service = Context.getService(XDSbService.class);
+        RegistryResponseType result = service.provideAndRegisterDocumentSetB(request);
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, result.getStatus());
+        assertEquals(1, RegistryClient.getInstance().getLatencies().get("http://localhost:8089/ws/xdsregistry").getCount());
+    }
+
+    @Test
+    public void provideAndRegisterDocumentSetB_shouldNotFailOverWhenTheRegistryMayHaveReceivedTheRequest() throws Exception {
+        stubRegistry();
+        stubFor(post(urlEqualTo("/ws/brokenregistry"))
+                .willReturn(aResponse().withStatus(500)));
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REGISTRY_URL_GP,
+                "http://localhost:8089/ws/brokenregistry, http://localhost:8089/ws/xdsregistry"));
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
+
+        // the first registry answered with an error, it may have registered the submission
+        XDSbService service = Context.getService(XDSbService.class);
+        RegistryResponseType result = service.provideAndRegisterDocumentSetB(request);
+        assertEquals(XDSConstants.XDS_B_STATUS_FAILURE, result.getStatus());
+        com.github.tomakehurst.wiremock.client.WireMock.verify(1, postRequestedFor(urlEqualTo("/ws/brokenregistry")));
+        com.github.tomakehurst.wiremock.client.WireMock.verify(0, postRequestedFor(urlEqualTo("/ws/xdsregistry")));
+    }
+
+    @Test
+    public void provideAndRegisterDocumentSetB_shouldQueueTheRegistrationInOutboxMode() throws Exception {
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_OUTBOX_ENABLED, "true"));
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REGISTRY_URL_GP, "http://localhost:9999/not/here"));
+        ProvideAndRegisterDocumentSetRequestType request = parseRequestFromResourceName("provideAndRegRequest1.xml");
+
+        // the registry is unavailable, but the submission is accepted
+        XDSbService service = Context.getService(XDSbService.class);
+        RegistryResponseType result = service.provideAndRegisterDocumentSetB(request);
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, result.getStatus());
+        assertNotNull(service.getDocumentHandlerClass("2009.9.1.2455"));
+
+        List<OutboxItem> items = service.getDueOutboxItems(10);
+        assertEquals(1, items.size());
+        OutboxItem item = items.get(0);
+        assertEquals("2009.9.1.2456", item.getSubmissionSetId());
+
+        // delivered once the registry is back
+        stubRegistry();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REGISTRY_URL_GP, "http://localhost:8089/ws/xdsregistry"));
+        assertTrue(service.claimOutboxItem(item));
+        RegistryResponseType response = service.dispatchOutboxItem(item);
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, response.getStatus());
+        service.completeOutboxItem(item, true);
+
+        assertEquals(0, service.getDueOutboxItems(10).size());
+        com.github.tomakehurst.wiremock.client.WireMock.verify(postRequestedFor(urlEqualTo("/ws/xdsregistry"))
+                .withRequestBody(containing("SubmitObjectsRequest")));
+    }
+
+    @Test
+    public void acquireCreationLock_shouldLockTheSameStripeForTheSameKey() throws Exception {
+        XDSbService service = Context.getService(XDSbService.class);
+        // the stripe rows are not seeded in the test database, so the first lock creates the row
+        service.acquireCreationLock("patient:1.2.3^1111");
+        service.acquireCreationLock("patient:1.2.3^1111");
+
+        List<List<Object>> rows = Context.getAdministrationService().executeSQL("select stripe_id from xdsbrepository_lock_stripe", true);
+        assertEquals(1, rows.size());
+        int stripe = ("patient:1.2.3^1111".hashCode() & Integer.MAX_VALUE) % XDSbServiceConstants.CREATION_LOCK_STRIPES;
+        assertEquals(stripe, ((Number) rows.get(0).get(0)).intValue());
+    }
+
 }
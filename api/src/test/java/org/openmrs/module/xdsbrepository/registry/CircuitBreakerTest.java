@@ -0,0 +1,70 @@
+package org.openmrs.module.xdsbrepository.registry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void onFailure_shouldOpenOnceTheFailureRateReachesTheThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker("registry", 50, 4, 10, 60000);
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(1, breaker.getOpenedCount());
+    }
+
+    @Test
+    public void onFailure_shouldNotOpenBeforeTheMinimumNumberOfCalls() {
+        CircuitBreaker breaker = new CircuitBreaker("registry", 50, 4, 10, 60000);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void tryAcquire_shouldRefuseCallsWhileOpen() {
+        CircuitBreaker breaker = new CircuitBreaker("registry", 50, 1, 10, 60000);
+        breaker.onFailure();
+
+        assertFalse(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        assertEquals(2, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void tryAcquire_shouldLetOneProbeThroughOnceTheOpenDurationHasPassed() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("registry", 50, 1, 10, 10);
+        breaker.onFailure();
+        Thread.sleep(20);
+
+        assertTrue(breaker.tryAcquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getFailureRate());
+        assertEquals(1, breaker.getClosedCount());
+    }
+
+    @Test
+    public void onFailure_shouldOpenAgainIfTheProbeFails() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("registry", 50, 1, 10, 10);
+        breaker.onFailure();
+        Thread.sleep(20);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(2, breaker.getOpenedCount());
+    }
+
+}
@@ -0,0 +1,38 @@
+package org.openmrs.module.xdsbrepository.registry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyWindowTest {
+
+    @Test
+    public void getPercentile_shouldReturnMinusOneWhenNothingIsRecorded() {
+        LatencyWindow window = new LatencyWindow(10);
+        assertEquals(0, window.getCount());
+        assertEquals(-1, window.getP95());
+    }
+
+    @Test
+    public void getPercentile_shouldReturnTheNearestRankLatency() {
+        LatencyWindow window = new LatencyWindow(100);
+        for (int i = 100; i >= 1; i--) {
+            window.record(i);
+        }
+        assertEquals(50, window.getP50());
+        assertEquals(95, window.getP95());
+        assertEquals(100, window.getPercentile(100));
+    }
+
+    @Test
+    public void record_shouldOnlyKeepTheMostRecentLatencies() {
+        LatencyWindow window = new LatencyWindow(3);
+        window.record(1000);
+        window.record(10);
+        window.record(20);
+        window.record(30);
+        assertEquals(3, window.getCount());
+        assertEquals(30, window.getPercentile(100));
+    }
+
+}
@@ -1,6 +1,7 @@
 package org.openmrs.module.xdsbrepository.tasks;
 
 import org.hibernate.ObjectNotFoundException;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.openmrs.EncounterRole;
@@ -14,6 +15,8 @@ import org.openmrs.module.shr.contenthandler.api.CodedValue;
 import org.openmrs.module.shr.contenthandler.api.Content;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
+import org.openmrs.module.xdsbrepository.XDSbConfiguration;
+import org.openmrs.module.xdsbrepository.XDSbConfigurationListener;
 import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
 import org.openmrs.module.xdsbrepository.exceptions.HydrateRoleProviderMapException;
 import org.openmrs.module.xdsbrepository.model.QueueItem;
@@ -32,8 +35,12 @@ import static org.mockito.Mockito.when;
 
 public class DiscreteDataProcessorTaskTest extends BaseModuleContextSensitiveTest {
 
+    private final XDSbConfigurationListener configurationListener = new XDSbConfigurationListener();
+
     @Before
     public void setup() throws Exception {
+        XDSbConfiguration.clear();
+        Context.getAdministrationService().addGlobalPropertyListener(configurationListener);
         executeDataSet("providerMapDataset.xml");
 
         AdministrationService as = Context.getAdministrationService();
@@ -48,6 +55,11 @@ public class DiscreteDataProcessorTaskTest extends BaseModuleContextSensitiveTes
         as.saveGlobalProperty(gp4);
     }
 
+    @After
+    public void tearDown() {
+        Context.getAdministrationService().removeGlobalPropertyListener(configurationListener);
+    }
+
     @Test
     public void processQueueItem_shouldProcessAValidQueueItem() throws Exception {
         ContentHandlerService chs = Context.getService(org.openmrs.module.shr.contenthandler.api.ContentHandlerService.class);
@@ -0,0 +1,285 @@
+package org.openmrs.module.xdsbrepository.ihe.iti.actors.endpoint;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.ws.WebServiceMessage;
+import org.springframework.ws.context.MessageContext;
+import org.springframework.ws.server.EndpointInterceptor;
+import org.springframework.ws.soap.SoapMessage;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Logs the SOAP envelopes of a sample of the requests and their responses at debug level, in place of
+ * Spring's SoapEnvelopeLoggingInterceptor, which serializes every envelope in full.
+ * <p/>
+ * At most maxLength characters of an envelope are written, after which the serialization stops, and the
+ * content of the payload elements (the base64 documents by default) is replaced by its length. When debug
+ * logging is off or the sampling rate is 0 the interceptor does nothing.
+ */
+public class SampledSoapLoggingInterceptor implements EndpointInterceptor {
+
+	private static final Log log = LogFactory.getLog(SampledSoapLoggingInterceptor.class);
+
+	// set on the message context of the exchanges that were sampled, so that their responses are logged too
+	private static final String SAMPLED_PROPERTY = SampledSoapLoggingInterceptor.class.getName() + ".sampled";
+
+	private final AtomicLong exchanges = new AtomicLong();
+
+	private double samplingRate = 1.0;
+
+	private long samplingInterval = 1;
+
+	private int maxLength = 4096;
+
+	private Set<String> elidedElements = new HashSet<String>(Arrays.asList("Document"));
+
+	private boolean logRequest = true;
+
+	private boolean logResponse = true;
+
+	private boolean logFault = true;
+
+	/**
+	 * @param samplingRate the fraction of exchanges to log, between 0 and 1
+	 */
+	public void setSamplingRate(double samplingRate) {
+		this.samplingRate = samplingRate;
+		this.samplingInterval = samplingRate > 0 ? Math.max(1, Math.round(1 / samplingRate)) : 0;
+	}
+
+	public double getSamplingRate() {
+		return samplingRate;
+	}
+
+	/**
+	 * @param maxLength the maximum number of characters of an envelope to log
+	 */
+	public void setMaxLength(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * @param elidedElements the local names of the elements whose content is not logged
+	 */
+	public void setElidedElements(Set<String> elidedElements) {
+		this.elidedElements = elidedElements;
+	}
+
+	public void setLogRequest(boolean logRequest) {
+		this.logRequest = logRequest;
+	}
+
+	public void setLogResponse(boolean logResponse) {
+		this.logResponse = logResponse;
+	}
+
+	public void setLogFault(boolean logFault) {
+		this.logFault = logFault;
+	}
+
+	@Override
+	public boolean handleRequest(MessageContext messageContext, Object endpoint) throws Exception {
+		if (samplingInterval == 0 || !log.isDebugEnabled()) {
+			return true;
+		}
+		if (exchanges.getAndIncrement() % samplingInterval != 0) {
+			return true;
+		}
+		messageContext.setProperty(SAMPLED_PROPERTY, Boolean.TRUE);
+		if (logRequest) {
+			logMessage("Request: ", messageContext.getRequest());
+		}
+		return true;
+	}
+
+	@Override
+	public boolean handleResponse(MessageContext messageContext, Object endpoint) throws Exception {
+		if (logResponse && isSampled(messageContext)) {
+			logMessage("Response: ", messageContext.getResponse());
+		}
+		return true;
+	}
+
+	@Override
+	public boolean handleFault(MessageContext messageContext, Object endpoint) throws Exception {
+		if (logFault && isSampled(messageContext)) {
+			logMessage("Fault: ", messageContext.getResponse());
+		}
+		return true;
+	}
+
+	@Override
+	public void afterCompletion(MessageContext messageContext, Object endpoint, Exception ex) throws Exception {
+	}
+
+	private boolean isSampled(MessageContext messageContext) {
+		return samplingInterval != 0 && messageContext.getProperty(SAMPLED_PROPERTY) != null;
+	}
+
+	private void logMessage(String prefix, WebServiceMessage message) {
+		Source source = message instanceof SoapMessage ? ((SoapMessage) message).getEnvelope().getSource() : message.getPayloadSource();
+		if (source == null) {
+			return;
+		}
+		try {
+			log.debug(prefix + format(source));
+		} catch (TransformerException e) {
+			log.debug("Could not log the SOAP envelope", e);
+		}
+	}
+
+	/**
+	 * @return the source as XML, truncated to maxLength characters and without the content of the elided elements
+	 */
+	String format(Source source) throws TransformerException {
+		BoundedXmlWriter writer = new BoundedXmlWriter(maxLength, elidedElements);
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		try {
+			transformer.transform(source, new SAXResult(writer));
+		} catch (TransformerException e) {
+			if (!writer.isTruncated()) {
+				throw e;
+			}
+			// stopped on purpose once the limit was reached
+		}
+		return writer.toString();
+	}
+
+	/**
+	 * Writes SAX events as XML until a number of characters has been written, and then stops the parse
+	 */
+	private static class BoundedXmlWriter extends DefaultHandler {
+
+		private final StringBuilder xml = new StringBuilder();
+
+		private final int maxLength;
+
+		private final Set<String> elidedElements;
+
+		private final StringBuilder namespaces = new StringBuilder();
+
+		// the depth within an elided element, 0 when outside of one
+		private int elidedDepth;
+
+		private long elidedLength;
+
+		private boolean truncated;
+
+		BoundedXmlWriter(int maxLength, Set<String> elidedElements) {
+			this.maxLength = maxLength;
+			this.elidedElements = elidedElements;
+		}
+
+		boolean isTruncated() {
+			return truncated;
+		}
+
+		@Override
+		public void startPrefixMapping(String prefix, String uri) {
+			namespaces.append(prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix).append("=\"");
+			appendEscaped(namespaces, uri);
+			namespaces.append('"');
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+			if (elidedDepth > 0) {
+				elidedDepth++;
+				namespaces.setLength(0);
+				return;
+			}
+			xml.append('<').append(qName).append(namespaces);
+			namespaces.setLength(0);
+			for (int i = 0; i < attributes.getLength(); i++) {
+				xml.append(' ').append(attributes.getQName(i)).append("=\"");
+				appendEscaped(xml, attributes.getValue(i));
+				xml.append('"');
+			}
+			xml.append('>');
+			if (elidedElements.contains(localName)) {
+				elidedDepth = 1;
+				elidedLength = 0;
+			}
+			checkLength();
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (elidedDepth > 0) {
+				elidedDepth--;
+				if (elidedDepth > 0) {
+					return;
+				}
+				xml.append("[").append(elidedLength).append(" characters not logged]");
+			}
+			xml.append("</").append(qName).append('>');
+			checkLength();
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) throws SAXException {
+			if (elidedDepth > 0) {
+				elidedLength += length;
+				return;
+			}
+			int remaining = maxLength - xml.length();
+			for (int i = start; i < start + Math.min(length, Math.max(remaining, 0)); i++) {
+				appendEscaped(xml, ch[i]);
+			}
+			checkLength();
+			if (length > remaining) {
+				truncate();
+			}
+		}
+
+		private void checkLength() throws SAXException {
+			if (xml.length() >= maxLength) {
+				truncate();
+			}
+		}
+
+		private void truncate() throws SAXException {
+			if (xml.length() > maxLength) {
+				xml.setLength(maxLength);
+			}
+			xml.append("... [truncated]");
+			truncated = true;
+			throw new SAXException("Log limit reached");
+		}
+
+		private static void appendEscaped(StringBuilder sb, String value) {
+			for (int i = 0; i < value.length(); i++) {
+				appendEscaped(sb, value.charAt(i));
+			}
+		}
+
+		private static void appendEscaped(StringBuilder sb, char c) {
+			switch (c) {
+				case '<': sb.append("&lt;"); break;
+				case '>': sb.append("&gt;"); break;
+				case '&': sb.append("&amp;"); break;
+				case '"': sb.append("&quot;"); break;
+				default: sb.append(c);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return xml.toString();
+		}
+	}
+
+}
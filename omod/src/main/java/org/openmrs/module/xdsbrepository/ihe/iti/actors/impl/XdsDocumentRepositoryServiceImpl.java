@@ -4,8 +4,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.dcm4chee.xds2.common.XDSConstants;
 import org.dcm4chee.xds2.common.XDSUtil;
-import org.dcm4chee.xds2.common.audit.AuditRequestInfo;
-import org.dcm4chee.xds2.common.audit.XDSAudit;
 import org.dcm4chee.xds2.common.exception.XDSException;
 import org.dcm4chee.xds2.infoset.ihe.ProvideAndRegisterDocumentSetRequestType;
 import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetRequestType;
@@ -16,22 +14,38 @@ import org.dcm4chee.xds2.infoset.rim.RegistryError;
 import org.dcm4chee.xds2.infoset.rim.RegistryErrorList;
 import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
 import org.openmrs.api.context.Context;
-import org.openmrs.module.shr.atna.api.AtnaAuditService;
+import org.openmrs.api.context.UserContext;
 import org.openmrs.module.shr.contenthandler.api.Content;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerException;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
 import org.openmrs.module.xdsbrepository.Utils;
+import org.openmrs.module.xdsbrepository.XDSbConfiguration;
 import org.openmrs.module.xdsbrepository.XDSbService;
-import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.audit.AuditDispatcher;
+import org.openmrs.module.xdsbrepository.audit.AuditEvent;
+import org.openmrs.module.xdsbrepository.cache.DocumentHandlerIndex;
+import org.openmrs.module.xdsbrepository.content.RetrievePipeline;
+import org.openmrs.module.xdsbrepository.content.StreamingContentHandler;
+import org.openmrs.module.xdsbrepository.content.StreamingDataHandler;
+import org.openmrs.module.xdsbrepository.impl.DocumentProcessingPool;
+import org.openmrs.module.xdsbrepository.model.DocumentDetails;
 import org.openmrs.module.xdsbrepository.ihe.iti.actors.XdsDocumentRepositoryService;
 import org.springframework.stereotype.Service;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.mail.util.ByteArrayDataSource;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * XdsDocumentRepository Service Implementation
@@ -95,7 +109,6 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
      */
     @Override
     public RetrieveDocumentSetResponseType retrieveDocumentSetB(RetrieveDocumentSetRequestType req) {
-        XDSbService xdsService = Context.getService(XDSbService.class);
         RetrieveDocumentSetResponseType rsp = iheFactory.createRetrieveDocumentSetResponseType();
         RegistryResponseType regRsp = factory.createRegistryResponseType();
 
@@ -105,58 +118,147 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
             }
 
             String repositoryUID = getRepositoryUniqueId();
+            XDSbConfiguration configuration = XDSbConfiguration.getInstance();
+            String homeCommunityId = configuration.getHomeCommunityId();
+            RetrievePipeline pipeline = configuration.isRetrievePipelined()
+                    ? new RetrievePipeline(configuration.getRetrieveMaxInFlightBytes(), Context.getUserContext()) : null;
             String docUid, reqRepoUid;
             Content content;
             for (DocumentRequest drq : req.getDocumentRequest()) {
-                drq.setHomeCommunityId(Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.XDS_HOME_COMMUNITY_ID));
+                drq.setHomeCommunityId(homeCommunityId);
             }
             RetrieveDocumentSetResponseType.DocumentResponse docRsp;
             List<String> retrievedUIDs = new ArrayList<String>();
             int requestCount = req.getDocumentRequest().size();
             RegistryErrorList regErrors = factory.createRegistryErrorList();
             List<RegistryError> mainErrors = regErrors.getRegistryError();
+
+            List<String> fetchUIDs = new ArrayList<String>(requestCount);
+            List<String> knownUIDs = new ArrayList<String>(requestCount);
             for (DocumentRequest docReq : req.getDocumentRequest()) {
-                reqRepoUid = docReq.getRepositoryUniqueId();
-                docUid = docReq.getDocumentUniqueId();
-                if (reqRepoUid == null || docUid == null || reqRepoUid.trim().length() == 0 || docUid.trim().length() == 0) {
-                    mainErrors.add(XDSUtil.getRegistryError(XDSException.XDS_ERR_SEVERITY_ERROR, XDSException.XDS_ERR_REPOSITORY_ERROR,
-                            "Missing required request parameter! (Repository- or Document Unique ID)", null));
-                    continue;
+                boolean fetchable = isFetchable(docReq, repositoryUID);
+                fetchUIDs.add(fetchable ? docReq.getDocumentUniqueId() : null);
+                if (fetchable) {
+                    knownUIDs.add(docReq.getDocumentUniqueId());
+                }
+            }
+            // the handlers of all the documents in one lookup
+            Map<String, Class<? extends ContentHandler>> handlerClasses = knownUIDs.isEmpty()
+                    ? Collections.<String, Class<? extends ContentHandler>>emptyMap()
+                    : Context.getService(XDSbService.class).getDocumentHandlerClasses(knownUIDs);
+            if (configuration.isDocumentIndexAuthoritative() && DocumentHandlerIndex.getInstance().isLoaded()) {
+                // documents without a mapping don't exist, rather than being looked for with the default handler
+                for (int i = 0; i < fetchUIDs.size(); i++) {
+                    if (fetchUIDs.get(i) != null && !handlerClasses.containsKey(fetchUIDs.get(i))) {
+                        fetchUIDs.set(i, null);
+                    }
                 }
-                if (reqRepoUid.equals(repositoryUID)) {
-
-                    Class<? extends ContentHandler> documentHandlerClass;
-                    documentHandlerClass = xdsService.getDocumentHandlerClass(docUid);
-                    ContentHandlerService chs = Context.getService(ContentHandlerService.class);
-                    ContentHandler h = chs.getContentHandlerByClass(documentHandlerClass);
-                    if (h == null) {
-                        h = chs.getDefaultUnstructuredHandler();
+            }
+            // when pipelined the documents that can't be streamed are described by the details they were stored
+            // with, and only fetched by the pipeline
+            Set<String> pipelinedUIDs = new HashSet<String>();
+            Map<String, DocumentDetails> documentDetails = Collections.emptyMap();
+            if (pipeline != null) {
+                for (int i = 0; i < fetchUIDs.size(); i++) {
+                    String fetchUID = fetchUIDs.get(i);
+                    if (fetchUID != null && !isStreamed(handlerClasses.get(fetchUID))) {
+                        pipelinedUIDs.add(fetchUID);
+                        fetchUIDs.set(i, null);
                     }
-                    content = h.fetchContent(docUid);
+                }
+                if (!pipelinedUIDs.isEmpty()) {
+                    documentDetails = Context.getService(XDSbService.class).getDocumentDetails(pipelinedUIDs);
+                }
+            }
+            DocumentFetches fetches = new DocumentFetches(fetchUIDs, handlerClasses, configuration.getRetrieveMaxParallelism(),
+                    configuration.getRetrievePoolSize());
+            try {
+                for (int i = 0; i < requestCount; i++) {
+                    DocumentRequest docReq = req.getDocumentRequest().get(i);
+                    reqRepoUid = docReq.getRepositoryUniqueId();
+                    docUid = docReq.getDocumentUniqueId();
+                    if (reqRepoUid == null || docUid == null || reqRepoUid.trim().length() == 0 || docUid.trim().length() == 0) {
+                        mainErrors.add(XDSUtil.getRegistryError(XDSException.XDS_ERR_SEVERITY_ERROR, XDSException.XDS_ERR_REPOSITORY_ERROR,
+                                "Missing required request parameter! (Repository- or Document Unique ID)", null));
+                        continue;
+                    }
+                    if (reqRepoUid.equals(repositoryUID) && pipelinedUIDs.contains(docUid)) {
 
-                    if (content != null) {
+                        DocumentDetails details = documentDetails.get(docUid);
+                        RetrievePipeline.PipelinedDataSource ds = pipeline.add(handlerClasses.get(docUid), docUid, details);
                         try {
-                            docRsp = getDocumentResponse(content, docUid, getRepositoryUniqueId());
-                            rsp.getDocumentResponse().add(docRsp);
-                            retrievedUIDs.add(docUid);
+                            if (details != null) {
+                                rsp.getDocumentResponse().add(getDocumentResponse(ds, docUid, repositoryUID));
+                                retrievedUIDs.add(docUid);
+                                continue;
+                            }
+
+                            // stored without its details, fetched now to describe it and held until it is written
+                            content = ds.getContent();
+                            if (content != null) {
+                                rsp.getDocumentResponse().add(getDocumentResponse(content, ds, docUid, repositoryUID));
+                                retrievedUIDs.add(docUid);
+                            } else {
+                                String msg = "Document not found! document UID:" + docUid;
+                                log.warn(msg);
+                                mainErrors.add(XDSUtil.getRegistryError(XDSException.XDS_ERR_SEVERITY_ERROR,
+                                        XDSException.XDS_ERR_MISSING_DOCUMENT, msg, docUid));
+                            }
                         } catch (IOException e) {
-                            String msg = "Error in building DocumentResponse for document:" + content;
-                            log.error(msg);
+                            String msg = "Error in reading document:" + docUid;
+                            log.error(msg, e);
                             mainErrors.add(XDSUtil.getRegistryError(XDSException.XDS_ERR_SEVERITY_ERROR,
                                     XDSException.XDS_ERR_REPOSITORY_ERROR, msg, docUid));
                         }
+
+                    } else if (reqRepoUid.equals(repositoryUID)) {
+
+                        FetchedDocument fetched = fetches.get(i);
+
+                        if (fetched.error != null) {
+                            String msg = "Error in reading document:" + docUid;
+                            log.error(msg, fetched.error);
+                            mainErrors.add(XDSUtil.getRegistryError(XDSException.XDS_ERR_SEVERITY_ERROR,
+                                    XDSException.XDS_ERR_REPOSITORY_ERROR, msg, docUid));
+                            continue;
+                        }
+
+                        if (fetched.dataSource != null) {
+                            // streamed from storage when the response is written, rather than loaded now
+                            rsp.getDocumentResponse().add(getDocumentResponse(fetched.dataSource, docUid, repositoryUID));
+                            retrievedUIDs.add(docUid);
+                            continue;
+                        }
+
+                        content = fetched.content;
+
+                        if (content != null) {
+                            try {
+                                DataSource ds = new ByteArrayDataSource(content.getPayload(), content.getContentType());
+                                docRsp = getDocumentResponse(content, ds, docUid, repositoryUID);
+                                rsp.getDocumentResponse().add(docRsp);
+                                retrievedUIDs.add(docUid);
+                            } catch (IOException e) {
+                                String msg = "Error in building DocumentResponse for document:" + content;
+                                log.error(msg);
+                                mainErrors.add(XDSUtil.getRegistryError(XDSException.XDS_ERR_SEVERITY_ERROR,
+                                        XDSException.XDS_ERR_REPOSITORY_ERROR, msg, docUid));
+                            }
+                        } else {
+                            String msg = "Document not found! document UID:" + docUid;
+                            log.warn(msg);
+                            mainErrors.add(XDSUtil.getRegistryError(XDSException.XDS_ERR_SEVERITY_ERROR,
+                                    XDSException.XDS_ERR_MISSING_DOCUMENT, msg, docUid));
+                        }
                     } else {
-                        String msg = "Document not found! document UID:" + docUid;
+                        String msg = "DocumentRepositoryUID=" + reqRepoUid + " is unknown! This repository unique ID:" + repositoryUID;
                         log.warn(msg);
                         mainErrors.add(XDSUtil.getRegistryError(XDSException.XDS_ERR_SEVERITY_ERROR,
-                                XDSException.XDS_ERR_MISSING_DOCUMENT, msg, docUid));
+                                XDSException.XDS_ERR_UNKNOWN_REPOSITORY_ID, msg, docUid));
                     }
-                } else {
-                    String msg = "DocumentRepositoryUID=" + reqRepoUid + " is unknown! This repository unique ID:" + repositoryUID;
-                    log.warn(msg);
-                    mainErrors.add(XDSUtil.getRegistryError(XDSException.XDS_ERR_SEVERITY_ERROR,
-                            XDSException.XDS_ERR_UNKNOWN_REPOSITORY_ID, msg, docUid));
                 }
+            } finally {
+                fetches.cancel();
             }
 
             int nrOfDocs = rsp.getDocumentResponse().size();
@@ -179,8 +281,7 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
             processExceptionForResponse(regRsp, x);
             Context.clearSession(); //TODO this doesn't seem to rollback
         } finally {
-            XDSAudit.setAuditLogger(Context.getService(AtnaAuditService.class).getLogger());
-            XDSAudit.logRepositoryRetrieveExport(req, rsp, new AuditRequestInfo(null, null));
+            AuditDispatcher.getInstance().submit(AuditEvent.repositoryRetrieveExport(req, rsp));
             Context.closeSession();
 
             rsp.setRegistryResponse(regRsp);
@@ -189,10 +290,10 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
     }
 
     private String getRepositoryUniqueId() {
-        return Context.getAdministrationService().getGlobalProperty(XDSbServiceConstants.REPOSITORY_UNIQUE_ID_GP);
+        return XDSbConfiguration.getInstance().getRepositoryUniqueId();
     }
 
-    private RetrieveDocumentSetResponseType.DocumentResponse getDocumentResponse(Content content, String documentUniqueId, String repositoryUniqueId) throws IOException {
+    private RetrieveDocumentSetResponseType.DocumentResponse getDocumentResponse(Content content, DataSource ds, String documentUniqueId, String repositoryUniqueId) throws IOException {
         RetrieveDocumentSetResponseType.DocumentResponse docRsp;
         docRsp = iheFactory.createRetrieveDocumentSetResponseTypeDocumentResponse();
         docRsp.setDocumentUniqueId(documentUniqueId);
@@ -204,13 +305,186 @@ public class XdsDocumentRepositoryServiceImpl implements XdsDocumentRepositorySe
 
         docRsp.setMimeType(content.getContentType());
         docRsp.setRepositoryUniqueId(repositoryUniqueId);
-        log.error(String.format("Payload length %d", content.getPayload().length));
+        if (log.isDebugEnabled()) {
+            log.debug(String.format("Payload length %d", content.getPayload().length));
+        }
 
-        ByteArrayDataSource ds = new ByteArrayDataSource(content.getPayload(), content.getContentType());
         docRsp.setDocument(new DataHandler(ds));
         return docRsp;
     }
 
+    private RetrieveDocumentSetResponseType.DocumentResponse getDocumentResponse(DataSource dataSource, String documentUniqueId, String repositoryUniqueId) {
+        RetrieveDocumentSetResponseType.DocumentResponse docRsp = iheFactory.createRetrieveDocumentSetResponseTypeDocumentResponse();
+        docRsp.setDocumentUniqueId(documentUniqueId);
+        docRsp.setMimeType(dataSource.getContentType());
+        docRsp.setRepositoryUniqueId(repositoryUniqueId);
+        docRsp.setDocument(new StreamingDataHandler(dataSource));
+        return docRsp;
+    }
+
+
+    private static boolean isFetchable(DocumentRequest docReq, String repositoryUniqueId) {
+        String reqRepoUid = docReq.getRepositoryUniqueId();
+        String docUid = docReq.getDocumentUniqueId();
+        return reqRepoUid != null && docUid != null && reqRepoUid.trim().length() > 0 && docUid.trim().length() > 0
+                && reqRepoUid.equals(repositoryUniqueId);
+    }
+
+    /**
+     * @return true if the handler of a document can stream it from storage, null for the default handler
+     */
+    private static boolean isStreamed(Class<? extends ContentHandler> handlerClass) {
+        ContentHandlerService chs = Context.getService(ContentHandlerService.class);
+        ContentHandler h = handlerClass != null ? chs.getContentHandlerByClass(handlerClass) : null;
+        if (h == null) {
+            h = chs.getDefaultUnstructuredHandler();
+        }
+        return h instanceof StreamingContentHandler;
+    }
+
+    /**
+     * Fetch a document from its handler, as a data source if the handler can stream it. A data source is opened
+     * once here, so that a document that cannot be read is reported as an error for that document rather than
+     * failing the response while it is written.
+     */
+    private static FetchedDocument fetchDocument(String documentUniqueId, Class<? extends ContentHandler> handlerClass) {
+        FetchedDocument fetched = new FetchedDocument();
+        fetched.handlerClass = handlerClass;
+        ContentHandlerService chs = Context.getService(ContentHandlerService.class);
+        ContentHandler h = chs.getContentHandlerByClass(fetched.handlerClass);
+        if (h == null) {
+            h = chs.getDefaultUnstructuredHandler();
+        }
+        if (h instanceof StreamingContentHandler) {
+            fetched.dataSource = ((StreamingContentHandler) h).fetchContentDataSource(documentUniqueId);
+            if (fetched.dataSource != null) {
+                try {
+                    fetched.dataSource.getInputStream().close();
+                } catch (IOException e) {
+                    fetched.dataSource = null;
+                    fetched.error = e;
+                    return fetched;
+                }
+            }
+        }
+        if (fetched.dataSource == null) {
+            fetched.content = h.fetchContent(documentUniqueId);
+        }
+        return fetched;
+    }
+
+    /**
+     * A fetched document, either a data source to stream it from or its content, which is null if the document
+     * was not found, or the error reading its data source
+     */
+    private static class FetchedDocument {
+
+        private Class<? extends ContentHandler> handlerClass;
+
+        private DataSource dataSource;
+
+        private Content content;
+
+        private IOException error;
+    }
+
+    /**
+     * Fetches the documents of a retrieve request. With a parallelism of 1 each document is fetched on the request
+     * thread when it is needed. Otherwise up to that many documents are fetched at a time on the retrieve pool,
+     * ahead of the one that is needed, and they are handed out in request order.
+     */
+    private static class DocumentFetches {
+
+        private final List<String> documentUniqueIds;
+
+        private final Map<String, Class<? extends ContentHandler>> handlerClasses;
+
+        private final int parallelism;
+
+        private final int poolSize;
+
+        private final UserContext userContext;
+
+        private final List<Future<FetchedDocument>> futures;
+
+        /**
+         * @param documentUniqueIds the documents to fetch by request index, null for the entries not to fetch or
+         *                          that are known not to exist
+         * @param handlerClasses the handler classes of the documents, as far as they are known
+         */
+        DocumentFetches(List<String> documentUniqueIds, Map<String, Class<? extends ContentHandler>> handlerClasses,
+                        int parallelism, int poolSize) {
+            this.documentUniqueIds = documentUniqueIds;
+            this.handlerClasses = handlerClasses;
+            this.parallelism = parallelism;
+            this.poolSize = poolSize;
+            this.userContext = Context.getUserContext();
+            this.futures = new ArrayList<Future<FetchedDocument>>(Collections.<Future<FetchedDocument>>nCopies(documentUniqueIds.size(), null));
+        }
+
+        FetchedDocument get(int index) throws Exception {
+            if (documentUniqueIds.get(index) == null) {
+                return new FetchedDocument();
+            }
+            if (parallelism <= 1) {
+                String documentUniqueId = documentUniqueIds.get(index);
+                return fetchDocument(documentUniqueId, handlerClasses.get(documentUniqueId));
+            }
+
+            // keep up to parallelism documents in flight, starting with this one
+            int submitted = 0;
+            for (int i = index; i < documentUniqueIds.size() && submitted < parallelism; i++) {
+                if (documentUniqueIds.get(i) == null) {
+                    continue;
+                }
+                if (futures.get(i) == null) {
+                    futures.set(i, submit(documentUniqueIds.get(i)));
+                }
+                submitted++;
+            }
+
+            Future<FetchedDocument> future = futures.get(index);
+            futures.set(index, null);
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, "Interrupted while fetching documents", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw new XDSException(XDSException.XDS_ERR_REPOSITORY_ERROR, e.getCause().toString(), e.getCause());
+            }
+        }
+
+        private Future<FetchedDocument> submit(final String documentUniqueId) {
+            return DocumentProcessingPool.getRetrieveExecutor(poolSize).submit(new Callable<FetchedDocument>() {
+                @Override
+                public FetchedDocument call() throws Exception {
+                    Context.openSession();
+                    Context.setUserContext(userContext);
+                    try {
+                        return fetchDocument(documentUniqueId, handlerClasses.get(documentUniqueId));
+                    } finally {
+                        Context.closeSession();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Cancel the fetches that are still outstanding, once the request has failed
+         */
+        void cancel() {
+            for (Future<FetchedDocument> future : futures) {
+                if (future != null) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
 
     private void processExceptionForResponse(RegistryResponseType response, Throwable t) {
         log.error("Exception while processing provide and register", t);
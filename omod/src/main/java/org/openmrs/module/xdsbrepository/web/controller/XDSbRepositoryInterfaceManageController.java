@@ -16,6 +16,8 @@ package org.openmrs.module.xdsbrepository.web.controller;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.xdsbrepository.cache.DocumentHandlerIndex;
+import org.openmrs.module.xdsbrepository.registry.RegistryClient;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.ModelMap;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -32,6 +34,9 @@ public class  XDSbRepositoryInterfaceManageController {
 	@RequestMapping(value = "/module/xds-b-repository/manage", method = RequestMethod.GET)
 	public void manage(ModelMap model) {
 		model.addAttribute("user", Context.getAuthenticatedUser());
+		model.addAttribute("circuitBreakers", RegistryClient.getInstance().getCircuitBreakers());
+		model.addAttribute("registryLatencies", RegistryClient.getInstance().getLatencies());
+		model.addAttribute("documentIndex", DocumentHandlerIndex.getInstance());
 	}
 
 }
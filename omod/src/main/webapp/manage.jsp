@@ -5,4 +5,96 @@
 
 <p>Hello ${user.systemId}!</p>
 
+<h3><spring:message code="xds-b-repository.registry.circuitBreakers" /></h3>
+<c:choose>
+	<c:when test="${empty circuitBreakers}">
+		<p><spring:message code="xds-b-repository.registry.noCalls" /></p>
+	</c:when>
+	<c:otherwise>
+		<table>
+			<tr>
+				<th><spring:message code="xds-b-repository.registry.url" /></th>
+				<th><spring:message code="xds-b-repository.registry.state" /></th>
+				<th><spring:message code="xds-b-repository.registry.failureRate" /></th>
+				<th><spring:message code="xds-b-repository.registry.opened" /></th>
+				<th><spring:message code="xds-b-repository.registry.halfOpened" /></th>
+				<th><spring:message code="xds-b-repository.registry.closed" /></th>
+				<th><spring:message code="xds-b-repository.registry.rejected" /></th>
+			</tr>
+			<c:forEach var="breaker" items="${circuitBreakers}">
+				<tr>
+					<td>${breaker.name}</td>
+					<td>${breaker.state}</td>
+					<td>${breaker.failureRate}%</td>
+					<td>${breaker.openedCount}</td>
+					<td>${breaker.halfOpenedCount}</td>
+					<td>${breaker.closedCount}</td>
+					<td>${breaker.rejectedCount}</td>
+				</tr>
+			</c:forEach>
+		</table>
+	</c:otherwise>
+</c:choose>
+
+<h3><spring:message code="xds-b-repository.registry.latencies" /></h3>
+<c:choose>
+	<c:when test="${empty registryLatencies}">
+		<p><spring:message code="xds-b-repository.registry.noCalls" /></p>
+	</c:when>
+	<c:otherwise>
+		<table>
+			<tr>
+				<th><spring:message code="xds-b-repository.registry.url" /></th>
+				<th><spring:message code="xds-b-repository.registry.calls" /></th>
+				<th><spring:message code="xds-b-repository.registry.p50" /></th>
+				<th><spring:message code="xds-b-repository.registry.p95" /></th>
+			</tr>
+			<c:forEach var="latency" items="${registryLatencies}">
+				<tr>
+					<td>${latency.key}</td>
+					<td>${latency.value.count}</td>
+					<td>${latency.value.p50} ms</td>
+					<td>${latency.value.p95} ms</td>
+				</tr>
+			</c:forEach>
+		</table>
+	</c:otherwise>
+</c:choose>
+
+<h3><spring:message code="xds-b-repository.documentIndex" /></h3>
+<table>
+	<tr>
+		<th><spring:message code="xds-b-repository.documentIndex.loaded" /></th>
+		<td>${documentIndex.loaded}</td>
+	</tr>
+	<tr>
+		<th><spring:message code="xds-b-repository.documentIndex.size" /></th>
+		<td>${documentIndex.size}</td>
+	</tr>
+	<tr>
+		<th><spring:message code="xds-b-repository.documentIndex.capacity" /></th>
+		<td>${documentIndex.capacity}</td>
+	</tr>
+	<tr>
+		<th><spring:message code="xds-b-repository.documentIndex.memory" /></th>
+		<td><fmt:formatNumber value="${documentIndex.memoryBytes / 1048576}" maxFractionDigits="1" /> MB</td>
+	</tr>
+	<tr>
+		<th><spring:message code="xds-b-repository.documentIndex.lookups" /></th>
+		<td>${documentIndex.lookupCount}</td>
+	</tr>
+	<tr>
+		<th><spring:message code="xds-b-repository.documentIndex.hits" /></th>
+		<td>${documentIndex.hitCount}</td>
+	</tr>
+	<tr>
+		<th><spring:message code="xds-b-repository.documentIndex.falsePositives" /></th>
+		<td>${documentIndex.falsePositiveCount}</td>
+	</tr>
+	<tr>
+		<th><spring:message code="xds-b-repository.documentIndex.falsePositiveRate" /></th>
+		<td>${documentIndex.falsePositiveRate} (<spring:message code="xds-b-repository.documentIndex.expected" /> ${documentIndex.expectedFalsePositiveRate})</td>
+	</tr>
+</table>
+
 <%@ include file="/WEB-INF/template/footer.jsp"%>
\ No newline at end of file
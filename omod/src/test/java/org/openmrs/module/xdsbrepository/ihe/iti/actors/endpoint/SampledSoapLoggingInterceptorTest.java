@@ -0,0 +1,39 @@
+package org.openmrs.module.xdsbrepository.ihe.iti.actors.endpoint;
+
+import org.junit.Test;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.StringReader;
+
+import static org.junit.Assert.*;
+
+public class SampledSoapLoggingInterceptorTest {
+
+    private static final String ENVELOPE = "<s:Envelope xmlns:s=\"http://www.w3.org/2003/05/soap-envelope\"><s:Body>"
+            + "<xdsb:ProvideAndRegisterDocumentSetRequest xmlns:xdsb=\"urn:ihe:iti:xds-b:2007\">"
+            + "<xdsb:Document id=\"Document01\">UEQ5NGJXd2dkbVZ5YzJsdmJqMGlNUzR3SWo4Kw==</xdsb:Document>"
+            + "</xdsb:ProvideAndRegisterDocumentSetRequest></s:Body></s:Envelope>";
+
+    @Test
+    public void format_shouldNotLogTheContentOfTheDocuments() throws Exception {
+        SampledSoapLoggingInterceptor interceptor = new SampledSoapLoggingInterceptor();
+
+        String logged = interceptor.format(new StreamSource(new StringReader(ENVELOPE)));
+
+        assertTrue(logged.contains("<xdsb:Document id=\"Document01\">[40 characters not logged]</xdsb:Document>"));
+        assertFalse(logged.contains("UEQ5"));
+        assertTrue(logged.endsWith("</s:Envelope>"));
+    }
+
+    @Test
+    public void format_shouldTruncateTheEnvelope() throws Exception {
+        SampledSoapLoggingInterceptor interceptor = new SampledSoapLoggingInterceptor();
+        interceptor.setMaxLength(20);
+
+        String logged = interceptor.format(new StreamSource(new StringReader(ENVELOPE)));
+
+        assertTrue(logged.endsWith("... [truncated]"));
+        assertEquals(20 + "... [truncated]".length(), logged.length());
+    }
+
+}
@@ -8,9 +8,13 @@ import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetRequestType;
 import org.dcm4chee.xds2.infoset.ihe.RetrieveDocumentSetResponseType;
 import org.dcm4chee.xds2.infoset.rim.RegistryError;
 import org.dcm4chee.xds2.infoset.rim.RegistryResponseType;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.openmrs.GlobalProperty;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
@@ -19,13 +23,25 @@ import org.openmrs.module.shr.contenthandler.api.Content;
 import org.openmrs.module.shr.contenthandler.api.ContentHandler;
 import org.openmrs.module.shr.contenthandler.api.ContentHandlerService;
 import org.openmrs.module.xdsbrepository.XDSbService;
+import org.openmrs.module.xdsbrepository.XDSbConfiguration;
+import org.openmrs.module.xdsbrepository.XDSbConfigurationListener;
 import org.openmrs.module.xdsbrepository.XDSbServiceConstants;
+import org.openmrs.module.xdsbrepository.content.FileChannelDataSource;
+import org.openmrs.module.xdsbrepository.content.StreamingContentHandler;
+import org.openmrs.module.xdsbrepository.model.DocumentDetails;
 import org.openmrs.test.BaseModuleContextSensitiveTest;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.Unmarshaller;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
 import static com.github.tomakehurst.wiremock.client.WireMock.containing;
@@ -42,12 +58,16 @@ import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
 
 public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensitiveTest {
 
     @Rule
     public WireMockRule wireMockRule = new WireMockRule(8089);
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private void stubRegistry() {
         stubFor(post(urlEqualTo("/ws/xdsregistry"))
                 .willReturn(aResponse()
@@ -66,8 +86,12 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
             + "	</s:Body>"
             + "</s:Envelope>";
 
+    private final XDSbConfigurationListener configurationListener = new XDSbConfigurationListener();
+
     @Before
     public void setup() throws Exception {
+        XDSbConfiguration.clear();
+        Context.getAdministrationService().addGlobalPropertyListener(configurationListener);
         executeDataSet("src/test/resources/provideAndRegRequest-dataset.xml");
 
         AdministrationService as = Context.getAdministrationService();
@@ -82,6 +106,19 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
         as.saveGlobalProperty(gp4);
     }
 
+    @After
+    public void tearDown() {
+        Context.getAdministrationService().removeGlobalPropertyListener(configurationListener);
+    }
+
+    private static Map<String, Class<? extends ContentHandler>> handlerClasses(Class<? extends ContentHandler> cls, String... documentUniqueIds) {
+        Map<String, Class<? extends ContentHandler>> handlerClasses = new HashMap<String, Class<? extends ContentHandler>>();
+        for (String documentUniqueId : documentUniqueIds) {
+            handlerClasses.put(documentUniqueId, cls);
+        }
+        return handlerClasses;
+    }
+
     @SuppressWarnings("unchecked")
     private <T> T parseRequestFromResourceName(String resourceName) throws Exception {
         JAXBContext jaxbContext = JAXBContext.newInstance("org.dcm4chee.xds2.infoset.ihe:org.dcm4chee.xds2.infoset.rim");
@@ -107,7 +144,7 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
         contextMockHelper.setService(XDSbService.class, mockXdsService);
 
         Class<? extends ContentHandler> cls = mockHandler.getClass();
-        doReturn(cls).when(mockXdsService).getDocumentHandlerClass("testId");
+        doReturn(handlerClasses(cls, "testId")).when(mockXdsService).getDocumentHandlerClasses(Arrays.asList("testId"));
 
         ContentHandlerService mockHandlerService = mock(ContentHandlerService.class);
         contextMockHelper.setService(ContentHandlerService.class, mockHandlerService);
@@ -123,11 +160,157 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
         verify(mockHandler).fetchContent("testId");
         verify(mockHandlerService).getContentHandlerByClass(cls);
         verify(mockHandlerService, never()).getDefaultUnstructuredHandler();
-        verify(mockXdsService).getDocumentHandlerClass("testId");
+        verify(mockXdsService).getDocumentHandlerClasses(Arrays.asList("testId"));
         assertEquals(1, response.getDocumentResponse().size());
         assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, response.getRegistryResponse().getStatus());
     }
 
+    /**
+     * Retrieve the single test document with a pipelined response that has a budget of one byte
+     *
+     * @param details the details the document was stored with, or null
+     */
+    private RetrieveDocumentSetResponseType retrieveWithOneBytePipeline(ContentHandler mockHandler, DocumentDetails details) throws Exception {
+        AdministrationService as = Context.getAdministrationService();
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_PIPELINED, "true"));
+        as.saveGlobalProperty(new GlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_MAX_IN_FLIGHT_BYTES, "1"));
+
+        XDSbService mockXdsService = mock(XDSbService.class);
+        contextMockHelper.setService(XDSbService.class, mockXdsService);
+
+        Class<? extends ContentHandler> cls = mockHandler.getClass();
+        doReturn(handlerClasses(cls, "testId")).when(mockXdsService).getDocumentHandlerClasses(Arrays.asList("testId"));
+        Map<String, DocumentDetails> stored = new HashMap<String, DocumentDetails>();
+        if (details != null) {
+            stored.put("testId", details);
+        }
+        doReturn(stored).when(mockXdsService).getDocumentDetails(Collections.singleton("testId"));
+
+        ContentHandlerService mockHandlerService = mock(ContentHandlerService.class);
+        contextMockHelper.setService(ContentHandlerService.class, mockHandlerService);
+        when(mockHandlerService.getContentHandlerByClass(cls)).thenReturn(mockHandler);
+
+        XdsDocumentRepositoryServiceImpl service = new XdsDocumentRepositoryServiceImpl();
+        return service.retrieveDocumentSetB(parseRequestFromResourceName("retrieveDocumentsRequest-single.xml"));
+    }
+
+    private static String write(RetrieveDocumentSetResponseType.DocumentResponse documentResponse) throws Exception {
+        InputStream document = documentResponse.getDocument().getInputStream();
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int b;
+        while ((b = document.read()) != -1) {
+            written.write(b);
+        }
+        return written.toString();
+    }
+
+    @Test
+    public void retrieveDocumentSetB_shouldFetchDocumentsThatDoNotFitInTheBudgetOnceWhenTheyAreWritten() throws Exception {
+        // given
+        CodedValue typeCode = new CodedValue("testType", "testCodes", "Test Type");
+        CodedValue formatCode = new CodedValue("testFormat", "testCodes", "Test Format");
+        Content content = new Content("testId", "My test document".getBytes(), typeCode, formatCode, "text/plain");
+
+        ContentHandler mockHandler = mock(ContentHandler.class);
+        when(mockHandler.fetchContent("testId")).thenReturn(content);
+
+        // when
+        RetrieveDocumentSetResponseType response = retrieveWithOneBytePipeline(mockHandler, new DocumentDetails("text/plain", 16));
+        String written = write(response.getDocumentResponse().get(0));
+
+        // then
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, response.getRegistryResponse().getStatus());
+        assertEquals("text/plain", response.getDocumentResponse().get(0).getMimeType());
+        assertEquals("My test document", written);
+        verify(mockHandler, times(1)).fetchContent("testId");
+    }
+
+    @Test
+    public void retrieveDocumentSetB_shouldHoldDocumentsStoredWithoutTheirDetailsUntilTheyAreWritten() throws Exception {
+        // given
+        CodedValue typeCode = new CodedValue("testType", "testCodes", "Test Type");
+        CodedValue formatCode = new CodedValue("testFormat", "testCodes", "Test Format");
+        Content content = new Content("testId", "My test document".getBytes(), typeCode, formatCode, "text/plain");
+
+        ContentHandler mockHandler = mock(ContentHandler.class);
+        when(mockHandler.fetchContent("testId")).thenReturn(content);
+
+        // when
+        RetrieveDocumentSetResponseType response = retrieveWithOneBytePipeline(mockHandler, null);
+        String written = write(response.getDocumentResponse().get(0));
+
+        // then
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, response.getRegistryResponse().getStatus());
+        assertEquals("text/plain", response.getDocumentResponse().get(0).getMimeType());
+        assertEquals("My test document", written);
+        verify(mockHandler, times(1)).fetchContent("testId");
+    }
+
+    /**
+     * A content handler that streams its documents from files in the temporary folder
+     */
+    private ContentHandler fileBackedHandler(String documentUniqueId, File file) {
+        ContentHandler handler = mock(ContentHandler.class, withSettings().extraInterfaces(StreamingContentHandler.class));
+        when(((StreamingContentHandler) handler).fetchContentDataSource(documentUniqueId))
+                .thenReturn(new FileChannelDataSource(file, "text/plain"));
+
+        XDSbService mockXdsService = mock(XDSbService.class);
+        contextMockHelper.setService(XDSbService.class, mockXdsService);
+        Class<? extends ContentHandler> cls = handler.getClass();
+        doReturn(handlerClasses(cls, documentUniqueId)).when(mockXdsService).getDocumentHandlerClasses(Arrays.asList(documentUniqueId));
+
+        ContentHandlerService mockHandlerService = mock(ContentHandlerService.class);
+        contextMockHelper.setService(ContentHandlerService.class, mockHandlerService);
+        when(mockHandlerService.getContentHandlerByClass(cls)).thenReturn(handler);
+        return handler;
+    }
+
+    @Test
+    public void retrieveDocumentSetB_shouldStreamADocumentFromItsFile() throws Exception {
+        // given
+        File file = folder.newFile("testId");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write("My streamed document".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        ContentHandler handler = fileBackedHandler("testId", file);
+
+        XdsDocumentRepositoryServiceImpl service = new XdsDocumentRepositoryServiceImpl();
+        RetrieveDocumentSetRequestType recRequest = parseRequestFromResourceName("retrieveDocumentsRequest-single.xml");
+
+        // when
+        RetrieveDocumentSetResponseType response = service.retrieveDocumentSetB(recRequest);
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        response.getDocumentResponse().get(0).getDocument().writeTo(written);
+
+        // then
+        verify(handler, never()).fetchContent("testId");
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, response.getRegistryResponse().getStatus());
+        assertEquals("text/plain", response.getDocumentResponse().get(0).getMimeType());
+        assertEquals("My streamed document", written.toString("UTF-8"));
+    }
+
+    @Test
+    public void retrieveDocumentSetB_shouldReturnARegistryErrorIfAStreamedDocumentCannotBeRead() throws Exception {
+        // given
+        ContentHandler handler = fileBackedHandler("testId", new File(folder.getRoot(), "missing"));
+
+        XdsDocumentRepositoryServiceImpl service = new XdsDocumentRepositoryServiceImpl();
+        RetrieveDocumentSetRequestType recRequest = parseRequestFromResourceName("retrieveDocumentsRequest-single.xml");
+
+        // when
+        RetrieveDocumentSetResponseType response = service.retrieveDocumentSetB(recRequest);
+
+        // then
+        verify(handler, never()).fetchContent("testId");
+        assertEquals(0, response.getDocumentResponse().size());
+        assertEquals(XDSConstants.XDS_B_STATUS_FAILURE, response.getRegistryResponse().getStatus());
+        RegistryError registryError = response.getRegistryResponse().getRegistryErrorList().getRegistryError().get(0);
+        assertEquals(XDSException.XDS_ERR_REPOSITORY_ERROR, registryError.getErrorCode());
+    }
+
     @Test
     public void retrieveDocumentSetB_shouldReturnARegistryErrorIfDocumentNotFound() throws Exception {
         // given
@@ -137,7 +320,7 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
         contextMockHelper.setService(XDSbService.class, mockXdsService);
 
         Class<? extends ContentHandler> cls = mockHandler.getClass();
-        doReturn(cls).when(mockXdsService).getDocumentHandlerClass("testId");
+        doReturn(handlerClasses(cls, "testId")).when(mockXdsService).getDocumentHandlerClasses(Arrays.asList("testId"));
 
         ContentHandlerService mockHandlerService = mock(ContentHandlerService.class);
         contextMockHelper.setService(ContentHandlerService.class, mockHandlerService);
@@ -152,7 +335,7 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
         // then
         verify(mockHandler).fetchContent("testId");
         verify(mockHandlerService).getContentHandlerByClass(cls);
-        verify(mockXdsService).getDocumentHandlerClass("testId");
+        verify(mockXdsService).getDocumentHandlerClasses(Arrays.asList("testId"));
         assertEquals(0, response.getDocumentResponse().size());
         RegistryError registryError = response.getRegistryResponse().getRegistryErrorList().getRegistryError().get(0);
         assertEquals(XDSException.XDS_ERR_MISSING_DOCUMENT, registryError.getErrorCode());
@@ -187,8 +370,8 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
         contextMockHelper.setService(XDSbService.class, mockXdsService);
 
         Class<? extends ContentHandler> cls = mockHandler.getClass();
-        doReturn(cls).when(mockXdsService).getDocumentHandlerClass("testId1");
-        doReturn(cls).when(mockXdsService).getDocumentHandlerClass("testId2");
+        doReturn(handlerClasses(cls, "testId1", "testId2")).when(mockXdsService)
+                .getDocumentHandlerClasses(Arrays.asList("testId1", "testId2"));
 
         ContentHandlerService mockHandlerService = mock(ContentHandlerService.class);
         contextMockHelper.setService(ContentHandlerService.class, mockHandlerService);
@@ -204,12 +387,58 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
         verify(mockHandler).fetchContent("testId1");
         verify(mockHandler).fetchContent("testId2");
         verify(mockHandlerService, times(2)).getContentHandlerByClass(cls);
-        verify(mockXdsService).getDocumentHandlerClass("testId1");
-        verify(mockXdsService).getDocumentHandlerClass("testId2");
+        verify(mockXdsService).getDocumentHandlerClasses(Arrays.asList("testId1", "testId2"));
         assertEquals(1, response.getDocumentResponse().size());
         assertEquals(XDSConstants.XDS_B_STATUS_PARTIAL_SUCCESS, response.getRegistryResponse().getStatus());
     }
 
+    @Test
+    public void retrieveDocumentSetB_shouldReturnDocumentsFetchedInParallelInRequestOrder() throws Exception {
+        // given
+        Context.getAdministrationService().saveGlobalProperty(
+                new GlobalProperty(XDSbServiceConstants.XDS_REPOSITORY_RETRIEVE_MAX_PARALLELISM, "2"));
+
+        CodedValue typeCode = new CodedValue("testType", "testCodes", "Test Type");
+        CodedValue formatCode = new CodedValue("testFormat", "testCodes", "Test Format");
+        final Content content1 = new Content("testId1", "My first document".getBytes(), typeCode, formatCode, "text/plain");
+        Content content2 = new Content("testId2", "My second document".getBytes(), typeCode, formatCode, "text/plain");
+
+        ContentHandler mockHandler = mock(ContentHandler.class);
+        // the first document is the slowest to fetch
+        when(mockHandler.fetchContent("testId1")).thenAnswer(new Answer<Content>() {
+            @Override
+            public Content answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(200);
+                return content1;
+            }
+        });
+        when(mockHandler.fetchContent("testId2")).thenReturn(content2);
+        XDSbService mockXdsService = mock(XDSbService.class);
+        contextMockHelper.setService(XDSbService.class, mockXdsService);
+
+        Class<? extends ContentHandler> cls = mockHandler.getClass();
+        doReturn(handlerClasses(cls, "testId1", "testId2")).when(mockXdsService)
+                .getDocumentHandlerClasses(Arrays.asList("testId1", "testId2"));
+
+        ContentHandlerService mockHandlerService = mock(ContentHandlerService.class);
+        contextMockHelper.setService(ContentHandlerService.class, mockHandlerService);
+        when(mockHandlerService.getContentHandlerByClass(cls)).thenReturn(mockHandler);
+
+        XdsDocumentRepositoryServiceImpl service = new XdsDocumentRepositoryServiceImpl();
+        RetrieveDocumentSetRequestType recRequest = parseRequestFromResourceName("retrieveDocumentsRequest-multiple.xml");
+
+        // when
+        RetrieveDocumentSetResponseType response = service.retrieveDocumentSetB(recRequest);
+
+        // then
+        verify(mockHandler).fetchContent("testId1");
+        verify(mockHandler).fetchContent("testId2");
+        assertEquals(2, response.getDocumentResponse().size());
+        assertEquals("testId1", response.getDocumentResponse().get(0).getDocumentUniqueId());
+        assertEquals("testId2", response.getDocumentResponse().get(1).getDocumentUniqueId());
+        assertEquals(XDSConstants.XDS_B_STATUS_SUCCESS, response.getRegistryResponse().getStatus());
+    }
+
     @Test
     public void retrieveDocumentSetB_shouldCallTheDefaultHandlerIfNoRegisteredHandlersAreFound() throws Exception {
         // given
@@ -224,8 +453,8 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
         contextMockHelper.setService(XDSbService.class, mockXdsService);
 
         Class<? extends ContentHandler> cls = mockHandler.getClass();
-        doReturn(cls).when(mockXdsService).getDocumentHandlerClass("testId1");
-        doReturn(cls).when(mockXdsService).getDocumentHandlerClass("testId2");
+        doReturn(handlerClasses(cls, "testId1", "testId2")).when(mockXdsService)
+                .getDocumentHandlerClasses(Arrays.asList("testId1", "testId2"));
 
         ContentHandlerService mockHandlerService = mock(ContentHandlerService.class);
         contextMockHelper.setService(ContentHandlerService.class, mockHandlerService);
@@ -243,8 +472,7 @@ public class XdsDocumentRepositoryServiceImplTest extends BaseModuleContextSensi
         verify(mockHandler).fetchContent("testId2");
         verify(mockHandlerService, times(2)).getContentHandlerByClass(cls);
         verify(mockHandlerService, times(2)).getDefaultUnstructuredHandler();
-        verify(mockXdsService).getDocumentHandlerClass("testId1");
-        verify(mockXdsService).getDocumentHandlerClass("testId2");
+        verify(mockXdsService).getDocumentHandlerClasses(Arrays.asList("testId1", "testId2"));
         assertEquals(1, response.getDocumentResponse().size());
         assertEquals(XDSConstants.XDS_B_STATUS_PARTIAL_SUCCESS, response.getRegistryResponse().getStatus());
     }